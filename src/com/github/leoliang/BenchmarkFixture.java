@@ -0,0 +1,140 @@
+package com.github.leoliang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A JVM with a heap of a known shape for {@link BenchmarkToolsJDK8} to attach to: linked objects, interned strings,
+ * direct buffers and classes, as many as asked for, and a mapped temporary file. Once they are built and promoted by a full GC it prints
+ * "ready &lt;pid&gt;" and sleeps until it is killed, so every run of a tool sees the same heap.
+ * Usage: java -cp . com.github.leoliang.BenchmarkFixture [-objects n] [-strings n] [-directBuffers n] [-classes n] <br />
+ * This class does not attach to a JVM, sa-jdi.jar is not needed.
+ * <p>
+ */
+public class BenchmarkFixture {
+    private static final int CHAINS = 1024;
+    private static final int DIRECT_BUFFER_CAPACITY = 4096;
+    private static final int MAPPED_FILE_SIZE = 1 << 20;
+
+    // held until the process exits
+    private static Node[] chains;
+    private static String[] strings;
+    private static ByteBuffer[] directBuffers;
+    private static MappedByteBuffer mappedFile;
+    private static Class<?>[] classes;
+
+    public static void main(String[] args) throws Exception {
+        int objects = 1000000;
+        int stringCount = 100000;
+        int directBufferCount = 1000;
+        int classCount = 1000;
+
+        int used = 0;
+        while (used < args.length - 1 && args[used].startsWith("-")) {
+            if ("-objects".equals(args[used])) {
+                objects = Integer.parseInt(args[used + 1]);
+            } else if ("-strings".equals(args[used])) {
+                stringCount = Integer.parseInt(args[used + 1]);
+            } else if ("-directBuffers".equals(args[used])) {
+                directBufferCount = Integer.parseInt(args[used + 1]);
+            } else if ("-classes".equals(args[used])) {
+                classCount = Integer.parseInt(args[used + 1]);
+            } else {
+                break;
+            }
+            used += 2;
+        }
+
+        if (used != args.length) {
+            System.err.println("Usage: java com.github.leoliang.BenchmarkFixture [-objects n] [-strings n] [-directBuffers n] [-classes n]");
+            System.exit(1);
+        }
+
+        chains = new Node[CHAINS];
+        for (int i = 0; i < objects; i++) {
+            chains[i % CHAINS] = new Node(i, chains[i % CHAINS]);
+        }
+        strings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            strings[i] = ("fixture-string-" + i).intern();
+        }
+        directBuffers = new ByteBuffer[directBufferCount];
+        for (int i = 0; i < directBufferCount; i++) {
+            directBuffers[i] = ByteBuffer.allocateDirect(DIRECT_BUFFER_CAPACITY);
+        }
+        mappedFile = mapTempFile();
+        byte[] loadedBytes = classBytes(Loaded.class);
+        classes = new Class<?>[classCount];
+        for (int i = 0; i < classCount; i++) {
+            classes[i] = new FixtureLoader().define(Loaded.class.getName(), loadedBytes);
+        }
+
+        System.gc();
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        System.out.println("ready " + name.substring(0, name.indexOf('@')));
+        System.out.flush();
+        Thread.sleep(Long.MAX_VALUE);
+    }
+
+    /**
+     * The mapping outlives the channel, and the file is deleted when the fixture is killed.
+     */
+    private static MappedByteBuffer mapTempFile() throws IOException {
+        File file = File.createTempFile("fixture", ".mapped");
+        file.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, MAPPED_FILE_SIZE);
+        }
+    }
+
+    private static byte[] classBytes(Class<?> klass) throws IOException {
+        String resource = klass.getName().substring(klass.getName().lastIndexOf('.') + 1) + ".class";
+        try (InputStream in = klass.getResourceAsStream(resource)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    private static class Node {
+        private final int value;
+        private final Node next;
+
+        Node(int value, Node next) {
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Defines its own copy of {@link Loaded}, so each loader adds a class with the same name, as a redeploy does.
+     */
+    private static class FixtureLoader extends ClassLoader {
+        FixtureLoader() {
+            super(BenchmarkFixture.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    public static class Loaded {
+        private static final Object STATE = new Object();
+
+        public Object state() {
+            return STATE;
+        }
+    }
+}
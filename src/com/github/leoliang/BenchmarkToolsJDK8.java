@@ -0,0 +1,323 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.debugger.AddressException;
+import sun.jvm.hotspot.oops.DefaultHeapVisitor;
+import sun.jvm.hotspot.oops.Oop;
+import sun.jvm.hotspot.runtime.VM;
+import sun.jvm.hotspot.tools.Tool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measure the tools against one target in a single attach: each tool's run() is called a number of times with its
+ * output thrown away, and the time it took, which is the time a live target is paused for, the debugger reads and
+ * bytes it cost, and for the tools walking the heap the objects of the heap per second of their median run, left out
+ * for mappedBuffers when the target never mapped a file, as it then skips the walk. What a tool does in
+ * stop(), once the target would be released, is not timed with it: the target stays paused for it under this attach,
+ * so it is printed apart in the pause time. The page cache is cleared before every run, so each run reads
+ * the target as a fresh attach would; the agent's own caches of VM structures stay warm after the first run, which is
+ * why the first run is printed apart.
+ * Without a target a {@link BenchmarkFixture} JVM is started with the given heap shape and killed at the end, so the
+ * numbers of two builds of the tools can be compared. A core file of a fixture, taken with gcore, is benchmarked by
+ * giving the java executable and the core instead of a PID.
+ * Usage: java -cp .:${JAVA_HOME}/lib/sa-jdi.jar com.github.leoliang.BenchmarkToolsJDK8 [-i iterations] [-tools name,...] [-objects n] [-strings n] [-directBuffers n] [-classes n] [-jvm option]... [&lt;Running JVM's PID&gt;] <br />
+ * You need to add sa-jdi.jar to your class path. This is generally available in your JDK's lib directory. Also, you might need to run this class with super user privileges in order to access the other JVM.
+ * <p>
+ */
+public class BenchmarkToolsJDK8 extends Tool {
+    private static final String[] TOOLS = {"classes", "stringTable", "symbolTable", "codeCache", "monitors",
+            "threadAllocation", "directMemory", "generations", "duplicateStrings", "collectionWaste", "retainedSize",
+            "mappedBuffers", "diagnosticReport"};
+    // the tools walking the whole heap at least once, whose throughput is in objects per second
+    private static final String[] HEAP_WALKING_TOOLS = {"generations", "duplicateStrings", "collectionWaste",
+            "retainedSize", "mappedBuffers", "diagnosticReport"};
+    private static final long FIXTURE_START_NANOS = 300 * 1000000000L;
+
+    private int iterations;
+    private String[] toolNames;
+    private long attachStart;
+    private long runNanos;
+    // the time of the tools' stop() within runNanos
+    private long stopNanos;
+
+    public BenchmarkToolsJDK8(int iterations, String[] toolNames) {
+        this.iterations = iterations;
+        this.toolNames = toolNames;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int iterations = 3;
+        String[] toolNames = TOOLS;
+        List<String> fixtureArgs = new ArrayList<>();
+        List<String> jvmOptions = new ArrayList<>();
+
+        int used = 0;
+        while (used < args.length - 1 && args[used].startsWith("-")) {
+            String arg = args[used];
+            if ("-i".equals(arg)) {
+                iterations = Integer.parseInt(args[used + 1]);
+            } else if ("-tools".equals(arg)) {
+                toolNames = args[used + 1].split(",");
+            } else if ("-objects".equals(arg) || "-strings".equals(arg) || "-directBuffers".equals(arg)
+                    || "-classes".equals(arg)) {
+                fixtureArgs.add(arg);
+                fixtureArgs.add(args[used + 1]);
+            } else if ("-jvm".equals(arg)) {
+                jvmOptions.add(args[used + 1]);
+            } else {
+                break;
+            }
+            used += 2;
+        }
+        // the median and the averages need a run at least
+        if (iterations < 1) {
+            System.err.println("Usage: java com.github.leoliang.BenchmarkToolsJDK8 [-i iterations] [-tools name,...] [-objects n] [-strings n] [-directBuffers n] [-classes n] [-jvm option]... [<PID>], -i needs 1 iteration at least");
+            System.exit(1);
+        }
+        for (String toolName : toolNames) {
+            if (!Arrays.asList(TOOLS).contains(toolName)) {
+                System.err.println("Unknown tool " + toolName + ", the tools are " + Arrays.toString(TOOLS));
+                System.exit(1);
+            }
+        }
+        args = Arrays.copyOfRange(args, used, args.length);
+
+        if (args.length == 0) {
+            String pid = startFixture(jvmOptions, fixtureArgs);
+            args = new String[]{pid};
+            System.out.println("Fixture " + pid + ": " + fixtureArgs + " " + jvmOptions);
+        }
+
+        BenchmarkToolsJDK8 benchmark = new BenchmarkToolsJDK8(iterations, toolNames);
+        benchmark.attachStart = System.nanoTime();
+        benchmark.execute(args);
+    }
+
+    /**
+     * The fixture is started by a shell that exits right away, as it must not be a child of this JVM: the process
+     * reaper thread waiting for a child would take the stops the debugger waits for once attached to it. The shell
+     * prints the PID of the fixture, which is killed when this JVM exits from then on, whether it started or not.
+     *
+     * @return the PID of the fixture once it is ready
+     */
+    private static String startFixture(List<String> jvmOptions, List<String> fixtureArgs)
+            throws IOException, InterruptedException {
+        File log = File.createTempFile("fixture", ".log");
+        log.deleteOnExit();
+        StringBuilder command = new StringBuilder("exec ");
+        command.append(quote(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java"));
+        for (String option : jvmOptions) {
+            command.append(' ').append(quote(option));
+        }
+        command.append(" -cp ").append(quote(System.getProperty("java.class.path")));
+        command.append(' ').append(BenchmarkFixture.class.getName());
+        for (String arg : fixtureArgs) {
+            command.append(' ').append(quote(arg));
+        }
+        command.append(" >").append(quote(log.getPath())).append(" 2>&1 & echo $!");
+        Process shell = new ProcessBuilder("/bin/sh", "-c", command.toString()).redirectErrorStream(true).start();
+        String shellOutput;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(shell.getInputStream(), StandardCharsets.UTF_8))) {
+            shellOutput = reader.readLine();
+        }
+        shell.waitFor();
+        if (shellOutput == null || !shellOutput.trim().matches("[0-9]+")) {
+            throw new IOException("Could not start the fixture: " + shellOutput);
+        }
+        final String pid = shellOutput.trim();
+        // execute() exits the JVM
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    new ProcessBuilder("kill", pid).start().waitFor();
+                } catch (IOException | InterruptedException e) {
+                    System.err.println("Could not kill the fixture " + pid + ": " + e);
+                }
+            }
+        });
+
+        long deadline = System.nanoTime() + FIXTURE_START_NANOS;
+        while (true) {
+            List<String> lines = Files.readAllLines(log.toPath(), StandardCharsets.UTF_8);
+            for (String line : lines) {
+                // the JVM options may make the fixture print before it is ready, with -verbose:gc for one
+                if (line.startsWith("ready ")) {
+                    return pid;
+                }
+            }
+            if (new ProcessBuilder("kill", "-0", pid).start().waitFor() != 0) {
+                throw new IOException("The fixture exited before it was ready: " + lines);
+            }
+            if (System.nanoTime() > deadline) {
+                throw new IOException("The fixture was not ready within " + FIXTURE_START_NANOS / 1000000000L
+                        + " s: " + lines);
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private static String quote(String arg) {
+        return "'" + arg.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * execute() detaches through stop() and then exits, so the pause time is printed from here.
+     */
+    @Override
+    public void stop() {
+        long detachStart = System.nanoTime();
+        super.stop();
+        if (attachStart == 0) return;
+        long detachNanos = System.nanoTime() - detachStart;
+        System.out.println("Target pause time:");
+        System.out.printf("%20s%12.3f ms\n", "attach", (System.nanoTime() - attachStart - runNanos - detachNanos) / 1e6);
+        System.out.printf("%20s%12.3f ms\n", "runs", (runNanos - stopNanos) / 1e6);
+        System.out.printf("%20s%12.3f ms\n", "tools' stop()", stopNanos / 1e6);
+        System.out.printf("%20s%12.3f ms\n", "detach", detachNanos / 1e6);
+        System.out.printf("%20s%12.3f ms\n", "total", (System.nanoTime() - attachStart) / 1e6);
+        attachStart = 0;
+    }
+
+    @Override
+    public void run() {
+        long runStart = System.nanoTime();
+        DebuggerPageCache pageCache = DebuggerPageCache.install(getAgent());
+        PrintStream out = System.out;
+        try {
+            pageCache.clear();
+            long start = System.nanoTime();
+            long objects = countObjects();
+            long walkNanos = System.nanoTime() - start;
+            out.printf("Heap walk: %d objects in %.3f s (%.0f objects/sec)\n", objects, walkNanos / 1e9,
+                    walkNanos == 0 ? 0 : objects / (walkNanos / 1e9));
+
+            out.printf("%20s%12s%12s%12s%16s%16s%16s\n", "tool", "first ms", "median ms", "max ms",
+                    "debugger reads", "debugger bytes", "objects/sec");
+            PrintStream discard = new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+            for (String toolName : toolNames) {
+                long[] nanos = new long[iterations];
+                long reads = 0;
+                long bytes = 0;
+                for (int i = 0; i < iterations; i++) {
+                    pageCache.clear();
+                    long readsBefore = pageCache.debuggerReads();
+                    long bytesBefore = pageCache.debuggerBytes() + pageCache.mappedBytes();
+                    Tool tool = newTool(toolName);
+                    System.setOut(discard);
+                    try {
+                        start = System.nanoTime();
+                        try {
+                            tool.run();
+                        } finally {
+                            nanos[i] = System.nanoTime() - start;
+                        }
+                        // what a tool does after detaching, like the dominators of retainedSize, is not timed
+                        long stopStart = System.nanoTime();
+                        tool.stop();
+                        stopNanos += System.nanoTime() - stopStart;
+                    } finally {
+                        System.setOut(out);
+                    }
+                    reads += pageCache.debuggerReads() - readsBefore;
+                    bytes += pageCache.debuggerBytes() + pageCache.mappedBytes() - bytesBefore;
+                }
+                boolean walksHeap = Arrays.asList(HEAP_WALKING_TOOLS).contains(toolName)
+                        && (!"mappedBuffers".equals(toolName) || PrintMappedBuffersJDK8.walksHeap());
+                printResult(out, toolName, nanos, reads / iterations, bytes / iterations, walksHeap ? objects : 0);
+            }
+        } catch (AddressException e) {
+            System.err.println("Error accessing address 0x"
+                    + Long.toHexString(e.getAddress()));
+            e.printStackTrace();
+        }
+        pageCache.printStats(out);
+        runNanos = System.nanoTime() - runStart;
+    }
+
+    private static long countObjects() {
+        final long[] count = new long[1];
+        VM.getVM().getObjectHeap().iterate(new DefaultHeapVisitor() {
+            @Override
+            public boolean doObj(Oop obj) {
+                count[0]++;
+                return false;
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * @param nanos   the time of every run, sorted here
+     * @param objects the objects of the heap, 0 for a tool that does not walk it
+     */
+    private static void printResult(PrintStream out, String toolName, long[] nanos, long reads, long bytes,
+                                    long objects) {
+        long first = nanos[0];
+        Arrays.sort(nanos);
+        long median = nanos[nanos.length / 2];
+        String throughput = objects > 0 && median > 0
+                ? String.format("%.0f", objects / (median / 1e9)) : "-";
+        out.printf("%20s%12.3f%12.3f%12.3f%16d%16d%16s\n", toolName, first / 1e6, median / 1e6,
+                nanos[nanos.length - 1] / 1e6, reads, bytes, throughput);
+    }
+
+    /**
+     * The tools as their main() runs them by default, leaving out what only adds output.
+     */
+    private static Tool newTool(String name) {
+        switch (name) {
+            case "classes":
+                return new PrintClassesJDK8(null, true);
+            case "stringTable":
+                return new PrintStringTableJDK8();
+            case "symbolTable":
+                return new PrintSymbolTableJDK8();
+            case "codeCache":
+                return new PrintCodeCacheJDK8(true);
+            case "monitors":
+                return new PrintMonitorsJDK8();
+            case "threadAllocation":
+                return new PrintThreadAllocationJDK8();
+            case "directMemory":
+                return new PrintDirectMemorySizeJDK8(false, false);
+            case "generations":
+                return new PrintHeapInstancesStatsGroupByGenerationJDK8();
+            case "duplicateStrings":
+                return new PrintDuplicateStringsJDK8(50, PrintDuplicateStringsJDK8.DEFAULT_MAX_ENTRIES);
+            case "collectionWaste":
+                return new PrintCollectionWasteJDK8();
+            case "retainedSize":
+                return new PrintRetainedSizeJDK8(30, new File(System.getProperty("java.io.tmpdir")));
+            case "mappedBuffers":
+                return new PrintMappedBuffersJDK8();
+            case "diagnosticReport":
+                return new PrintDiagnosticReportJDK8();
+            default:
+                throw new IllegalArgumentException(name);
+        }
+    }
+
+    public String getName() {
+        return "benchmarkTools";
+    }
+}
@@ -0,0 +1,365 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.HotSpotAgent;
+import sun.jvm.hotspot.debugger.Debugger;
+import sun.jvm.hotspot.debugger.DebuggerBase;
+import sun.jvm.hotspot.debugger.Page;
+import sun.jvm.hotspot.debugger.PageCache;
+import sun.jvm.hotspot.debugger.PageFetcher;
+import sun.jvm.hotspot.debugger.ReadResult;
+import sun.jvm.hotspot.debugger.UnmappedAddressException;
+import sun.jvm.hotspot.runtime.VM;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * LRU page cache installed under the SA debugger's memory reads.
+ * SA already caches target memory by page, but a miss reads a single page through the debugger. This cache reads ahead
+ * in growing chunks while misses are sequential, as in a heap walk, and for core files serves pages straight from a
+ * memory mapping of the core's PT_LOAD segments, falling back to the debugger for anything the core does not contain.
+ * <p>
+ * The cache size and the largest read-ahead are set with -DcacheNumPages (the property SA itself reads) and
+ * -DreadAheadPages.
+ * <p>
+ */
+class DebuggerPageCache extends PageCache {
+    private static final long PAGE_SIZE = 4096;
+    private static final int DEFAULT_CACHE_PAGES = 16 * 1024;
+    private static final int DEFAULT_READ_AHEAD_PAGES = 64;
+    private static final DebuggerPageCache DISABLED = new DebuggerPageCache(new ReadAheadFetcher(null, 1, null));
+    private static DebuggerPageCache installed;
+
+    private final ReadAheadFetcher fetcher;
+    private long accesses;
+
+    private DebuggerPageCache(ReadAheadFetcher fetcher) {
+        super(PAGE_SIZE, Integer.getInteger("cacheNumPages", DEFAULT_CACHE_PAGES), fetcher);
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * Replace the page cache of the agent's debugger. Returns a cache that prints nothing when the agent is null,
+     * which is the case for a tool run from another tool, or when its debugger has no page cache (e.g. remote).
+     */
+    static DebuggerPageCache install(HotSpotAgent agent) {
+        if (agent == null || !(agent.getDebugger() instanceof DebuggerBase)) return DISABLED;
+
+        DebuggerBase debugger = (DebuggerBase) agent.getDebugger();
+        try {
+            Field cacheField = DebuggerBase.class.getDeclaredField("cache");
+            cacheField.setAccessible(true);
+            Object current = cacheField.get(debugger);
+            if (current == null) return DISABLED;
+            if (current instanceof DebuggerPageCache) return (DebuggerPageCache) current;
+
+            int readAheadPages = Math.max(1, Integer.getInteger("readAheadPages", DEFAULT_READ_AHEAD_PAGES));
+            DebuggerPageCache cache = new DebuggerPageCache(
+                    new ReadAheadFetcher(debugger, readAheadPages, CoreSegments.map(coreFileName(agent))));
+            cacheField.set(debugger, cache);
+            installed = cache;
+            return cache;
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Could not install page cache: " + e);
+            return DISABLED;
+        }
+    }
+
+    /**
+     * Read a range of target memory in one call, through the installed cache if there is one.
+     */
+    static byte[] readBytes(long address, long length) throws UnmappedAddressException {
+        if (installed != null) {
+            return installed.getData(address, length);
+        }
+        ReadResult result = VM.getVM().getDebugger().readBytesFromProcess(address, length);
+        if (result.getData() == null) {
+            throw new UnmappedAddressException(result.getFailureAddress());
+        }
+        return result.getData();
+    }
+
+    static String coreFileName(HotSpotAgent agent) throws ReflectiveOperationException {
+        Field coreFileNameField = HotSpotAgent.class.getDeclaredField("coreFileName");
+        coreFileNameField.setAccessible(true);
+        return (String) coreFileNameField.get(agent);
+    }
+
+    @Override
+    public synchronized byte[] getData(long address, long length) throws UnmappedAddressException {
+        accesses++;
+        return super.getData(address, length);
+    }
+
+    @Override
+    public synchronized boolean getBoolean(long address) {
+        accesses++;
+        return super.getBoolean(address);
+    }
+
+    @Override
+    public synchronized byte getByte(long address) {
+        accesses++;
+        return super.getByte(address);
+    }
+
+    @Override
+    public synchronized short getShort(long address, boolean bigEndian) {
+        accesses++;
+        return super.getShort(address, bigEndian);
+    }
+
+    @Override
+    public synchronized char getChar(long address, boolean bigEndian) {
+        accesses++;
+        return super.getChar(address, bigEndian);
+    }
+
+    @Override
+    public synchronized int getInt(long address, boolean bigEndian) {
+        accesses++;
+        return super.getInt(address, bigEndian);
+    }
+
+    @Override
+    public synchronized long getLong(long address, boolean bigEndian) {
+        accesses++;
+        return super.getLong(address, bigEndian);
+    }
+
+    @Override
+    public synchronized float getFloat(long address, boolean bigEndian) {
+        accesses++;
+        return super.getFloat(address, bigEndian);
+    }
+
+    @Override
+    public synchronized double getDouble(long address, boolean bigEndian) {
+        accesses++;
+        return super.getDouble(address, bigEndian);
+    }
+
+    /**
+     * SA clears the cache when the target is resumed, and the read-ahead chunk is as stale as the pages by then.
+     */
+    @Override
+    public synchronized void clear() {
+        super.clear();
+        fetcher.forgetChunk();
+    }
+
+    synchronized long debuggerReads() {
+        return fetcher.debuggerReads;
+    }
+
+    synchronized long debuggerBytes() {
+        return fetcher.debuggerBytes;
+    }
+
+    synchronized long mappedBytes() {
+        return fetcher.mappedBytes;
+    }
+
+    synchronized void printStats(PrintStream out) {
+        if (this == DISABLED) return;
+
+        long misses = fetcher.pageFetches;
+        out.printf("Page cache: %d reads, %d page misses, hit rate %.2f%%\n", accesses, misses,
+                accesses == 0 ? 0 : Math.max(0, accesses - misses) * 100.0 / accesses);
+        out.printf("  debugger: %d reads, %d bytes; read-ahead served %d pages; core mapping served %d bytes\n",
+                fetcher.debuggerReads, fetcher.debuggerBytes, fetcher.readAheadHits, fetcher.mappedBytes);
+    }
+
+    /**
+     * Fetches a chunk on a miss right after the previously fetched pages and keeps it to serve the following pages.
+     * The chunk doubles with every such miss up to readAheadPages pages, and any other miss fetches a single page: a
+     * live process is read through ptrace one word at a time, so reading ahead of scattered metadata costs more than it
+     * saves.
+     */
+    private static class ReadAheadFetcher implements PageFetcher {
+        private final Debugger debugger;
+        private final long maxChunkSize;
+        private final CoreSegments core;
+        private long chunkBase = -1;
+        private byte[] chunk;
+        private long chunkSize;
+        private long fetchedEnd = -1;
+
+        private long pageFetches;
+        private long readAheadHits;
+        private long debuggerReads;
+        private long debuggerBytes;
+        private long mappedBytes;
+
+        ReadAheadFetcher(Debugger debugger, int readAheadPages, CoreSegments core) {
+            this.debugger = debugger;
+            this.maxChunkSize = readAheadPages * PAGE_SIZE;
+            this.core = core;
+        }
+
+        @Override
+        public Page fetchPage(long pageBaseAddress, long numBytes) {
+            pageFetches++;
+
+            if (core != null) {
+                byte[] data = core.read(pageBaseAddress, (int) numBytes);
+                if (data != null) {
+                    mappedBytes += numBytes;
+                    return new Page(pageBaseAddress, data);
+                }
+            }
+
+            if (chunk != null && pageBaseAddress >= chunkBase && pageBaseAddress + numBytes <= chunkBase + chunk.length) {
+                readAheadHits++;
+                return new Page(pageBaseAddress, slice(chunk, pageBaseAddress - chunkBase, numBytes));
+            }
+
+            chunkSize = pageBaseAddress == fetchedEnd ? Math.min(Math.max(chunkSize, numBytes) * 2, maxChunkSize) : numBytes;
+            if (chunkSize > numBytes) {
+                ReadResult result = read(pageBaseAddress, chunkSize);
+                if (result.getData() != null) {
+                    chunk = result.getData();
+                    chunkBase = pageBaseAddress;
+                    fetchedEnd = pageBaseAddress + chunkSize;
+                    return new Page(pageBaseAddress, slice(chunk, 0, numBytes));
+                }
+                // part of the chunk is unmapped, fall back to the single page
+            }
+
+            fetchedEnd = pageBaseAddress + numBytes;
+            ReadResult result = read(pageBaseAddress, numBytes);
+            if (result.getData() == null) {
+                return new Page(pageBaseAddress, numBytes);
+            }
+            return new Page(pageBaseAddress, result.getData());
+        }
+
+        void forgetChunk() {
+            chunk = null;
+            chunkBase = -1;
+            chunkSize = 0;
+            fetchedEnd = -1;
+        }
+
+        private ReadResult read(long address, long numBytes) {
+            debuggerReads++;
+            ReadResult result = debugger.readBytesFromProcess(address, numBytes);
+            if (result.getData() != null) {
+                debuggerBytes += numBytes;
+            }
+            return result;
+        }
+
+        private static byte[] slice(byte[] data, long offset, long numBytes) {
+            byte[] page = new byte[(int) numBytes];
+            System.arraycopy(data, (int) offset, page, 0, (int) numBytes);
+            return page;
+        }
+    }
+
+    /**
+     * The PT_LOAD segments of an ELF64 core file, memory-mapped read-only.
+     */
+    private static class CoreSegments {
+        private static final int PT_LOAD = 1;
+        private static final long MAX_MAPPING = 1L << 30;
+
+        private final long[] starts;
+        private final long[] ends;
+        private final MappedByteBuffer[] buffers;
+
+        private CoreSegments(long[] starts, long[] ends, MappedByteBuffer[] buffers) {
+            this.starts = starts;
+            this.ends = ends;
+            this.buffers = buffers;
+        }
+
+        static CoreSegments map(String coreFileName) {
+            if (coreFileName == null) return null;
+
+            try (RandomAccessFile file = new RandomAccessFile(coreFileName, "r")) {
+                FileChannel channel = file.getChannel();
+                ByteBuffer header = ByteBuffer.allocate(64);
+                channel.read(header, 0);
+                header.flip();
+                // only ELFCLASS64 little-endian cores, everything else is left to the debugger
+                if (header.limit() < 64 || header.getInt(0) != 0x7f454c46 || header.get(4) != 2 || header.get(5) != 1) {
+                    return null;
+                }
+                header.order(ByteOrder.LITTLE_ENDIAN);
+                long phoff = header.getLong(0x20);
+                int phentsize = header.getShort(0x36) & 0xffff;
+                int phnum = header.getShort(0x38) & 0xffff;
+
+                ByteBuffer phdrs = ByteBuffer.allocate(phentsize * phnum).order(ByteOrder.LITTLE_ENDIAN);
+                channel.read(phdrs, phoff);
+
+                List<long[]> segments = new ArrayList<>();
+                for (int i = 0; i < phnum; i++) {
+                    int base = i * phentsize;
+                    if (phdrs.getInt(base) != PT_LOAD) continue;
+                    long offset = phdrs.getLong(base + 8);
+                    long vaddr = phdrs.getLong(base + 16);
+                    long filesz = phdrs.getLong(base + 32);
+                    // split so every mapping fits in a MappedByteBuffer
+                    for (long done = 0; done < filesz; done += MAX_MAPPING) {
+                        segments.add(new long[]{vaddr + done, offset + done, Math.min(MAX_MAPPING, filesz - done)});
+                    }
+                }
+                segments.sort(new Comparator<long[]>() {
+                    @Override
+                    public int compare(long[] o1, long[] o2) {
+                        return Long.compare(o1[0], o2[0]);
+                    }
+                });
+
+                long[] starts = new long[segments.size()];
+                long[] ends = new long[segments.size()];
+                MappedByteBuffer[] buffers = new MappedByteBuffer[segments.size()];
+                for (int i = 0; i < segments.size(); i++) {
+                    long[] segment = segments.get(i);
+                    starts[i] = segment[0];
+                    ends[i] = segment[0] + segment[2];
+                    buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, segment[1], segment[2]);
+                }
+                return new CoreSegments(starts, ends, buffers);
+            } catch (IOException e) {
+                System.err.println("Could not map core file " + coreFileName + ": " + e);
+                return null;
+            }
+        }
+
+        /**
+         * @return the bytes at the address, or null if they are not all in one mapped segment
+         */
+        byte[] read(long address, int length) {
+            int low = 0;
+            int high = starts.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (address < starts[mid]) {
+                    high = mid - 1;
+                } else if (address >= ends[mid]) {
+                    low = mid + 1;
+                } else {
+                    if (address + length > ends[mid]) return null;
+                    byte[] data = new byte[length];
+                    ByteBuffer buffer = buffers[mid].duplicate();
+                    buffer.position((int) (address - starts[mid]));
+                    buffer.get(data);
+                    return data;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.github.leoliang;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rank classes by heap growth across a series of histogram snapshots written by
+ * PrintHeapInstancesStatsGroupByGenerationJDK8 -s.
+ * Snapshots are read one at a time in timestamp order and folded into a least squares fit of size against time per
+ * class and generation, so memory use is bounded by the number of classes rather than the number of snapshots.
+ * A class that keeps growing in the old generation across many snapshots is a leak suspect.
+ * Usage: java -cp . com.github.leoliang.DiffHeapHistogramSnapshots [-n top] [-gen eden|survivor|old|humongous|untyped|all] &lt;snapshot&gt;... <br />
+ * This class does not attach to a JVM, sa-jdi.jar is not needed.
+ * <p>
+ */
+public class DiffHeapHistogramSnapshots {
+    private static final int GENERATIONS = HistogramSnapshot.GENERATION_NAMES.length;
+    private static final int TOTAL = GENERATIONS;
+
+    private final int top;
+    private final int rankColumn;
+
+    private final Map<String, Trend> trends = new HashMap<>();
+    private final boolean[] usedGenerations = new boolean[GENERATIONS];
+    private int snapshots;
+    private double sumT;
+    private double sumTT;
+
+    public DiffHeapHistogramSnapshots(int top, int rankColumn) {
+        this.top = top;
+        this.rankColumn = rankColumn;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int top = 50;
+        int rankColumn = TOTAL;
+
+        int used = 0;
+        while (used < args.length - 1 && args[used].startsWith("-")) {
+            if ("-n".equals(args[used])) {
+                top = Integer.parseInt(args[used + 1]);
+            } else if ("-gen".equals(args[used])) {
+                rankColumn = "all".equals(args[used + 1]) ? TOTAL
+                        : Arrays.asList(HistogramSnapshot.GENERATION_NAMES).indexOf(args[used + 1]);
+                if (rankColumn < 0) {
+                    System.err.println("Usage: java com.github.leoliang.DiffHeapHistogramSnapshots [-n top] [-gen eden|survivor|old|humongous|untyped|all] <snapshot> <snapshot>...");
+                    System.exit(1);
+                }
+            } else {
+                break;
+            }
+            used += 2;
+        }
+
+        if (args.length - used < 2) {
+            System.err.println("Usage: java com.github.leoliang.DiffHeapHistogramSnapshots [-n top] [-gen eden|survivor|old|humongous|untyped|all] <snapshot> <snapshot>...");
+            System.exit(1);
+        }
+        String[] files = Arrays.copyOfRange(args, used, args.length);
+
+        new DiffHeapHistogramSnapshots(top, rankColumn).diff(files);
+    }
+
+    private void diff(String[] files) throws IOException {
+        final long[] timestamps = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            timestamps[i] = HistogramSnapshot.readTimestamp(files[i]);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare(timestamps[o1], timestamps[o2]);
+            }
+        });
+
+        long first = timestamps[order[0]];
+        long last = timestamps[order[order.length - 1]];
+        // snapshots taken in the same millisecond, e.g. from an old series, are spaced one unit apart
+        boolean timed = last > first;
+        for (int k = 0; k < order.length; k++) {
+            double t = timed ? (timestamps[order[k]] - first) / 3600e3 : k;
+            add(HistogramSnapshot.read(files[order[k]]), k, t);
+        }
+
+        System.out.printf("%d snapshots over %s, growth per %s, ranked by %s\n", snapshots,
+                timed ? String.format("%.2f hours", (last - first) / 3600e3) : "an unknown time",
+                timed ? "hour" : "snapshot",
+                rankColumn == TOTAL ? "all generations" : HistogramSnapshot.GENERATION_NAMES[rankColumn]);
+        print();
+    }
+
+    private void add(HistogramSnapshot snapshot, int index, double t) {
+        snapshots++;
+        sumT += t;
+        sumTT += t * t;
+
+        int[] columns = new int[snapshot.generations.length];
+        for (int g = 0; g < columns.length; g++) {
+            columns[g] = Arrays.asList(HistogramSnapshot.GENERATION_NAMES).indexOf(snapshot.generations[g]);
+        }
+
+        for (int i = 0; i < snapshot.names.length; i++) {
+            Trend trend = trends.get(snapshot.names[i]);
+            if (trend == null) {
+                trend = new Trend();
+                trends.put(snapshot.names[i], trend);
+            }
+
+            long totalSize = 0;
+            long totalCount = 0;
+            for (int g = 0; g < columns.length; g++) {
+                if (columns[g] < 0) continue;
+                long size = snapshot.sizes[g][i];
+                trend.sumSize[columns[g]] += size;
+                trend.sumTSize[columns[g]] += t * size;
+                usedGenerations[columns[g]] |= size != 0;
+                totalSize += size;
+                totalCount += snapshot.counts[g][i];
+            }
+            trend.sumSize[TOTAL] += totalSize;
+            trend.sumTSize[TOTAL] += t * totalSize;
+            trend.sumCount += totalCount;
+            trend.sumTCount += t * totalCount;
+
+            // a class missing from the previous snapshot had no instances there
+            long previous = trend.lastSeen == index - 1 ? trend.lastSize : 0;
+            if (index > 0 && totalSize > previous) {
+                trend.increases++;
+            }
+            if (index == 0) {
+                trend.firstSize = totalSize;
+            }
+            trend.lastSize = totalSize;
+            trend.lastSeen = index;
+        }
+    }
+
+    private double slope(double sumY, double sumTY) {
+        double denominator = snapshots * sumTT - sumT * sumT;
+        return denominator == 0 ? 0 : (snapshots * sumTY - sumT * sumY) / denominator;
+    }
+
+    private void print() {
+        List<Map.Entry<String, Trend>> entries = new ArrayList<>(trends.entrySet());
+        final double[] rankSlopes = new double[entries.size()];
+        Integer[] order = new Integer[entries.size()];
+        for (int i = 0; i < order.length; i++) {
+            Trend trend = entries.get(i).getValue();
+            rankSlopes[i] = slope(trend.sumSize[rankColumn], trend.sumTSize[rankColumn]);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Double.compare(rankSlopes[o2], rankSlopes[o1]);
+            }
+        });
+
+        StringBuilder header = new StringBuilder(String.format("%100s%16s", "class", "all bytes"));
+        for (int g = 0; g < GENERATIONS; g++) {
+            if (usedGenerations[g]) {
+                header.append(String.format("%16s", HistogramSnapshot.GENERATION_NAMES[g] + " bytes"));
+            }
+        }
+        header.append(String.format("%12s%16s%16s%8s", "count", "first size", "last size", "grew"));
+        System.out.println(header);
+
+        for (int i = 0; i < Math.min(top, order.length); i++) {
+            String name = entries.get(order[i]).getKey();
+            Trend trend = entries.get(order[i]).getValue();
+            StringBuilder row = new StringBuilder(String.format("%100s%16.0f", name,
+                    slope(trend.sumSize[TOTAL], trend.sumTSize[TOTAL])));
+            for (int g = 0; g < GENERATIONS; g++) {
+                if (usedGenerations[g]) {
+                    row.append(String.format("%16.0f", slope(trend.sumSize[g], trend.sumTSize[g])));
+                }
+            }
+            long lastSize = trend.lastSeen == snapshots - 1 ? trend.lastSize : 0;
+            row.append(String.format("%12.0f%16d%16d%8s", slope(trend.sumCount, trend.sumTCount), trend.firstSize,
+                    lastSize, trend.increases + "/" + (snapshots - 1)));
+            System.out.println(row);
+        }
+    }
+
+    /**
+     * Running sums of one class for the least squares fits, indexed by generation with the total last.
+     */
+    private static class Trend {
+        private final double[] sumSize = new double[GENERATIONS + 1];
+        private final double[] sumTSize = new double[GENERATIONS + 1];
+        private double sumCount;
+        private double sumTCount;
+        private long firstSize;
+        private long lastSize;
+        private int lastSeen = -2;
+        private int increases;
+    }
+}
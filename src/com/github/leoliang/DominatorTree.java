@@ -0,0 +1,219 @@
+package com.github.leoliang;
+
+import java.io.File;
+import java.util.BitSet;
+
+/**
+ * Dominator tree of a graph held in compressed sparse rows, computed with the Lengauer-Tarjan algorithm with path
+ * compression. Every array is memory-mapped and every recursion is an explicit stack, so the graph is bounded by disk
+ * rather than by the java heap or the thread stack.
+ * Nodes are 0 to nodeCount - 1, the successors of node v are succ[succStart[v]] to succ[succStart[v + 1] - 1], and a
+ * virtual root with id nodeCount points to the given roots.
+ * <p>
+ */
+class DominatorTree {
+    private final File directory;
+    private final int nodeCount;
+    private final int root;
+    private final MappedLongArray succStart;
+    private final MappedIntArray succ;
+    private final int[] roots;
+
+    // preorder numbers start at 1, 0 is an unvisited node
+    private MappedIntArray semi;
+    private MappedIntArray vertex;
+    private MappedIntArray parent;
+    private MappedIntArray label;
+    // ancestor and bucket links hold node + 1, 0 is none
+    private MappedIntArray ancestor;
+    private MappedIntArray path;
+    private MappedIntArray idom;
+    private int reachable;
+
+    DominatorTree(File directory, int nodeCount, MappedLongArray succStart, MappedIntArray succ, int[] roots) {
+        this.directory = directory;
+        this.nodeCount = nodeCount;
+        this.root = nodeCount;
+        this.succStart = succStart;
+        this.succ = succ;
+        this.roots = roots;
+    }
+
+    void compute() {
+        MappedLongArray predStart = new MappedLongArray(directory, "pred-start");
+        MappedIntArray pred = new MappedIntArray(directory, "pred");
+        buildPredecessors(predStart, pred);
+
+        semi = new MappedIntArray(directory, "semi");
+        vertex = new MappedIntArray(directory, "vertex");
+        parent = new MappedIntArray(directory, "parent");
+        label = new MappedIntArray(directory, "label");
+        ancestor = new MappedIntArray(directory, "ancestor");
+        path = new MappedIntArray(directory, "path");
+        idom = new MappedIntArray(directory, "idom");
+        MappedIntArray bucketHead = new MappedIntArray(directory, "bucket-head");
+        MappedIntArray bucketNext = new MappedIntArray(directory, "bucket-next");
+        depthFirstSearch();
+
+        BitSet isRoot = new BitSet(nodeCount);
+        for (int r : roots) {
+            isRoot.set(r);
+        }
+
+        for (int i = reachable; i >= 2; i--) {
+            int w = vertex.get(i);
+            int semiW = semi.get(w);
+            if (isRoot.get(w)) {
+                // the virtual root is a predecessor and has the lowest preorder number
+                semiW = 1;
+            } else {
+                for (long e = predStart.get(w), end = predStart.get(w + 1); e < end; e++) {
+                    int v = pred.get(e);
+                    if (semi.get(v) == 0) continue;
+                    semiW = Math.min(semiW, semi.get(eval(v)));
+                }
+            }
+            semi.set(w, semiW);
+
+            int s = vertex.get(semiW);
+            bucketNext.set(w, bucketHead.get(s));
+            bucketHead.set(s, w + 1);
+
+            int p = parent.get(w);
+            ancestor.set(w, p + 1);
+            for (int b = bucketHead.get(p); b != 0; b = bucketNext.get(b - 1)) {
+                int v = b - 1;
+                int u = eval(v);
+                idom.set(v, semi.get(u) < semi.get(v) ? u : p);
+            }
+            bucketHead.set(p, 0);
+        }
+
+        for (int i = 2; i <= reachable; i++) {
+            int w = vertex.get(i);
+            if (idom.get(w) != vertex.get(semi.get(w))) {
+                idom.set(w, idom.get(idom.get(w)));
+            }
+        }
+        idom.set(root, root);
+
+        predStart.close();
+        pred.close();
+        semi.close();
+        parent.close();
+        label.close();
+        ancestor.close();
+        path.close();
+        bucketHead.close();
+        bucketNext.close();
+    }
+
+    private void buildPredecessors(MappedLongArray predStart, MappedIntArray pred) {
+        for (int v = 0; v < nodeCount; v++) {
+            for (long e = succStart.get(v), end = succStart.get(v + 1); e < end; e++) {
+                predStart.add(succ.get(e), 1);
+            }
+        }
+        // end offsets first, then filling each row backwards leaves its start offset
+        long total = 0;
+        for (int v = 0; v < nodeCount; v++) {
+            total += predStart.get(v);
+            predStart.set(v, total);
+        }
+        predStart.set(nodeCount, total);
+        for (int v = 0; v < nodeCount; v++) {
+            for (long e = succStart.get(v), end = succStart.get(v + 1); e < end; e++) {
+                int t = succ.get(e);
+                long slot = predStart.get(t) - 1;
+                predStart.set(t, slot);
+                pred.set(slot, v);
+            }
+        }
+    }
+
+    private void depthFirstSearch() {
+        MappedIntArray stackNodes = new MappedIntArray(directory, "dfs-nodes");
+        MappedLongArray stackEdges = new MappedLongArray(directory, "dfs-edges");
+        int count = 0;
+        int depth = 0;
+
+        semi.set(root, ++count);
+        vertex.set(count, root);
+        label.set(root, root);
+        stackNodes.set(depth, root);
+        stackEdges.set(depth++, 0);
+        while (depth > 0) {
+            int v = stackNodes.get(depth - 1);
+            long e = stackEdges.get(depth - 1);
+            long end = v == root ? roots.length : succStart.get(v + 1);
+            if (e == end) {
+                depth--;
+                continue;
+            }
+            stackEdges.set(depth - 1, e + 1);
+
+            int w = v == root ? roots[(int) e] : succ.get(e);
+            if (semi.get(w) != 0) continue;
+            semi.set(w, ++count);
+            vertex.set(count, w);
+            label.set(w, w);
+            parent.set(w, v);
+            stackNodes.set(depth, w);
+            stackEdges.set(depth++, succStart.get(w));
+        }
+        reachable = count;
+
+        stackNodes.close();
+        stackEdges.close();
+    }
+
+    /**
+     * The node with the lowest semidominator on the forest path to v, compressing the path on the way.
+     */
+    private int eval(int v) {
+        if (ancestor.get(v) == 0) return v;
+
+        int depth = 0;
+        int x = v;
+        while (ancestor.get(ancestor.get(x) - 1) != 0) {
+            path.set(depth++, x);
+            x = ancestor.get(x) - 1;
+        }
+        while (depth > 0) {
+            int y = path.get(--depth);
+            int a = ancestor.get(y) - 1;
+            if (semi.get(label.get(a)) < semi.get(label.get(y))) {
+                label.set(y, label.get(a));
+            }
+            ancestor.set(y, ancestor.get(a));
+        }
+        return label.get(v);
+    }
+
+    int root() {
+        return root;
+    }
+
+    /**
+     * @return the number of nodes reachable from the virtual root, the root included
+     */
+    int reachableCount() {
+        return reachable;
+    }
+
+    /**
+     * @param preorder 1 for the virtual root up to reachableCount()
+     */
+    int vertex(int preorder) {
+        return vertex.get(preorder);
+    }
+
+    int idom(int node) {
+        return idom.get(node);
+    }
+
+    void close() {
+        vertex.close();
+        idom.close();
+    }
+}
@@ -0,0 +1,46 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.oops.HeapVisitor;
+import sun.jvm.hotspot.oops.Oop;
+
+/**
+ * Feeds every object of a single heap walk to several visitors, so they share one ObjectHeap.iterate pass.
+ * A visitor that returns true from doObj stops receiving objects; the walk itself stops once all of them have.
+ * <p>
+ */
+class FanOutHeapVisitor implements HeapVisitor {
+    private final HeapVisitor[] visitors;
+    private final boolean[] done;
+    private int remaining;
+
+    FanOutHeapVisitor(HeapVisitor... visitors) {
+        this.visitors = visitors;
+        this.done = new boolean[visitors.length];
+        this.remaining = visitors.length;
+    }
+
+    @Override
+    public void prologue(long size) {
+        for (HeapVisitor visitor : visitors) {
+            visitor.prologue(size);
+        }
+    }
+
+    @Override
+    public boolean doObj(Oop oop) {
+        for (int i = 0; i < visitors.length; i++) {
+            if (!done[i] && visitors[i].doObj(oop)) {
+                done[i] = true;
+                remaining--;
+            }
+        }
+        return remaining == 0;
+    }
+
+    @Override
+    public void epilogue() {
+        for (HeapVisitor visitor : visitors) {
+            visitor.epilogue();
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.debugger.Address;
+import sun.jvm.hotspot.gc_implementation.g1.G1CollectedHeap;
+import sun.jvm.hotspot.gc_implementation.g1.HeapRegion;
+import sun.jvm.hotspot.memory.Space;
+import sun.jvm.hotspot.memory.SpaceClosure;
+import sun.jvm.hotspot.oops.Oop;
+import sun.jvm.hotspot.runtime.VM;
+import sun.jvm.hotspot.types.CIntegerField;
+import sun.jvm.hotspot.types.Field;
+import sun.jvm.hotspot.types.Type;
+import sun.jvm.hotspot.types.TypeDataBase;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per-region classification of a G1 heap, resolved once before the walk.
+ * Regions are aligned to the region size, so the region of an object is a subtract and shift of its raw address.
+ * <p>
+ * The JDK8 agent does not export HeapRegion::_type, so unless the target VM's type database has it, free and
+ * humongous regions are recognized from their layout and the remaining allocated regions are reported as untyped.
+ * <p>
+ */
+class G1RegionTable {
+    static final byte FREE = 0;
+    static final byte EDEN = 1;
+    static final byte SURVIVOR = 2;
+    static final byte OLD = 3;
+    static final byte HUMONGOUS_START = 4;
+    static final byte HUMONGOUS_CONTINUES = 5;
+    static final byte UNTYPED = 6;
+
+    private static final String[] TYPE_NAMES = {
+            "free", "eden", "survivor", "old", "humongous start", "humongous continues", "untyped"
+    };
+
+    private final long base;
+    private final int shift;
+    private final long regionBytes;
+    private final byte[] types;
+    private final long[] used;
+    private final long[] objectCounts;
+    private final long[] objectBytes;
+    private final boolean typed;
+
+    private G1RegionTable(long base, int shift, long regionBytes, int length, boolean typed) {
+        this.base = base;
+        this.shift = shift;
+        this.regionBytes = regionBytes;
+        this.types = new byte[length];
+        this.used = new long[length];
+        this.objectCounts = new long[length];
+        this.objectBytes = new long[length];
+        this.typed = typed;
+    }
+
+    static G1RegionTable build(G1CollectedHeap heap) {
+        final List<HeapRegion> regions = new ArrayList<>();
+        heap.heapRegionIterate(new SpaceClosure() {
+            @Override
+            public void doSpace(Space space) {
+                regions.add((HeapRegion) space);
+            }
+        });
+
+        long regionBytes = HeapRegion.grainBytes();
+        long base = Long.MAX_VALUE;
+        long last = 0;
+        for (HeapRegion region : regions) {
+            long bottom = GenerationLookupTable.rawAddress(region.bottom());
+            base = Math.min(base, bottom);
+            last = Math.max(last, bottom);
+        }
+        int shift = Long.numberOfTrailingZeros(regionBytes);
+        int length = regions.isEmpty() ? 0 : (int) ((last - base) >>> shift) + 1;
+
+        RegionTypeReader typeReader = RegionTypeReader.create();
+        G1RegionTable table = new G1RegionTable(base, shift, regionBytes, length, typeReader != null);
+
+        long humongousEnd = 0;
+        for (HeapRegion region : regions) {
+            long bottom = GenerationLookupTable.rawAddress(region.bottom());
+            int index = (int) ((bottom - base) >>> shift);
+            long regionUsed = region.used();
+            table.used[index] = regionUsed;
+
+            byte type;
+            if (typeReader != null) {
+                type = typeReader.typeOf(region.getAddress());
+            } else if (bottom < humongousEnd) {
+                type = HUMONGOUS_CONTINUES;
+            } else if (regionUsed == 0) {
+                type = FREE;
+            } else {
+                // G1 allocates objects of at least half a region directly as humongous
+                Oop first = VM.getVM().getObjectHeap().newOop(region.bottomAsOopHandle());
+                long firstSize = first == null ? 0 : first.getObjectSize();
+                if (firstSize >= regionBytes / 2) {
+                    type = HUMONGOUS_START;
+                    humongousEnd = bottom + firstSize;
+                } else {
+                    type = UNTYPED;
+                }
+            }
+            table.types[index] = type;
+        }
+        return table;
+    }
+
+    int regionIndex(long address) {
+        long index = (address - base) >>> shift;
+        return index < types.length ? (int) index : -1;
+    }
+
+    byte typeOf(long address) {
+        int index = regionIndex(address);
+        return index < 0 ? FREE : types[index];
+    }
+
+    void recordObject(long address, long size) {
+        int index = regionIndex(address);
+        if (index >= 0) {
+            objectCounts[index]++;
+            objectBytes[index] += size;
+        }
+    }
+
+    int regionCount() {
+        return types.length;
+    }
+
+    long regionBottom(int index) {
+        return base + ((long) index << shift);
+    }
+
+    long regionUsed(int index) {
+        return used[index];
+    }
+
+    byte regionType(int index) {
+        return types[index];
+    }
+
+    boolean isTyped() {
+        return typed;
+    }
+
+    static String typeName(byte type) {
+        return TYPE_NAMES[type];
+    }
+
+    /**
+     * Print region count, fill and humongous waste per region type, followed by a fill histogram in 10% buckets.
+     * Object bytes are what the walk parsed in the region; without a marking bitmap that includes dead objects.
+     */
+    void printRegionStats(PrintStream out) {
+        int typeCount = TYPE_NAMES.length;
+        long[] regionCounts = new long[typeCount];
+        long[] usedBytes = new long[typeCount];
+        long[] parsedBytes = new long[typeCount];
+        long[] parsedObjects = new long[typeCount];
+        long[][] fillBuckets = new long[typeCount][11];
+        long humongousObjectBytes = 0;
+        long humongousRegions = 0;
+
+        for (int i = 0; i < types.length; i++) {
+            byte type = types[i];
+            regionCounts[type]++;
+            usedBytes[type] += used[i];
+            parsedBytes[type] += objectBytes[i];
+            parsedObjects[type] += objectCounts[i];
+            fillBuckets[type][(int) (used[i] * 10 / regionBytes)]++;
+            if (type == HUMONGOUS_START) {
+                humongousObjectBytes += objectBytes[i];
+            }
+            if (type == HUMONGOUS_START || type == HUMONGOUS_CONTINUES) {
+                humongousRegions++;
+            }
+        }
+
+        out.printf("G1 regions: %d x %d KB%s\n", types.length, regionBytes / 1024,
+                typed ? "" : " (region types not exported by this VM, young and old regions are reported as untyped)");
+        out.printf("%20s%10s%16s%16s%12s%10s\n", "type", "regions", "used", "object bytes", "objects", "fill");
+        for (int type = 0; type < typeCount; type++) {
+            if (regionCounts[type] == 0) continue;
+            out.printf("%20s%10d%16d%16d%12d%9.1f%%\n", TYPE_NAMES[type], regionCounts[type], usedBytes[type],
+                    parsedBytes[type], parsedObjects[type], usedBytes[type] * 100.0 / (regionCounts[type] * regionBytes));
+        }
+        if (humongousRegions > 0) {
+            long waste = humongousRegions * regionBytes - humongousObjectBytes;
+            out.printf("humongous: %d regions hold %d bytes of objects, %d bytes (%.1f%%) lost to region tails\n",
+                    humongousRegions, humongousObjectBytes, waste, waste * 100.0 / (humongousRegions * regionBytes));
+        }
+
+        out.println("fill histogram (regions per 10% bucket):");
+        for (int type = 0; type < typeCount; type++) {
+            if (regionCounts[type] == 0 || type == FREE) continue;
+            StringBuilder sb = new StringBuilder();
+            for (long bucket : fillBuckets[type]) {
+                sb.append(String.format("%7d", bucket));
+            }
+            out.printf("%20s%s\n", TYPE_NAMES[type], sb);
+        }
+    }
+
+    void printRegions(PrintStream out) {
+        out.printf("%8s%20s%20s%16s%12s%16s\n", "index", "type", "bottom", "used", "objects", "object bytes");
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == FREE) continue;
+            out.printf("%8d%20s%#20x%16d%12d%16d\n", i, TYPE_NAMES[types[i]], base + ((long) i << shift), used[i],
+                    objectCounts[i], objectBytes[i]);
+        }
+    }
+
+    /**
+     * Reads HeapRegion::_type when the target VM exports it, as later HotSpot versions do.
+     */
+    private static class RegionTypeReader {
+        private final long typeOffset;
+        private final CIntegerField tagField;
+        private final int freeTag;
+        private final int edenTag;
+        private final int survivorTag;
+        private final int startsHumongousTag;
+        private final int continuesHumongousTag;
+
+        private RegionTypeReader(long typeOffset, CIntegerField tagField, int freeTag, int edenTag, int survivorTag,
+                                 int startsHumongousTag, int continuesHumongousTag) {
+            this.typeOffset = typeOffset;
+            this.tagField = tagField;
+            this.freeTag = freeTag;
+            this.edenTag = edenTag;
+            this.survivorTag = survivorTag;
+            this.startsHumongousTag = startsHumongousTag;
+            this.continuesHumongousTag = continuesHumongousTag;
+        }
+
+        static RegionTypeReader create() {
+            TypeDataBase db = VM.getVM().getTypeDataBase();
+            Type regionType = db.lookupType("HeapRegion", false);
+            Type heapRegionType = db.lookupType("HeapRegionType", false);
+            if (regionType == null || heapRegionType == null) return null;
+
+            Field typeField = regionType.getField("_type", false, false);
+            if (typeField == null || heapRegionType.getField("_tag", false, false) == null) return null;
+
+            Integer freeTag = db.lookupIntConstant("HeapRegionType::FreeTag", false);
+            Integer edenTag = db.lookupIntConstant("HeapRegionType::EdenTag", false);
+            Integer survivorTag = db.lookupIntConstant("HeapRegionType::SurvTag", false);
+            Integer startsHumongousTag = db.lookupIntConstant("HeapRegionType::StartsHumongousTag", false);
+            Integer continuesHumongousTag = db.lookupIntConstant("HeapRegionType::ContinuesHumongousTag", false);
+            if (freeTag == null || edenTag == null || survivorTag == null || startsHumongousTag == null
+                    || continuesHumongousTag == null) {
+                return null;
+            }
+            return new RegionTypeReader(typeField.getOffset(), heapRegionType.getCIntegerField("_tag"), freeTag,
+                    edenTag, survivorTag, startsHumongousTag, continuesHumongousTag);
+        }
+
+        byte typeOf(Address region) {
+            int tag = (int) tagField.getValue(region.addOffsetTo(typeOffset));
+            if (tag == freeTag) {
+                return FREE;
+            } else if (tag == edenTag) {
+                return EDEN;
+            } else if (tag == survivorTag) {
+                return SURVIVOR;
+            } else if (tag == startsHumongousTag) {
+                return HUMONGOUS_START;
+            } else if (tag == continuesHumongousTag) {
+                return HUMONGOUS_CONTINUES;
+            }
+            return OLD;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.debugger.Address;
+import sun.jvm.hotspot.gc_implementation.g1.G1CollectedHeap;
+import sun.jvm.hotspot.gc_implementation.parallelScavenge.PSOldGen;
+import sun.jvm.hotspot.gc_implementation.parallelScavenge.PSYoungGen;
+import sun.jvm.hotspot.gc_implementation.parallelScavenge.ParallelScavengeHeap;
+import sun.jvm.hotspot.gc_interface.CollectedHeap;
+import sun.jvm.hotspot.memory.DefNewGeneration;
+import sun.jvm.hotspot.memory.GenCollectedHeap;
+import sun.jvm.hotspot.memory.Generation;
+import sun.jvm.hotspot.memory.MemRegion;
+import sun.jvm.hotspot.runtime.VM;
+
+import java.util.Arrays;
+
+/**
+ * Address range table mapping a raw heap address to its generation.
+ * The space boundaries are resolved once from the heap before the walk, so classifying an object is a binary search
+ * over a handful of sorted ranges instead of an instanceof dispatch and a debugger read per object.
+ * On G1 the lookup is delegated to a {@link G1RegionTable} indexed by region.
+ * <p>
+ */
+class GenerationLookupTable {
+    static final int UNKNOWN = -1;
+    static final int EDEN = 0;
+    static final int SURVIVOR = 1;
+    static final int OLD = 2;
+    static final int HUMONGOUS = 3;
+    /**
+     * Allocated G1 region whose type the VM does not export.
+     */
+    static final int UNTYPED = 4;
+    static final int GENERATIONS = 5;
+
+    private final long[] starts;
+    private final long[] ends;
+    private final int[] generations;
+    private final G1RegionTable g1Regions;
+
+    private GenerationLookupTable(long[] starts, long[] ends, int[] generations, G1RegionTable g1Regions) {
+        this.starts = starts;
+        this.ends = ends;
+        this.generations = generations;
+        this.g1Regions = g1Regions;
+    }
+
+    static GenerationLookupTable build() {
+        CollectedHeap heap = VM.getVM().getUniverse().heap();
+        Builder builder = new Builder();
+        if (heap instanceof GenCollectedHeap) {
+            GenCollectedHeap genHeap = (GenCollectedHeap) heap;
+            DefNewGeneration gen0 = (DefNewGeneration) genHeap.getGen(0);
+            builder.add(gen0.eden().bottom(), gen0.eden().end(), EDEN);
+            builder.add(gen0.from().bottom(), gen0.from().end(), SURVIVOR);
+            Generation gen1 = genHeap.getGen(1);
+            MemRegion reserved = gen1.reserved();
+            builder.add(reserved.start(), reserved.end(), OLD);
+        } else if (heap instanceof ParallelScavengeHeap) {
+            PSYoungGen youngGen = ((ParallelScavengeHeap) heap).youngGen();
+            builder.add(youngGen.edenSpace().bottom(), youngGen.edenSpace().end(), EDEN);
+            builder.add(youngGen.fromSpace().bottom(), youngGen.fromSpace().end(), SURVIVOR);
+            PSOldGen oldGen = ((ParallelScavengeHeap) heap).oldGen();
+            builder.add(oldGen.objectSpace().bottom(), oldGen.objectSpace().end(), OLD);
+        } else if (heap instanceof G1CollectedHeap) {
+            return new GenerationLookupTable(new long[0], new long[0], new int[0],
+                    G1RegionTable.build((G1CollectedHeap) heap));
+        } else {
+            System.err.println("Unsupported heap for generation lookup: " + heap.getClass().getName());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Raw value of an address, as SA computes it for {@code Address.minus(null)}.
+     */
+    static long rawAddress(Address address) {
+        return address == null ? 0L : address.minus(null);
+    }
+
+    int generationOf(Address address) {
+        return generationOf(rawAddress(address));
+    }
+
+    int generationOf(long address) {
+        if (g1Regions != null) {
+            switch (g1Regions.typeOf(address)) {
+                case G1RegionTable.EDEN:
+                    return EDEN;
+                case G1RegionTable.SURVIVOR:
+                    return SURVIVOR;
+                case G1RegionTable.OLD:
+                    return OLD;
+                case G1RegionTable.HUMONGOUS_START:
+                case G1RegionTable.HUMONGOUS_CONTINUES:
+                    return HUMONGOUS;
+                case G1RegionTable.UNTYPED:
+                    return UNTYPED;
+                default:
+                    return UNKNOWN;
+            }
+        }
+
+        int low = 0;
+        int high = starts.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (address < starts[mid]) {
+                high = mid - 1;
+            } else if (address >= ends[mid]) {
+                low = mid + 1;
+            } else {
+                return generations[mid];
+            }
+        }
+        return UNKNOWN;
+    }
+
+    int size() {
+        return starts.length;
+    }
+
+    /**
+     * @return the region table when the heap is G1, otherwise null
+     */
+    G1RegionTable g1Regions() {
+        return g1Regions;
+    }
+
+    private static class Builder {
+        private long[] starts = new long[4];
+        private long[] ends = new long[4];
+        private int[] generations = new int[4];
+        private int size;
+
+        void add(Address start, Address end, int generation) {
+            long rawStart = rawAddress(start);
+            long rawEnd = rawAddress(end);
+            if (rawEnd <= rawStart) return;
+
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+                generations = Arrays.copyOf(generations, size * 2);
+            }
+            // insertion sort, there are only a handful of spaces
+            int i = size++;
+            while (i > 0 && starts[i - 1] > rawStart) {
+                starts[i] = starts[i - 1];
+                ends[i] = ends[i - 1];
+                generations[i] = generations[i - 1];
+                i--;
+            }
+            starts[i] = rawStart;
+            ends[i] = rawEnd;
+            generations[i] = generation;
+        }
+
+        GenerationLookupTable build() {
+            return new GenerationLookupTable(Arrays.copyOf(starts, size), Arrays.copyOf(ends, size),
+                    Arrays.copyOf(generations, size), null);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.debugger.Address;
+import sun.jvm.hotspot.runtime.VM;
+import sun.jvm.hotspot.types.Type;
+import sun.jvm.hotspot.types.TypeDataBase;
+import sun.jvm.hotspot.utilities.BasicHashtableEntry;
+import sun.jvm.hotspot.utilities.Hashtable;
+import sun.jvm.hotspot.utilities.HashtableEntry;
+
+import java.io.PrintStream;
+
+/**
+ * Walks the buckets of a VM hashtable (the StringTable or the SymbolTable) and prints its chain length distribution,
+ * the longest chains with their contents, and the bytes the table holds.
+ * Extends Hashtable only to reach its protected bucket accessors.
+ * <p>
+ */
+class HashtableHealth extends Hashtable {
+    private static final int LONGEST_CHAINS = 5;
+    private static final int MAX_PRINTED_CHARS = 80;
+    private static final int[] HISTOGRAM_BOUNDS = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 16, 32, 64};
+
+    private final String name;
+    private final String sizeFlag;
+    private final LiteralDescriber describer;
+
+    HashtableHealth(Hashtable table, String name, String sizeFlag, LiteralDescriber describer) {
+        super(table.getAddress());
+        this.name = name;
+        this.sizeFlag = sizeFlag;
+        this.describer = describer;
+    }
+
+    void print(PrintStream out) {
+        int buckets = tableSize();
+        long entries = 0;
+        long literalBytes = 0;
+        long probes = 0;
+        int maxLength = 0;
+        long[] histogram = new long[HISTOGRAM_BOUNDS.length];
+        int[] longestBuckets = new int[LONGEST_CHAINS];
+        int[] longestLengths = new int[LONGEST_CHAINS];
+
+        for (int i = 0; i < buckets; i++) {
+            int length = 0;
+            for (BasicHashtableEntry e = bucket(i); e != null; e = e.next()) {
+                length++;
+                literalBytes += describer.bytes(((HashtableEntry) e).literalValue());
+            }
+            entries += length;
+            // a successful lookup of the k-th entry of a chain compares k entries
+            probes += (long) length * (length + 1) / 2;
+            maxLength = Math.max(maxLength, length);
+            histogram[histogramBucket(length)]++;
+            insertLongest(longestBuckets, longestLengths, i, length);
+        }
+
+        TypeDataBase db = VM.getVM().getTypeDataBase();
+        long bucketBytes = (long) buckets * typeSize(db, "HashtableBucket<mtInternal>", VM.getVM().getAddressSize());
+        long entryBytes = entries * (typeSize(db, "BasicHashtableEntry<mtInternal>", 2 * VM.getVM().getAddressSize())
+                + VM.getVM().getAddressSize());
+        double loadFactor = buckets == 0 ? 0 : (double) entries / buckets;
+
+        out.printf("%s: %d buckets, %d entries, load factor %.2f, longest chain %d, %.2f entries compared per hit\n",
+                name, buckets, entries, loadFactor, maxLength, entries == 0 ? 0 : (double) probes / entries);
+        out.printf("  bytes: %d in buckets, %d in entries, %d in %s, %d total\n", bucketBytes, entryBytes, literalBytes,
+                describer.literalName(), bucketBytes + entryBytes + literalBytes);
+        if (loadFactor > 1) {
+            out.printf("  chains are longer than 1 on average, consider %s=%d\n", sizeFlag, nextPrime(entries));
+        }
+
+        out.println("  chain length histogram:");
+        for (int i = 0; i < HISTOGRAM_BOUNDS.length; i++) {
+            String label;
+            if (i == HISTOGRAM_BOUNDS.length - 1) {
+                label = HISTOGRAM_BOUNDS[i] + "+";
+            } else if (HISTOGRAM_BOUNDS[i + 1] - HISTOGRAM_BOUNDS[i] == 1) {
+                label = String.valueOf(HISTOGRAM_BOUNDS[i]);
+            } else {
+                label = HISTOGRAM_BOUNDS[i] + "-" + (HISTOGRAM_BOUNDS[i + 1] - 1);
+            }
+            out.printf("%10s%12d\n", label, histogram[i]);
+        }
+
+        out.println("  longest chains:");
+        for (int i = 0; i < LONGEST_CHAINS && longestLengths[i] > 0; i++) {
+            out.printf("    bucket %d, %d entries:\n", longestBuckets[i], longestLengths[i]);
+            for (BasicHashtableEntry e = bucket(longestBuckets[i]); e != null; e = e.next()) {
+                String value = describer.describe(((HashtableEntry) e).literalValue());
+                if (value.length() > MAX_PRINTED_CHARS) {
+                    value = value.substring(0, MAX_PRINTED_CHARS) + "...";
+                }
+                out.printf("      0x%08x %s\n", e.hash(), value);
+            }
+        }
+    }
+
+    private static int histogramBucket(int length) {
+        int i = HISTOGRAM_BOUNDS.length - 1;
+        while (HISTOGRAM_BOUNDS[i] > length) {
+            i--;
+        }
+        return i;
+    }
+
+    private static void insertLongest(int[] buckets, int[] lengths, int bucket, int length) {
+        int i = lengths.length;
+        while (i > 0 && lengths[i - 1] < length) {
+            i--;
+        }
+        if (i == lengths.length) return;
+        System.arraycopy(buckets, i, buckets, i + 1, buckets.length - i - 1);
+        System.arraycopy(lengths, i, lengths, i + 1, lengths.length - i - 1);
+        buckets[i] = bucket;
+        lengths[i] = length;
+    }
+
+    private static long typeSize(TypeDataBase db, String typeName, long defaultSize) {
+        Type type = db.lookupType(typeName, false);
+        return type == null ? defaultSize : type.getSize();
+    }
+
+    private static long nextPrime(long n) {
+        for (long candidate = Math.max(n, 2); ; candidate++) {
+            boolean prime = true;
+            for (long d = 2; d * d <= candidate; d++) {
+                if (candidate % d == 0) {
+                    prime = false;
+                    break;
+                }
+            }
+            if (prime) return candidate;
+        }
+    }
+
+    interface LiteralDescriber {
+        String literalName();
+
+        /**
+         * @return the bytes the literal itself occupies outside the table
+         */
+        long bytes(Address literal);
+
+        String describe(Address literal);
+    }
+}
@@ -0,0 +1,123 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.debugger.OopHandle;
+import sun.jvm.hotspot.oops.Array;
+import sun.jvm.hotspot.oops.DefaultHeapVisitor;
+import sun.jvm.hotspot.oops.DefaultOopVisitor;
+import sun.jvm.hotspot.oops.InstanceKlass;
+import sun.jvm.hotspot.oops.Klass;
+import sun.jvm.hotspot.oops.NarrowOopField;
+import sun.jvm.hotspot.oops.ObjArray;
+import sun.jvm.hotspot.oops.Oop;
+import sun.jvm.hotspot.oops.OopField;
+import sun.jvm.hotspot.oops.java_lang_Class;
+import sun.jvm.hotspot.runtime.BasicType;
+import sun.jvm.hotspot.runtime.VM;
+
+import java.util.Arrays;
+
+/**
+ * A heap walk that finds the references to a sorted set of objects and reports each of them with the class of the
+ * referrer. A reference from a static field is reported for the class declaring it rather than for java.lang.Class,
+ * and the referent of a java.lang.ref.Reference does not count, as for the retained sizes.
+ * <p>
+ */
+class HeapReferrers extends DefaultHeapVisitor {
+    private final long[] targets;
+    private final int count;
+    private final Filter filter;
+    private final Visitor visitor;
+    private final KlassIndex klasses = new KlassIndex();
+    private final StaticFieldVisitor staticFieldVisitor = new StaticFieldVisitor();
+    private final boolean compressedOops = VM.getVM().isCompressedOopsEnabled();
+    private final long heapOopSize = VM.getVM().getHeapOopSize();
+    private final long arrayBaseOffset = Array.baseOffsetInBytes(BasicType.T_OBJECT);
+
+    /**
+     * @param targets the raw addresses of the referenced objects, sorted, of which the first count are used
+     */
+    HeapReferrers(long[] targets, int count, Filter filter, Visitor visitor) {
+        this.targets = targets;
+        this.count = count;
+        this.filter = filter;
+        this.visitor = visitor;
+    }
+
+    @Override
+    public boolean doObj(Oop obj) {
+        if (obj.isTypeArray() || count == 0) return false;
+        Klass klass = obj.getKlass();
+        if (!filter.isReferrer(klass)) return false;
+
+        int klassId = klasses.indexOf(klass);
+        OopHandle handle = obj.getHandle();
+        if (obj.isObjArray()) {
+            long length = ((ObjArray) obj).getLength();
+            for (long i = 0; i < length; i++) {
+                refer(readOop(handle, arrayBaseOffset + i * heapOopSize), klassId << 1);
+            }
+            return false;
+        }
+        for (long offset : klasses.oopOffsets(klassId, obj)) {
+            refer(readOop(handle, offset), klassId << 1);
+        }
+        if (klasses.isClassMirror(klassId)) {
+            Klass mirrored = java_lang_Class.asKlass(obj);
+            if (mirrored instanceof InstanceKlass) {
+                staticFieldVisitor.referrer = (klasses.indexOf(mirrored) << 1) | 1;
+                ((InstanceKlass) mirrored).iterateStaticFields(staticFieldVisitor);
+            }
+        }
+        return false;
+    }
+
+    private long readOop(OopHandle handle, long offset) {
+        return GenerationLookupTable.rawAddress(
+                compressedOops ? handle.getCompOopHandleAt(offset) : handle.getOopHandleAt(offset));
+    }
+
+    private void refer(long address, int referrer) {
+        if (address < targets[0] || address > targets[count - 1]) return;
+        int target = Arrays.binarySearch(targets, 0, count, address);
+        if (target >= 0) {
+            visitor.referenced(target, referrer);
+        }
+    }
+
+    /**
+     * @return the class name of a referrer passed to the visitor, marked if the reference is a static field
+     */
+    String referrerName(int referrer) {
+        String name = klasses.get(referrer >> 1).getName().asString();
+        return (referrer & 1) != 0 ? name + " (static)" : name;
+    }
+
+    interface Filter {
+        /**
+         * @return false to skip the references held by the objects of a class
+         */
+        boolean isReferrer(Klass klass);
+    }
+
+    interface Visitor {
+        /**
+         * @param target   the index of the referenced object in the targets
+         * @param referrer the class of the referrer, the same number for every object of that class
+         */
+        void referenced(int target, int referrer);
+    }
+
+    private class StaticFieldVisitor extends DefaultOopVisitor {
+        private int referrer;
+
+        @Override
+        public void doOop(OopField field, boolean isVMField) {
+            refer(GenerationLookupTable.rawAddress(field.getValueAsOopHandle(getObj())), referrer);
+        }
+
+        @Override
+        public void doOop(NarrowOopField field, boolean isVMField) {
+            doOop((OopField) field, isVMField);
+        }
+    }
+}
@@ -0,0 +1,510 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.debugger.Address;
+import sun.jvm.hotspot.debugger.OopHandle;
+import sun.jvm.hotspot.gc_implementation.g1.G1CollectedHeap;
+import sun.jvm.hotspot.gc_implementation.parallelScavenge.PSOldGen;
+import sun.jvm.hotspot.gc_implementation.parallelScavenge.PSYoungGen;
+import sun.jvm.hotspot.gc_implementation.parallelScavenge.ParallelScavengeHeap;
+import sun.jvm.hotspot.gc_interface.CollectedHeap;
+import sun.jvm.hotspot.memory.DefNewGeneration;
+import sun.jvm.hotspot.memory.GenCollectedHeap;
+import sun.jvm.hotspot.memory.Generation;
+import sun.jvm.hotspot.memory.OneContigSpaceCardGeneration;
+import sun.jvm.hotspot.memory.SystemDictionary;
+import sun.jvm.hotspot.memory.Universe;
+import sun.jvm.hotspot.oops.Klass;
+import sun.jvm.hotspot.oops.ObjectHeap;
+import sun.jvm.hotspot.oops.Oop;
+import sun.jvm.hotspot.runtime.JavaThread;
+import sun.jvm.hotspot.runtime.ThreadLocalAllocBuffer;
+import sun.jvm.hotspot.runtime.VM;
+import sun.jvm.hotspot.types.Type;
+import sun.jvm.hotspot.types.TypeDataBase;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Walks a random subset of the heap within a pause budget, for statistics extrapolated to the whole heap.
+ * The heap is cut into units that each start at an object: the allocated G1 regions, or stripes of a contiguous space.
+ * Nothing in SA records where the objects of a stripe start, so a stripe other than the first of its space is entered
+ * at the first word holding the klass of a loaded class that starts a chain of parsable objects.
+ * The generations are the strata of a stratified sample: each takes {@link #MIN_UNITS_PER_STRATUM} units in turn before
+ * any takes more, then units go to the generation with the smallest share of its units taken, so each generation is
+ * sampled in proportion to its size. The units of a generation are taken in random order, so its completed units are a
+ * simple random sample of it; a unit cut short by the deadline or by an unparsable object is discarded.
+ * <p>
+ */
+class HeapSampler {
+    private static final double Z_95 = 1.96;
+    /**
+     * Two-sided 95% quantiles of Student's t for 1 to 30 degrees of freedom, few units make wide intervals.
+     */
+    private static final double[] T_95 = {12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+            2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042};
+
+    private static final long STRIPE_BYTES = 256 * 1024;
+    private static final int SCAN_BYTES = 64 * 1024;
+    private static final int RESYNC_CHAIN = 4;
+    private static final int OBJECTS_PER_CLOCK_CHECK = 256;
+    // the fewest units a variance can be estimated from
+    private static final int MIN_UNITS_PER_STRATUM = 2;
+
+    private static final int COMPLETE = 0;
+    private static final int ABANDONED = 1;
+    private static final int TIMED_OUT = 2;
+
+    private final ObjectHeap heap = VM.getVM().getObjectHeap();
+    private final Address heapBase;
+    private final long rawHeapBase;
+    private final Set<Long> klasses = new HashSet<>();
+    private long minKlass = Long.MAX_VALUE;
+    private long maxKlass;
+
+    private long[] starts = new long[64];
+    private long[] ends = new long[64];
+    private long[] tops = new long[64];
+    private boolean[] exactStarts = new boolean[64];
+    private int[] strata = new int[64];
+    private int units;
+
+    // unused ends of the TLABs, which hold no objects
+    private long[] holeStarts = new long[0];
+    private long[] holeEnds = new long[0];
+
+    private final int[] unitCounts = new int[GenerationLookupTable.GENERATIONS];
+    private final long[] stratumBytes = new long[GenerationLookupTable.GENERATIONS];
+    private final int[] sampledCounts = new int[GenerationLookupTable.GENERATIONS];
+    private final long[] sampledBytes = new long[GenerationLookupTable.GENERATIONS];
+    private int abandoned;
+    private String unsampled;
+
+    private HeapSampler(Address heapBase) {
+        this.heapBase = heapBase;
+        this.rawHeapBase = GenerationLookupTable.rawAddress(heapBase);
+    }
+
+    /**
+     * @return the budget in nanoseconds of a time like 300ms, 2s or 300 (milliseconds)
+     */
+    static long parseBudget(String budget) {
+        if (budget.endsWith("ms")) {
+            return Long.parseLong(budget.substring(0, budget.length() - 2)) * 1000000L;
+        } else if (budget.endsWith("s")) {
+            return (long) (Double.parseDouble(budget.substring(0, budget.length() - 1)) * 1e9);
+        }
+        return Long.parseLong(budget) * 1000000L;
+    }
+
+    static HeapSampler build() {
+        CollectedHeap heap = VM.getVM().getUniverse().heap();
+        HeapSampler sampler = new HeapSampler(heap.reservedRegion().start());
+        if (heap instanceof GenCollectedHeap) {
+            GenCollectedHeap genHeap = (GenCollectedHeap) heap;
+            DefNewGeneration gen0 = (DefNewGeneration) genHeap.getGen(0);
+            sampler.addSpace(gen0.eden().bottom(), gen0.eden().top(), GenerationLookupTable.EDEN);
+            sampler.addSpace(gen0.from().bottom(), gen0.from().top(), GenerationLookupTable.SURVIVOR);
+            Generation gen1 = genHeap.getGen(1);
+            if (gen1 instanceof OneContigSpaceCardGeneration) {
+                OneContigSpaceCardGeneration old = (OneContigSpaceCardGeneration) gen1;
+                sampler.addSpace(old.theSpace().bottom(), old.theSpace().top(), GenerationLookupTable.OLD);
+            } else {
+                // a CMS free list space interleaves free chunks with objects, which a stripe cannot be entered at
+                sampler.unsampled = gen1.getClass().getSimpleName();
+            }
+        } else if (heap instanceof ParallelScavengeHeap) {
+            PSYoungGen youngGen = ((ParallelScavengeHeap) heap).youngGen();
+            sampler.addSpace(youngGen.edenSpace().bottom(), youngGen.edenSpace().top(), GenerationLookupTable.EDEN);
+            sampler.addSpace(youngGen.fromSpace().bottom(), youngGen.fromSpace().top(), GenerationLookupTable.SURVIVOR);
+            PSOldGen oldGen = ((ParallelScavengeHeap) heap).oldGen();
+            sampler.addSpace(oldGen.objectSpace().bottom(), oldGen.objectSpace().top(), GenerationLookupTable.OLD);
+        } else if (heap instanceof G1CollectedHeap) {
+            GenerationLookupTable generations = GenerationLookupTable.build();
+            G1RegionTable regions = generations.g1Regions();
+            for (int i = 0; i < regions.regionCount(); i++) {
+                byte type = regions.regionType(i);
+                if (type == G1RegionTable.FREE || type == G1RegionTable.HUMONGOUS_CONTINUES) continue;
+                long bottom = regions.regionBottom(i);
+                long top = bottom + regions.regionUsed(i);
+                if (type == G1RegionTable.HUMONGOUS_START) {
+                    // a humongous object runs past its region, so the walk of the region ends after it
+                    sampler.addUnit(bottom, top, top, true, generations.generationOf(bottom));
+                } else {
+                    sampler.addSpace(bottom, top, generations.generationOf(bottom));
+                }
+            }
+        } else {
+            System.err.println("Unsupported heap for sampling: " + heap.getClass().getName());
+        }
+        sampler.collectTlabHoles();
+        sampler.collectKlasses();
+        return sampler;
+    }
+
+    private void addSpace(Address bottom, Address top, int stratum) {
+        addSpace(GenerationLookupTable.rawAddress(bottom), GenerationLookupTable.rawAddress(top), stratum);
+    }
+
+    private void addSpace(long rawBottom, long rawTop, int stratum) {
+        for (long start = rawBottom; start < rawTop; start += STRIPE_BYTES) {
+            addUnit(start, Math.min(start + STRIPE_BYTES, rawTop), rawTop, start == rawBottom, stratum);
+        }
+    }
+
+    private void addUnit(long start, long end, long top, boolean exactStart, int stratum) {
+        if (end <= start || stratum < 0) return;
+        if (units == starts.length) {
+            int capacity = units * 2;
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            tops = Arrays.copyOf(tops, capacity);
+            exactStarts = Arrays.copyOf(exactStarts, capacity);
+            strata = Arrays.copyOf(strata, capacity);
+        }
+        starts[units] = start;
+        ends[units] = end;
+        tops[units] = top;
+        exactStarts[units] = exactStart;
+        strata[units] = stratum;
+        units++;
+        unitCounts[stratum]++;
+        stratumBytes[stratum] += end - start;
+    }
+
+    private void collectTlabHoles() {
+        if (!VM.getVM().getUseTLAB()) return;
+
+        long[][] holes = new long[16][];
+        int count = 0;
+        for (JavaThread thread = VM.getVM().getThreads().first(); thread != null; thread = thread.next()) {
+            ThreadLocalAllocBuffer tlab = thread.tlab();
+            // a thread that never allocated has no TLAB, and hardEnd() would dereference its null end
+            if (tlab.top() == null || tlab.end() == null) continue;
+            long top = GenerationLookupTable.rawAddress(tlab.top());
+            long end = GenerationLookupTable.rawAddress(tlab.hardEnd());
+            if (top == 0 || end <= top) continue;
+            if (count == holes.length) {
+                holes = Arrays.copyOf(holes, count * 2);
+            }
+            holes[count++] = new long[]{top, end};
+        }
+        Arrays.sort(holes, 0, count, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] o1, long[] o2) {
+                return Long.compare(o1[0], o2[0]);
+            }
+        });
+        holeStarts = new long[count];
+        holeEnds = new long[count];
+        for (int i = 0; i < count; i++) {
+            holeStarts[i] = holes[i][0];
+            holeEnds[i] = holes[i][1];
+        }
+    }
+
+    /**
+     * Collect the addresses of all loaded classes with raw reads of the subclass tree under Object and of the array
+     * classes hanging off each class, which is much cheaper than creating a wrapper for every class of the dictionary.
+     */
+    private void collectKlasses() {
+        TypeDataBase db = VM.getVM().getTypeDataBase();
+        Type klassType = db.lookupType("Klass");
+        long subklassOffset = klassType.getAddressField("_subklass").getOffset();
+        long nextSiblingOffset = klassType.getAddressField("_next_sibling").getOffset();
+        long layoutHelperOffset = klassType.getJIntField("_layout_helper").getOffset();
+        long arrayKlassesOffset = db.lookupType("InstanceKlass").getAddressField("_array_klasses").getOffset();
+        long higherDimensionOffset = db.lookupType("ArrayKlass").getAddressField("_higher_dimension").getOffset();
+
+        final ArrayDeque<Address> pending = new ArrayDeque<>();
+        pending.push(SystemDictionary.getObjectKlass().getAddress());
+        // the type arrays are not subclasses of anything
+        VM.getVM().getSystemDictionary().primArrayClassesDo(new SystemDictionary.ClassAndLoaderVisitor() {
+            @Override
+            public void visit(Klass klass, Oop loader) {
+                pending.push(klass.getAddress());
+            }
+        });
+        while (!pending.isEmpty()) {
+            Address klass = pending.pop();
+            long raw = GenerationLookupTable.rawAddress(klass);
+            if (!klasses.add(raw)) continue;
+            minKlass = Math.min(minKlass, raw);
+            maxKlass = Math.max(maxKlass, raw);
+
+            pushIfNotNull(pending, klass.getAddressAt(subklassOffset));
+            pushIfNotNull(pending, klass.getAddressAt(nextSiblingOffset));
+            // a positive layout helper is an instance size, a negative one encodes an array
+            int layoutHelper = klass.getJIntAt(layoutHelperOffset);
+            if (layoutHelper > 0) {
+                pushIfNotNull(pending, klass.getAddressAt(arrayKlassesOffset));
+            } else if (layoutHelper < 0) {
+                pushIfNotNull(pending, klass.getAddressAt(higherDimensionOffset));
+            }
+        }
+    }
+
+    private static void pushIfNotNull(ArrayDeque<Address> pending, Address address) {
+        if (address != null) {
+            pending.push(address);
+        }
+    }
+
+    /**
+     * Walk units until the deadline, spread over the strata as described above.
+     */
+    void walk(long deadlineNanos, Random random, Visitor visitor) {
+        int strataCount = unitCounts.length;
+        int[][] orders = new int[strataCount][];
+        for (int s = 0; s < strataCount; s++) {
+            orders[s] = new int[unitCounts[s]];
+        }
+        int[] taken = new int[strataCount];
+        for (int unit = 0; unit < units; unit++) {
+            orders[strata[unit]][taken[strata[unit]]++] = unit;
+        }
+        for (int[] order : orders) {
+            for (int i = order.length - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int swap = order[i];
+                order[i] = order[j];
+                order[j] = swap;
+            }
+        }
+        Arrays.fill(taken, 0);
+
+        while (System.nanoTime() < deadlineNanos) {
+            int stratum = nextStratum(taken);
+            if (stratum < 0) break;
+            int unit = orders[stratum][taken[stratum]++];
+            int outcome = walkUnit(unit, deadlineNanos, visitor);
+            visitor.unitDone(stratum, outcome == COMPLETE);
+            if (outcome == COMPLETE) {
+                sampledCounts[stratum]++;
+                sampledBytes[stratum] += ends[unit] - starts[unit];
+            } else if (outcome == ABANDONED) {
+                abandoned++;
+            } else {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @param taken the units taken so far per stratum
+     * @return the stratum to take the next unit from, or -1 once all units are taken
+     */
+    private int nextStratum(int[] taken) {
+        int next = -1;
+        for (int s = 0; s < unitCounts.length; s++) {
+            if (taken[s] == unitCounts[s]) continue;
+            if (next < 0) {
+                next = s;
+                continue;
+            }
+            boolean belowMinimum = sampledCounts[s] < MIN_UNITS_PER_STRATUM;
+            boolean nextBelowMinimum = sampledCounts[next] < MIN_UNITS_PER_STRATUM;
+            if (belowMinimum != nextBelowMinimum) {
+                if (belowMinimum) next = s;
+            } else if (belowMinimum ? taken[s] < taken[next]
+                    : (long) taken[s] * unitCounts[next] < (long) taken[next] * unitCounts[s]) {
+                // round robin up to the minimum, then the smallest share taken
+                next = s;
+            }
+        }
+        return next;
+    }
+
+    private int walkUnit(int unit, long deadlineNanos, Visitor visitor) {
+        long end = ends[unit];
+        long top = tops[unit];
+        long position = exactStarts[unit] ? starts[unit] : findObjectStart(starts[unit], end, top);
+        if (position < 0) {
+            // no object starts here, the stripe is covered by one that started before it
+            return COMPLETE;
+        }
+
+        int stratum = strata[unit];
+        int sinceClockCheck = 0;
+        while (position < end) {
+            long holeEnd = holeEndAt(position);
+            if (holeEnd > 0) {
+                position = holeEnd;
+                continue;
+            }
+            Oop obj = objectAt(position);
+            if (obj == null) return ABANDONED;
+            long size = obj.getObjectSize();
+            if (size <= 0) return ABANDONED;
+
+            visitor.doObj(obj, stratum);
+            position += size;
+            if (++sinceClockCheck == OBJECTS_PER_CLOCK_CHECK) {
+                sinceClockCheck = 0;
+                if (System.nanoTime() >= deadlineNanos) return TIMED_OUT;
+            }
+        }
+        return COMPLETE;
+    }
+
+    private Oop objectAt(long address) {
+        try {
+            return heap.newOop(heapBase.addOffsetToAsOopHandle(address - rawHeapBase));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the end of the TLAB hole starting at the address, or 0 if none does
+     */
+    private long holeEndAt(long address) {
+        int i = Arrays.binarySearch(holeStarts, address);
+        return i >= 0 ? holeEnds[i] : 0;
+    }
+
+    private boolean inHole(long address) {
+        int i = Arrays.binarySearch(holeStarts, address);
+        if (i >= 0) return true;
+        i = -i - 2;
+        return i >= 0 && address < holeEnds[i];
+    }
+
+    /**
+     * @return the first object start in [start, end), or -1 if there is none
+     */
+    private long findObjectStart(long start, long end, long top) {
+        VM vm = VM.getVM();
+        long alignment = vm.getObjectAlignmentInBytes();
+        long klassOffset = vm.getAddressSize();
+        boolean compressedKlass = vm.isCompressedKlassPointersEnabled();
+        long klassSize = compressedKlass ? 4 : vm.getAddressSize();
+        long narrowKlassBase = Universe.getNarrowKlassBase();
+        int narrowKlassShift = Universe.getNarrowKlassShift();
+        ByteOrder order = vm.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+
+        for (long block = start; block < end; block += SCAN_BYTES) {
+            long length = Math.min(SCAN_BYTES, end - block);
+            long readLength = Math.min(length + klassOffset + klassSize, top - block);
+            ByteBuffer bytes = ByteBuffer.wrap(DebuggerPageCache.readBytes(block, readLength)).order(order);
+            for (int offset = 0; offset < length && offset + klassOffset + klassSize <= readLength; offset += alignment) {
+                long klass = compressedKlass
+                        ? narrowKlassBase + ((bytes.getInt(offset + (int) klassOffset) & 0xffffffffL) << narrowKlassShift)
+                        : bytes.getLong(offset + (int) klassOffset);
+                if (klass < minKlass || klass > maxKlass || !klasses.contains(klass)) continue;
+                long candidate = block + offset;
+                if (!inHole(candidate) && startsChain(candidate, top)) return candidate;
+            }
+        }
+        return -1;
+    }
+
+    private boolean startsChain(long address, long top) {
+        long klassOffset = VM.getVM().getAddressSize();
+        boolean compressedKlass = VM.getVM().isCompressedKlassPointersEnabled();
+        for (int i = 0; i < RESYNC_CHAIN && address < top; i++) {
+            long holeEnd = holeEndAt(address);
+            if (holeEnd > 0) {
+                address = holeEnd;
+                continue;
+            }
+            OopHandle handle = heapBase.addOffsetToAsOopHandle(address - rawHeapBase);
+            Address klass = compressedKlass ? handle.getCompKlassAddressAt(klassOffset) : handle.getAddressAt(klassOffset);
+            if (!klasses.contains(GenerationLookupTable.rawAddress(klass))) return false;
+            Oop obj = objectAt(address);
+            if (obj == null) return false;
+            long size = obj.getObjectSize();
+            if (size <= 0 || address + size > top) return false;
+            address += size;
+        }
+        return true;
+    }
+
+    /**
+     * Print how long the target was paused for, the attach apart from the time the budget counts.
+     *
+     * @param attachStart when the attach started, or 0 if the tool was run from another tool
+     * @param runStart    when the tool started to run, attached to the stopped target, which the budget counts from
+     */
+    static void printPause(PrintStream out, long attachStart, long runStart, long budgetNanos) {
+        long now = System.nanoTime();
+        if (attachStart != 0) {
+            out.printf("Paused for %.0f ms: %.0f ms attaching, then %.0f ms of a %.0f ms budget\n", (now - attachStart) / 1e6,
+                    (runStart - attachStart) / 1e6, (now - runStart) / 1e6, budgetNanos / 1e6);
+        } else {
+            out.printf("Paused for %.0f ms of a %.0f ms budget\n", (now - runStart) / 1e6, budgetNanos / 1e6);
+        }
+    }
+
+    /**
+     * Print the units walked per generation, which the extrapolations are based on.
+     */
+    void printCoverage(PrintStream out) {
+        int sampled = 0;
+        for (int s = 0; s < unitCounts.length; s++) {
+            sampled += sampledCounts[s];
+            if (unitCounts[s] == 0) continue;
+            out.printf("%-10s sampled %d of %d units, %d of %d bytes (%.1f%%)\n", HistogramSnapshot.GENERATION_NAMES[s],
+                    sampledCounts[s], unitCounts[s], sampledBytes[s], stratumBytes[s],
+                    stratumBytes[s] == 0 ? 0 : sampledBytes[s] * 100.0 / stratumBytes[s]);
+        }
+        if (sampled == 0 && units > 0) {
+            out.println("The budget ran out before any unit was walked, attaching and setting up took all of it");
+        }
+        if (abandoned > 0) {
+            out.printf("%d units discarded on an unparsable object\n", abandoned);
+        }
+        if (unsampled != null) {
+            out.printf("The old generation is a %s and was not sampled\n", unsampled);
+        }
+    }
+
+    int strata() {
+        return unitCounts.length;
+    }
+
+    int unitCount(int stratum) {
+        return unitCounts[stratum];
+    }
+
+    int sampledCount(int stratum) {
+        return sampledCounts[stratum];
+    }
+
+    /**
+     * Extrapolate the total of a stratum from the sum and the sum of squares of a value over its sampled units.
+     *
+     * @return the estimated total and the half width of its 95% confidence interval, NaN if one unit cannot tell, or
+     * null if no unit of the stratum was sampled and it is not estimated
+     */
+    double[] estimate(int stratum, double sum, double sumOfSquares) {
+        int n = sampledCounts[stratum];
+        int total = unitCounts[stratum];
+        if (n == 0) return null;
+        double estimate = sum * total / n;
+        if (n == total) return new double[]{estimate, 0};
+        if (n == 1) return new double[]{estimate, Double.NaN};
+
+        double variance = Math.max(0, (sumOfSquares - sum * sum / n) / (n - 1));
+        double estimateVariance = (double) total * total * (1 - (double) n / total) * variance / n;
+        double quantile = n - 1 <= T_95.length ? T_95[n - 2] : Z_95;
+        return new double[]{estimate, quantile * Math.sqrt(estimateVariance)};
+    }
+
+    interface Visitor {
+        void doObj(Oop obj, int stratum);
+
+        /**
+         * @param complete false if the objects of the unit passed to doObj are to be discarded
+         */
+        void unitDone(int stratum, boolean complete);
+    }
+}
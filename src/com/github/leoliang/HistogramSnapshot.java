@@ -0,0 +1,162 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.oops.Klass;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Binary snapshot of the instance histogram by generation: a sorted class name dictionary followed by a count column
+ * and a size column per generation, gzip compressed. Classes of the same name from different loaders are merged.
+ * A series of snapshots of one process is ranked by growth with {@link DiffHeapHistogramSnapshots}.
+ * <p>
+ */
+class HistogramSnapshot {
+    private static final int MAGIC = 0x4a48534e; // JHSN
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+    static final String[] GENERATION_NAMES = {"eden", "survivor", "old", "humongous", "untyped"};
+
+    final long timestamp;
+    final String[] generations;
+    final String[] names;
+    /**
+     * [generation][class], in the order of names
+     */
+    final long[][] counts;
+    final long[][] sizes;
+
+    private HistogramSnapshot(long timestamp, String[] generations, String[] names, long[][] counts, long[][] sizes) {
+        this.timestamp = timestamp;
+        this.generations = generations;
+        this.names = names;
+        this.counts = counts;
+        this.sizes = sizes;
+    }
+
+    static HistogramSnapshot of(PrintHeapInstancesStatsGroupByGenerationJDK8.HeapStatsVisitor heapVisitor,
+                                long timestamp) {
+        final int generationCount = GenerationLookupTable.GENERATIONS;
+        final TreeMap<String, long[]> rows = new TreeMap<>();
+        final Map<Klass, String> klassNames = new HashMap<>();
+        for (int g = 0; g < generationCount; g++) {
+            final int generation = g;
+            heapVisitor.getStats(g).forEach(new KlassStatsMap.Visitor() {
+                @Override
+                public void visit(Klass klass, long count, long totalSize) {
+                    String name = klassNames.get(klass);
+                    if (name == null) {
+                        name = klass.getName().asString();
+                        klassNames.put(klass, name);
+                    }
+                    long[] row = rows.get(name);
+                    if (row == null) {
+                        row = new long[2 * generationCount];
+                        rows.put(name, row);
+                    }
+                    row[2 * generation] += count;
+                    row[2 * generation + 1] += totalSize;
+                }
+            });
+        }
+
+        String[] names = new String[rows.size()];
+        long[][] counts = new long[generationCount][names.length];
+        long[][] sizes = new long[generationCount][names.length];
+        int i = 0;
+        for (Map.Entry<String, long[]> entry : rows.entrySet()) {
+            names[i] = entry.getKey();
+            for (int g = 0; g < generationCount; g++) {
+                counts[g][i] = entry.getValue()[2 * g];
+                sizes[g][i] = entry.getValue()[2 * g + 1];
+            }
+            i++;
+        }
+        return new HistogramSnapshot(timestamp, GENERATION_NAMES.clone(), names, counts, sizes);
+    }
+
+    void write(String file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(file), BUFFER_SIZE), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(timestamp);
+            out.writeInt(generations.length);
+            for (String generation : generations) {
+                out.writeUTF(generation);
+            }
+            out.writeInt(names.length);
+            for (String name : names) {
+                out.writeUTF(name);
+            }
+            for (int g = 0; g < generations.length; g++) {
+                for (long count : counts[g]) {
+                    out.writeLong(count);
+                }
+                for (long size : sizes[g]) {
+                    out.writeLong(size);
+                }
+            }
+        }
+    }
+
+    static HistogramSnapshot read(String file) throws IOException {
+        try (DataInputStream in = open(file)) {
+            long timestamp = readHeader(in, file);
+            String[] generations = new String[in.readInt()];
+            for (int g = 0; g < generations.length; g++) {
+                generations[g] = in.readUTF();
+            }
+            String[] names = new String[in.readInt()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = in.readUTF();
+            }
+            long[][] counts = new long[generations.length][names.length];
+            long[][] sizes = new long[generations.length][names.length];
+            for (int g = 0; g < generations.length; g++) {
+                for (int i = 0; i < names.length; i++) {
+                    counts[g][i] = in.readLong();
+                }
+                for (int i = 0; i < names.length; i++) {
+                    sizes[g][i] = in.readLong();
+                }
+            }
+            return new HistogramSnapshot(timestamp, generations, names, counts, sizes);
+        }
+    }
+
+    /**
+     * Read only the header, to order snapshots without loading them.
+     */
+    static long readTimestamp(String file) throws IOException {
+        try (DataInputStream in = open(file)) {
+            return readHeader(in, file);
+        }
+    }
+
+    private static DataInputStream open(String file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE), BUFFER_SIZE));
+    }
+
+    private static long readHeader(DataInputStream in, String file) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException(file + " is not a histogram snapshot");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException(file + " has unsupported snapshot version " + version);
+        }
+        return in.readLong();
+    }
+}
@@ -0,0 +1,143 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.oops.DefaultOopVisitor;
+import sun.jvm.hotspot.oops.Field;
+import sun.jvm.hotspot.oops.Instance;
+import sun.jvm.hotspot.oops.InstanceKlass;
+import sun.jvm.hotspot.oops.Klass;
+import sun.jvm.hotspot.oops.NarrowOopField;
+import sun.jvm.hotspot.oops.Oop;
+import sun.jvm.hotspot.oops.OopField;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Numbers the classes of the heap by raw Klass address, with what the walk needs to know about each of them.
+ * The offsets of the reference fields of a class are collected from its first instance, so the walk reads the
+ * references of the others directly instead of iterating over every field through its metadata.
+ * <p>
+ */
+class KlassIndex {
+    private static final String REFERENCE_CLASS = "java/lang/ref/Reference";
+    private static final String CLASS_CLASS = "java/lang/Class";
+
+    private long[] keys = new long[1024];
+    private int[] ids = new int[1024];
+    private final List<Klass> klasses = new ArrayList<>();
+    private long[] mirrors = new long[256];
+    private boolean[] references = new boolean[256];
+    private boolean[] classMirrors = new boolean[256];
+    private long[][] oopOffsets = new long[256][];
+    private long referentOffset = -1;
+    private final OffsetCollector offsetCollector = new OffsetCollector();
+
+    int indexOf(Klass klass) {
+        long key = GenerationLookupTable.rawAddress(klass.getAddress());
+        int mask = keys.length - 1;
+        int slot = (int) (key ^ (key >>> 17)) & mask;
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) return ids[slot];
+            slot = (slot + 1) & mask;
+        }
+
+        int id = klasses.size();
+        keys[slot] = key;
+        ids[slot] = id;
+        klasses.add(klass);
+        if (id == mirrors.length) {
+            mirrors = Arrays.copyOf(mirrors, id * 2);
+            references = Arrays.copyOf(references, id * 2);
+            classMirrors = Arrays.copyOf(classMirrors, id * 2);
+            oopOffsets = Arrays.copyOf(oopOffsets, id * 2);
+        }
+        Instance mirror = klass.getJavaMirror();
+        mirrors[id] = mirror == null ? 0 : GenerationLookupTable.rawAddress(mirror.getHandle());
+        classMirrors[id] = CLASS_CLASS.equals(klass.getName().asString());
+        for (Klass k = klass; k != null; k = k.getSuper()) {
+            if (REFERENCE_CLASS.equals(k.getName().asString())) {
+                references[id] = true;
+                if (referentOffset < 0) {
+                    Field referent = ((InstanceKlass) k).findField("referent", "Ljava/lang/Object;");
+                    referentOffset = referent == null ? -1 : referent.getOffset();
+                }
+                break;
+            }
+        }
+
+        if (klasses.size() * 4 > keys.length * 3) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldIds = ids;
+        keys = new long[oldKeys.length * 2];
+        ids = new int[oldIds.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0) continue;
+            int slot = (int) (oldKeys[i] ^ (oldKeys[i] >>> 17)) & mask;
+            while (keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            ids[slot] = oldIds[i];
+        }
+    }
+
+    int size() {
+        return klasses.size();
+    }
+
+    Klass get(int id) {
+        return klasses.get(id);
+    }
+
+    long mirrorAddress(int id) {
+        return mirrors[id];
+    }
+
+    /**
+     * @return the offsets of the reference fields of an instance of the class, without the referent of a
+     * java.lang.ref.Reference
+     */
+    long[] oopOffsets(int id, Oop instance) {
+        long[] offsets = oopOffsets[id];
+        if (offsets == null) {
+            offsetCollector.count = 0;
+            offsetCollector.skipReferent = references[id];
+            instance.iterate(offsetCollector, false);
+            offsets = Arrays.copyOf(offsetCollector.offsets, offsetCollector.count);
+            oopOffsets[id] = offsets;
+        }
+        return offsets;
+    }
+
+    boolean isClassMirror(int id) {
+        return classMirrors[id];
+    }
+
+    private class OffsetCollector extends DefaultOopVisitor {
+        private long[] offsets = new long[16];
+        private int count;
+        private boolean skipReferent;
+
+        @Override
+        public void doOop(OopField field, boolean isVMField) {
+            if (skipReferent && field.getOffset() == referentOffset) return;
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = field.getOffset();
+        }
+
+        @Override
+        public void doOop(NarrowOopField field, boolean isVMField) {
+            doOop((OopField) field, isVMField);
+        }
+    }
+}
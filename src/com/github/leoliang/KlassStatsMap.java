@@ -0,0 +1,128 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.debugger.OopHandle;
+import sun.jvm.hotspot.memory.Universe;
+import sun.jvm.hotspot.oops.Klass;
+import sun.jvm.hotspot.oops.Oop;
+import sun.jvm.hotspot.runtime.VM;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from a Klass address to its instance count and total size.
+ * The Klass address is read from the object header, so adding an object does not allocate once its class has been
+ * seen: the Klass wrapper is only created for the first object of a class, and class names are only materialized by
+ * the caller when printing, once per distinct class.
+ * <p>
+ */
+class KlassStatsMap {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private long[] keys;
+    private long[] counts;
+    private long[] sizes;
+    private Klass[] klasses;
+    private int size;
+    private int mask;
+
+    private final long klassOffset = VM.getVM().getAddressSize();
+    private final boolean compressedKlass = VM.getVM().isCompressedKlassPointersEnabled();
+    private final long narrowKlassBase = Universe.getNarrowKlassBase();
+    private final int narrowKlassShift = Universe.getNarrowKlassShift();
+
+    KlassStatsMap() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        counts = new long[capacity];
+        sizes = new long[capacity];
+        klasses = new Klass[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(long key) {
+        // klass addresses are 8-byte aligned, mix the high bits down before masking
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    void add(Oop obj, long count, long objectSize) {
+        long key = rawKlass(obj.getHandle());
+        int i = hash(key) & mask;
+        while (true) {
+            long k = keys[i];
+            if (k == key) {
+                counts[i] += count;
+                sizes[i] += objectSize;
+                return;
+            }
+            if (k == 0) {
+                keys[i] = key;
+                counts[i] = count;
+                sizes[i] = objectSize;
+                klasses[i] = obj.getKlass();
+                if (++size * 4 > keys.length * 3) {
+                    rehash();
+                }
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * @return the address of the Klass in the header of the object, after the mark word
+     */
+    private long rawKlass(OopHandle handle) {
+        return compressedKlass
+                ? narrowKlassBase + (handle.getCIntegerAt(klassOffset, 4, true) << narrowKlassShift)
+                : handle.getCIntegerAt(klassOffset, klassOffset, true);
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        long[] oldCounts = counts;
+        long[] oldSizes = sizes;
+        Klass[] oldKlasses = klasses;
+        allocate(oldKeys.length * 2);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == 0) continue;
+            int i = hash(oldKeys[j]) & mask;
+            while (keys[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            counts[i] = oldCounts[j];
+            sizes[i] = oldSizes[j];
+            klasses[i] = oldKlasses[j];
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Remove every class but keep the capacity, for a map that is refilled many times.
+     */
+    void clear() {
+        if (size == 0) return;
+        Arrays.fill(keys, 0);
+        Arrays.fill(klasses, null);
+        size = 0;
+    }
+
+    void forEach(Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                visitor.visit(klasses[i], counts[i], sizes[i]);
+            }
+        }
+    }
+
+    interface Visitor {
+        void visit(Klass klass, long count, long totalSize);
+    }
+}
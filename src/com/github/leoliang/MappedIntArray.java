@@ -0,0 +1,77 @@
+package com.github.leoliang;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An int array indexed by long and backed by a memory-mapped temp file, so it can outgrow the java heap.
+ * Chunks are mapped on first touch and start zeroed; untouched chunks take no disk space on a sparse file system.
+ * The file is unlinked right after it is opened, nothing is left behind when the process exits.
+ * <p>
+ */
+class MappedIntArray {
+    private static final int CHUNK_SHIFT = 27;
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    private final FileChannel channel;
+    private IntBuffer[] chunks = new IntBuffer[16];
+
+    MappedIntArray(File directory, String name) {
+        channel = openTempFile(directory, name);
+    }
+
+    static FileChannel openTempFile(File directory, String name) {
+        try {
+            File file = File.createTempFile(name, ".bin", directory);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+            return raf.getChannel();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    int get(long index) {
+        return chunk(index).get((int) (index & CHUNK_MASK));
+    }
+
+    void set(long index, int value) {
+        chunk(index).put((int) (index & CHUNK_MASK), value);
+    }
+
+    private IntBuffer chunk(long index) {
+        int c = (int) (index >>> CHUNK_SHIFT);
+        if (c >= chunks.length) {
+            IntBuffer[] grown = new IntBuffer[Math.max(chunks.length * 2, c + 1)];
+            System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            chunks = grown;
+        }
+        IntBuffer chunk = chunks[c];
+        if (chunk == null) {
+            try {
+                chunk = channel.map(FileChannel.MapMode.READ_WRITE, (long) c << (CHUNK_SHIFT + 2), 4L << CHUNK_SHIFT)
+                        .order(ByteOrder.nativeOrder()).asIntBuffer();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            chunks[c] = chunk;
+        }
+        return chunk;
+    }
+
+    void close() {
+        chunks = new IntBuffer[0];
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // the file is already unlinked
+        }
+    }
+}
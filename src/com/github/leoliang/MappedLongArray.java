@@ -0,0 +1,69 @@
+package com.github.leoliang;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A long array indexed by long and backed by a memory-mapped temp file, so it can outgrow the java heap.
+ * Chunks are mapped on first touch and start zeroed; untouched chunks take no disk space on a sparse file system.
+ * The file is unlinked right after it is opened, nothing is left behind when the process exits.
+ * <p>
+ */
+class MappedLongArray {
+    private static final int CHUNK_SHIFT = 26;
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    private final FileChannel channel;
+    private LongBuffer[] chunks = new LongBuffer[16];
+
+    MappedLongArray(File directory, String name) {
+        channel = MappedIntArray.openTempFile(directory, name);
+    }
+
+    long get(long index) {
+        return chunk(index).get((int) (index & CHUNK_MASK));
+    }
+
+    void set(long index, long value) {
+        chunk(index).put((int) (index & CHUNK_MASK), value);
+    }
+
+    void add(long index, long delta) {
+        LongBuffer chunk = chunk(index);
+        int i = (int) (index & CHUNK_MASK);
+        chunk.put(i, chunk.get(i) + delta);
+    }
+
+    private LongBuffer chunk(long index) {
+        int c = (int) (index >>> CHUNK_SHIFT);
+        if (c >= chunks.length) {
+            LongBuffer[] grown = new LongBuffer[Math.max(chunks.length * 2, c + 1)];
+            System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            chunks = grown;
+        }
+        LongBuffer chunk = chunks[c];
+        if (chunk == null) {
+            try {
+                chunk = channel.map(FileChannel.MapMode.READ_WRITE, (long) c << (CHUNK_SHIFT + 3), 8L << CHUNK_SHIFT)
+                        .order(ByteOrder.nativeOrder()).asLongBuffer();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            chunks[c] = chunk;
+        }
+        return chunk;
+    }
+
+    void close() {
+        chunks = new LongBuffer[0];
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // the file is already unlinked
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.debugger.Address;
+import sun.jvm.hotspot.debugger.AddressException;
+import sun.jvm.hotspot.debugger.OopHandle;
+import sun.jvm.hotspot.oops.Klass;
+import sun.jvm.hotspot.oops.Oop;
+import sun.jvm.hotspot.runtime.VM;
+import sun.jvm.hotspot.types.TypeDataBase;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-class histogram of the GC age of objects, the number of young collections they survived, as the mark word
+ * records it. A biased or unlocked header holds the age itself. A stack-locked header points to the BasicLock and an
+ * inflated one to the ObjectMonitor that hold the displaced header, and the age is read from there.
+ * <p>
+ */
+class ObjectAgeTable {
+    static final int AGES = 16;
+
+    private final long wordSize = VM.getVM().getAddressSize();
+    private final long ageShift;
+    private final long ageMask;
+    private final long lockMask;
+    private final long unlockedValue;
+    private final long lockedValue;
+    private final long monitorValue;
+    private final long monitorHeaderOffset;
+    private final long displacedHeaderOffset;
+
+    // object counts then bytes, per age
+    private final Map<Klass, long[]> ages = new HashMap<>();
+    private final long[] totals = new long[AGES * 2];
+    private long unknown;
+
+    ObjectAgeTable() {
+        TypeDataBase db = VM.getVM().getTypeDataBase();
+        ageShift = db.lookupLongConstant("markOopDesc::age_shift");
+        ageMask = db.lookupLongConstant("markOopDesc::age_mask");
+        lockMask = db.lookupLongConstant("markOopDesc::lock_mask_in_place");
+        unlockedValue = db.lookupLongConstant("markOopDesc::unlocked_value");
+        lockedValue = db.lookupLongConstant("markOopDesc::locked_value");
+        monitorValue = db.lookupLongConstant("markOopDesc::monitor_value");
+        monitorHeaderOffset = db.lookupType("ObjectMonitor").getField("_header").getOffset();
+        displacedHeaderOffset = db.lookupType("BasicLock").getField("_displaced_header").getOffset();
+    }
+
+    void add(Oop oop, long size) {
+        int age = ageOf(oop.getHandle());
+        if (age < 0) {
+            unknown++;
+            return;
+        }
+        Klass klass = oop.getKlass();
+        long[] klassAges = ages.get(klass);
+        if (klassAges == null) {
+            klassAges = new long[AGES * 2];
+            ages.put(klass, klassAges);
+        }
+        klassAges[age]++;
+        klassAges[AGES + age] += size;
+        totals[age]++;
+        totals[AGES + age] += size;
+    }
+
+    /**
+     * @return the age of the object, or -1 if its header is being inflated or the displaced header cannot be read
+     */
+    int ageOf(OopHandle handle) {
+        long mark = handle.getCIntegerAt(0, wordSize, true);
+        // the biased pattern 101 has the unlocked bits too
+        if ((mark & lockMask) == unlockedValue) {
+            return (int) ((mark >>> ageShift) & ageMask);
+        }
+        // a zero mark is INFLATING, the header is on its way to the monitor
+        if (mark == 0) return -1;
+
+        long headerOffset;
+        if ((mark & lockMask) == monitorValue) {
+            headerOffset = monitorHeaderOffset;
+        } else if ((mark & lockMask) == lockedValue) {
+            headerOffset = displacedHeaderOffset;
+        } else {
+            // marked, only seen in the middle of a GC
+            return -1;
+        }
+        try {
+            Address header = handle.getAddressAt(0).andWithMask(~lockMask);
+            long displaced = header.getCIntegerAt(headerOffset, wordSize, true);
+            return (int) ((displaced >>> ageShift) & ageMask);
+        } catch (AddressException e) {
+            // the stack of a lock owner is not always in a core file
+            return -1;
+        }
+    }
+
+    /**
+     * Print the bytes per age, as -XX:+PrintTenuringDistribution does, then the ages of each class. The survival of a
+     * class is the share of its objects of an age found again one age older, averaged over its ages, which is the share
+     * surviving each young collection if the class is allocated at a steady rate. A class near 100% does not die young
+     * and is promoted in full, after being copied up to the tenuring threshold.
+     */
+    void print(PrintStream out) {
+        if (ages.isEmpty() && unknown == 0) {
+            out.println("No objects to print the ages of");
+            return;
+        }
+        int maxAge = 0;
+        for (int age = 0; age < AGES; age++) {
+            if (totals[age] > 0) {
+                maxAge = age;
+            }
+        }
+        VM.Flag threshold = VM.getVM().getCommandLineFlag("MaxTenuringThreshold");
+        out.printf("Object ages: (MaxTenuringThreshold = %s)\n", threshold == null ? "?" : threshold.getValue());
+        out.printf("%6s%14s%16s%18s\n", "age", "objects", "bytes", "cumulative bytes");
+        long cumulative = 0;
+        for (int age = 0; age <= maxAge; age++) {
+            cumulative += totals[AGES + age];
+            out.printf("%6d%14d%16d%18d\n", age, totals[age], totals[AGES + age], cumulative);
+        }
+        if (unknown > 0) {
+            out.printf("%d locked objects are left out, their displaced header could not be read\n", unknown);
+        }
+
+        List<Map.Entry<Klass, long[]>> classes = new ArrayList<>(ages.entrySet());
+        classes.sort(new Comparator<Map.Entry<Klass, long[]>>() {
+            @Override
+            public int compare(Map.Entry<Klass, long[]> o1, Map.Entry<Klass, long[]> o2) {
+                return Long.compare(bytes(o2.getValue()), bytes(o1.getValue()));
+            }
+        });
+        out.printf("%100s%16s%10s", "class", "bytes", "survival");
+        for (int age = 0; age <= maxAge; age++) {
+            out.printf("%10s", "age " + age);
+        }
+        out.println();
+        for (Map.Entry<Klass, long[]> entry : classes) {
+            long[] klassAges = entry.getValue();
+            double survival = survival(klassAges);
+            out.printf("%100s%16d%10s", entry.getKey().getName().asString(), bytes(klassAges),
+                    Double.isNaN(survival) ? "-" : String.format("%.0f%%", survival * 100));
+            for (int age = 0; age <= maxAge; age++) {
+                out.printf("%10d", klassAges[age]);
+            }
+            out.println();
+        }
+    }
+
+    private static long bytes(long[] klassAges) {
+        long bytes = 0;
+        for (int age = 0; age < AGES; age++) {
+            bytes += klassAges[AGES + age];
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the mean of count(age + 1) / count(age), capped at 1, over the ages with objects, or NaN for a single age
+     */
+    private static double survival(long[] klassAges) {
+        int oldest = AGES - 1;
+        while (oldest > 0 && klassAges[oldest] == 0) {
+            oldest--;
+        }
+        double sum = 0;
+        int ratios = 0;
+        for (int age = 0; age < oldest; age++) {
+            if (klassAges[age] == 0) continue;
+            sum += Math.min(1.0, (double) klassAges[age + 1] / klassAges[age]);
+            ratios++;
+        }
+        return ratios == 0 ? Double.NaN : sum / ratios;
+    }
+}
@@ -1,36 +1,320 @@
 package com.github.leoliang;
 
 import sun.jvm.hotspot.memory.SystemDictionary;
+import sun.jvm.hotspot.oops.ConstantPool;
+import sun.jvm.hotspot.oops.ConstantPoolCache;
+import sun.jvm.hotspot.oops.InstanceKlass;
 import sun.jvm.hotspot.oops.Klass;
+import sun.jvm.hotspot.oops.Method;
+import sun.jvm.hotspot.oops.ObjArrayKlass;
+import sun.jvm.hotspot.oops.Oop;
+import sun.jvm.hotspot.oops.Symbol;
 import sun.jvm.hotspot.runtime.VM;
 import sun.jvm.hotspot.tools.Tool;
+import sun.jvm.hotspot.types.TypeDataBase;
+import sun.jvm.hotspot.utilities.GenericArray;
+import sun.jvm.hotspot.utilities.MethodArray;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
- * Print the classes of a running JVM.
- * Usage: java -cp .:${JAVA_HOME}/lib/sa-jdi.jar com.github.leoliang.PrintClassesJDK8 &lt;Running JVM's PID&gt; <br />
+ * Print the classes of a running JVM, grouped by their defining class loader, with the class count and the metadata
+ * bytes of each loader and the class names defined by more than one loader, which is how a class loader leaked by a
+ * redeploy shows up.
+ * Usage: java -cp .:${JAVA_HOME}/lib/sa-jdi.jar com.github.leoliang.PrintClassesJDK8 [-summary] [-prefix prefix] &lt;Running JVM's PID&gt; <br />
  * You need to add sa-jdi.jar to your class path. This is generally available in your JDK's lib directory. Also, you might need to run this class with super user privileges in order to access the other JVM.
  * <p>
  */
 public class PrintClassesJDK8 extends Tool {
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+
+    private String prefix;
+    private boolean summary;
+
+    public PrintClassesJDK8() {
+
+    }
+
+    /**
+     * @param prefix  to only count the classes whose name starts with it, with dots or slashes, or null for all
+     * @param summary to leave out the class names
+     */
+    public PrintClassesJDK8(String prefix, boolean summary) {
+        this.prefix = prefix;
+        this.summary = summary;
+    }
 
     public static void main(String[] args) {
-        if (args.length == 0 || args.length > 1) {
-            System.err.println("Usage: java com.github.leoliang.PrintClassesJDK8 <PID of the JVM whose string table you want to print>");
+        String prefix = null;
+        boolean summary = false;
+
+        int used = 0;
+        while (used < args.length - 1 && args[used].startsWith("-")) {
+            String arg = args[used];
+            if ("-summary".equals(arg)) {
+                summary = true;
+                used++;
+                continue;
+            } else if ("-prefix".equals(arg)) {
+                prefix = args[used + 1];
+            } else {
+                break;
+            }
+            used += 2;
+        }
+
+        if (used == args.length || args.length - used > 1) {
+            System.err.println("Usage: java com.github.leoliang.PrintClassesJDK8 [-summary] [-prefix prefix] <PID of the JVM whose classes you want to print>");
             System.exit(1);
         }
-        PrintClassesJDK8 test = new PrintClassesJDK8();
+        args = Arrays.copyOfRange(args, used, args.length);
+
+        PrintClassesJDK8 test = new PrintClassesJDK8(prefix, summary);
         test.execute(args);
         test.stop();
     }
 
     @Override
     public void run() {
-        VM.getVM().getSystemDictionary().allClassesDo(new SystemDictionary.ClassVisitor() {
-            @Override
-            public void visit(Klass klass) {
-                System.out.println(klass.getName().asString());
+        DebuggerPageCache pageCache = DebuggerPageCache.install(getAgent());
+        ClassCollector collector = new ClassCollector(prefix);
+        VM.getVM().getSystemDictionary().allClassesDo(collector);
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8),
+                    OUTPUT_BUFFER_SIZE);
+            collector.print(out, !summary);
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Error writing output");
+            e.printStackTrace();
+        }
+        pageCache.printStats(System.out);
+    }
+
+    /**
+     * Groups the classes by defining loader. The dictionary has an entry per initiating loader, so a class is counted
+     * the first time it is seen. Names are compared as Symbol addresses, which the symbol table makes unique, and only
+     * the names that get printed are turned into strings.
+     */
+    static class ClassCollector implements SystemDictionary.ClassVisitor {
+        private final byte[] prefix;
+        private final long symbolBodyOffset;
+        private final long wordSize = VM.getVM().getAddressSize();
+        private final long instanceKlassSize;
+        private final long constantPoolSize;
+        private final long objArrayKlassSize;
+        private final long typeArrayKlassSize;
+
+        private final Set<Long> seen = new HashSet<>();
+        private final Map<Long, LoaderStats> loaders = new HashMap<>();
+        // the loaders defining each class name
+        private final Map<Long, List<LoaderStats>> definers = new HashMap<>();
+        private final Map<Long, Symbol> names = new HashMap<>();
+
+        ClassCollector(String prefix) {
+            this.prefix = prefix == null ? null : prefix.replace('.', '/').getBytes(StandardCharsets.UTF_8);
+            TypeDataBase db = VM.getVM().getTypeDataBase();
+            symbolBodyOffset = db.lookupType("Symbol").getField("_body").getOffset();
+            instanceKlassSize = db.lookupType("InstanceKlass").getSize();
+            constantPoolSize = db.lookupType("ConstantPool").getSize();
+            objArrayKlassSize = db.lookupType("ObjArrayKlass").getSize();
+            typeArrayKlassSize = db.lookupType("TypeArrayKlass").getSize();
+        }
+
+        @Override
+        public void visit(Klass klass) {
+            if (!seen.add(GenerationLookupTable.rawAddress(klass.getAddress()))) return;
+            Symbol name = klass.getName();
+            if (prefix != null && !startsWith(name)) return;
+
+            Oop loader = definingLoader(klass);
+            long loaderAddress = loader == null ? 0 : GenerationLookupTable.rawAddress(loader.getHandle());
+            LoaderStats stats = loaders.get(loaderAddress);
+            if (stats == null) {
+                stats = new LoaderStats(loaderAddress, loader);
+                loaders.put(loaderAddress, stats);
+            }
+            stats.klasses.add(klass);
+            stats.bytes += metadataBytes(klass);
+
+            long nameAddress = GenerationLookupTable.rawAddress(name.getAddress());
+            List<LoaderStats> definedBy = definers.get(nameAddress);
+            if (definedBy == null) {
+                definedBy = new ArrayList<>(1);
+                definers.put(nameAddress, definedBy);
+                names.put(nameAddress, name);
+            }
+            definedBy.add(stats);
+        }
+
+        /**
+         * Compare the bytes of the name with the prefix, without the String Symbol.startsWith would build.
+         */
+        private boolean startsWith(Symbol name) {
+            if (name.getLength() < prefix.length) return false;
+            byte[] bytes = DebuggerPageCache.readBytes(GenerationLookupTable.rawAddress(name.getAddress())
+                    + symbolBodyOffset, prefix.length);
+            return Arrays.equals(bytes, prefix);
+        }
+
+        private static Oop definingLoader(Klass klass) {
+            if (klass instanceof ObjArrayKlass) {
+                klass = ((ObjArrayKlass) klass).getBottomKlass();
+            }
+            // the type arrays belong to the bootstrap loader
+            return klass instanceof InstanceKlass ? ((InstanceKlass) klass).getClassLoader() : null;
+        }
+
+        /**
+         * The bytes of the klass, its constant pool and its methods, which is most of what a class takes in
+         * metaspace. Annotations, method data and the free space of the metaspace chunks are left out, and the
+         * classes of a CDS archive are counted though the archive is mapped outside of metaspace.
+         */
+        private long metadataBytes(Klass klass) {
+            if (!(klass instanceof InstanceKlass)) {
+                return klass instanceof ObjArrayKlass ? objArrayKlassSize : typeArrayKlassSize;
+            }
+            InstanceKlass instanceKlass = (InstanceKlass) klass;
+            long bytes = instanceKlassSize + (instanceKlass.getVtableLen() + instanceKlass.getItableLen()
+                    + instanceKlass.getNonstaticOopMapSize()) * wordSize;
+
+            ConstantPool constants = instanceKlass.getConstants();
+            bytes += constantPoolSize + constants.getLength() * wordSize + arrayBytes(constants.getTags());
+            ConstantPoolCache cache = constants.getCache();
+            if (cache != null) {
+                bytes += cache.getSize();
+            }
+            bytes += arrayBytes(instanceKlass.getLocalInterfaces());
+            bytes += arrayBytes(instanceKlass.getTransitiveInterfaces());
+            bytes += arrayBytes(instanceKlass.getInnerClasses());
+            bytes += arrayBytes(instanceKlass.getFields());
+
+            MethodArray methods = instanceKlass.getMethods();
+            bytes += arrayBytes(methods);
+            for (int i = 0; i < methods.getLength(); i++) {
+                Method method = methods.at(i);
+                bytes += (method.getMethodSize() + method.getConstMethod().getConstMethodSize()) * wordSize;
+            }
+            return bytes;
+        }
+
+        /**
+         * @return the bytes of a metadata array, 0 for an empty one, which all classes share
+         */
+        private long arrayBytes(GenericArray array) {
+            return array == null || array.getLength() == 0 ? 0 : array.getSize() * wordSize;
+        }
+
+        void print(Writer out, boolean printNames) throws IOException {
+            List<LoaderStats> sorted = new ArrayList<>(loaders.values());
+            Collections.sort(sorted, new Comparator<LoaderStats>() {
+                @Override
+                public int compare(LoaderStats o1, LoaderStats o2) {
+                    return Long.compare(o2.bytes, o1.bytes);
+                }
+            });
+
+            List<Long> duplicates = new ArrayList<>();
+            for (Map.Entry<Long, List<LoaderStats>> entry : definers.entrySet()) {
+                if (entry.getValue().size() < 2) continue;
+                duplicates.add(entry.getKey());
+                for (LoaderStats stats : entry.getValue()) {
+                    stats.duplicates++;
+                }
+            }
+
+            long totalClasses = 0;
+            long totalBytes = 0;
+            out.write(String.format("Class loaders:%s\n", prefix == null ? ""
+                    : " (classes starting with " + new String(prefix, StandardCharsets.UTF_8) + ")"));
+            out.write(String.format("%10s%16s%12s  %s\n", "classes", "metadata bytes", "duplicated", "loader"));
+            for (LoaderStats stats : sorted) {
+                totalClasses += stats.klasses.size();
+                totalBytes += stats.bytes;
+                out.write(String.format("%10d%16d%12d  %s\n", stats.klasses.size(), stats.bytes, stats.duplicates,
+                        stats.describe()));
             }
-        });
+            out.write(String.format("Total: %d classes, %f MB (%d bytes) of metadata, %d loaders\n", totalClasses,
+                    PrintDirectMemorySizeJDK8.toM(totalBytes), totalBytes, sorted.size()));
 
+            printDuplicates(out, duplicates);
+
+            if (!printNames) return;
+            for (LoaderStats stats : sorted) {
+                out.write(String.format("Classes of %s:\n", stats.describe()));
+                List<String> classNames = new ArrayList<>(stats.klasses.size());
+                for (Klass klass : stats.klasses) {
+                    classNames.add(klass.getName().asString());
+                }
+                Collections.sort(classNames);
+                for (String className : classNames) {
+                    out.write(className);
+                    out.write('\n');
+                }
+            }
+        }
+
+        private void printDuplicates(Writer out, List<Long> duplicates) throws IOException {
+            out.write("Class names defined by more than one loader:\n");
+            final Map<Long, String> duplicateNames = new HashMap<>();
+            for (Long nameAddress : duplicates) {
+                duplicateNames.put(nameAddress, names.get(nameAddress).asString());
+            }
+            Collections.sort(duplicates, new Comparator<Long>() {
+                @Override
+                public int compare(Long o1, Long o2) {
+                    int byCount = Integer.compare(definers.get(o2).size(), definers.get(o1).size());
+                    return byCount != 0 ? byCount : duplicateNames.get(o1).compareTo(duplicateNames.get(o2));
+                }
+            });
+
+            long extraCopies = 0;
+            for (Long nameAddress : duplicates) {
+                List<LoaderStats> definedBy = definers.get(nameAddress);
+                extraCopies += definedBy.size() - 1;
+                StringBuilder loaderNames = new StringBuilder();
+                for (LoaderStats stats : definedBy) {
+                    if (loaderNames.length() > 0) {
+                        loaderNames.append(", ");
+                    }
+                    loaderNames.append(stats.describe());
+                }
+                out.write(String.format("%10d  %s  (%s)\n", definedBy.size(), duplicateNames.get(nameAddress),
+                        loaderNames));
+            }
+            out.write(String.format("Total: %d names, %d extra copies\n", duplicates.size(), extraCopies));
+        }
+    }
+
+    private static class LoaderStats {
+        private final long address;
+        private final Oop loader;
+        private final List<Klass> klasses = new ArrayList<>();
+        private long bytes;
+        // the classes whose name another loader defines too
+        private long duplicates;
+
+        LoaderStats(long address, Oop loader) {
+            this.address = address;
+            this.loader = loader;
+        }
+
+        String describe() {
+            if (loader == null) return "<bootstrap>";
+            return String.format("%s@0x%x", loader.getKlass().getName().asString().replace('/', '.'), address);
+        }
     }
-}
\ No newline at end of file
+}
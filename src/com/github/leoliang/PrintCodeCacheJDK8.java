@@ -0,0 +1,354 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.code.CodeBlob;
+import sun.jvm.hotspot.code.NMethod;
+import sun.jvm.hotspot.debugger.Address;
+import sun.jvm.hotspot.debugger.AddressException;
+import sun.jvm.hotspot.memory.HeapBlock;
+import sun.jvm.hotspot.oops.Method;
+import sun.jvm.hotspot.runtime.VM;
+import sun.jvm.hotspot.runtime.VirtualSpace;
+import sun.jvm.hotspot.tools.Tool;
+import sun.jvm.hotspot.types.CIntegerField;
+import sun.jvm.hotspot.types.Type;
+import sun.jvm.hotspot.types.TypeDataBase;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Print the code cache of a running JVM: how full and how fragmented it is, with the largest block a compilation can
+ * still get, the bytes of compiled code per package, and every nmethod with its compile level, sizes and state. When
+ * the code cache is full the JIT stops compiling, and this shows which code fills it.
+ * Usage: java -cp .:${JAVA_HOME}/lib/sa-jdi.jar com.github.leoliang.PrintCodeCacheJDK8 [-summary] &lt;Running JVM's PID&gt; <br />
+ * You need to add sa-jdi.jar to your class path. This is generally available in your JDK's lib directory. Also, you might need to run this class with super user privileges in order to access the other JVM.
+ * <p>
+ */
+public class PrintCodeCacheJDK8 extends Tool {
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+
+    private boolean summary;
+
+    public PrintCodeCacheJDK8() {
+
+    }
+
+    /**
+     * @param summary to leave out the list of nmethods
+     */
+    public PrintCodeCacheJDK8(boolean summary) {
+        this.summary = summary;
+    }
+
+    public static void main(String[] args) {
+        boolean summary = false;
+
+        int used = 0;
+        while (used < args.length - 1 && args[used].startsWith("-")) {
+            String arg = args[used];
+            if ("-summary".equals(arg)) {
+                summary = true;
+                used++;
+            } else {
+                break;
+            }
+        }
+
+        if (used == args.length || args.length - used > 1) {
+            System.err.println("Usage: java com.github.leoliang.PrintCodeCacheJDK8 [-summary] <PID of the JVM whose code cache you want to print>");
+            System.exit(1);
+        }
+        args = Arrays.copyOfRange(args, used, args.length);
+
+        PrintCodeCacheJDK8 test = new PrintCodeCacheJDK8(summary);
+        test.execute(args);
+        test.stop();
+    }
+
+    @Override
+    public void run() {
+        DebuggerPageCache pageCache = DebuggerPageCache.install(getAgent());
+        try {
+            CodeHeapWalker walker = new CodeHeapWalker();
+            walker.walk();
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8),
+                    OUTPUT_BUFFER_SIZE);
+            walker.print(out, !summary);
+            out.flush();
+        } catch (AddressException e) {
+            System.err.println("Error accessing address 0x"
+                    + Long.toHexString(e.getAddress()));
+            e.printStackTrace();
+        } catch (IOException e) {
+            System.err.println("Error writing output");
+            e.printStackTrace();
+        }
+        pageCache.printStats(System.out);
+    }
+
+    /**
+     * Walks the blocks of the code heap one after the other, the free ones included, which CodeCache.iterate skips.
+     * HotSpot does not export the free list, so the free blocks are found in the walk. The segment map marks the
+     * segments never handed out with 0xFF; they start at the end of the last block and run to the end of the committed
+     * memory, and together with the reserved memory not committed yet they are where a block is carved from once no
+     * free block is large enough.
+     */
+    static class CodeHeapWalker {
+        private static final long UNUSED_SEGMENT = 0xFF;
+        // the states and compile levels of nmethod.hpp and globalDefinitions.hpp, which are not in the type database
+        private static final String[] STATES = {"in use", "not entrant", "zombie", "unloaded"};
+        private static final String[] LEVELS = {"none", "c1", "c1 limited profile", "c1 full profile", "c2"};
+
+        private final VirtualSpace memory;
+        private final VirtualSpace segmentMap;
+        private final int log2SegmentSize;
+        private final CIntegerField stateField;
+        private final CIntegerField compLevelField;
+
+        private long usedBlocks;
+        private long usedBytes;
+        private long freeBlocks;
+        private long freeBytes;
+        private long largestFreeBlock;
+        private long neverUsedBytes;
+        private long unknownBlobs;
+        private final List<CompiledMethod> methods = new ArrayList<>();
+        // blob count then bytes, per blob type
+        private final Map<String, long[]> stubs = new HashMap<>();
+
+        CodeHeapWalker() {
+            TypeDataBase db = VM.getVM().getTypeDataBase();
+            Address heap = db.lookupType("CodeCache").getAddressField("_heap").getValue();
+            Type heapType = db.lookupType("CodeHeap");
+            memory = new VirtualSpace(heap.addOffsetTo(heapType.getField("_memory").getOffset()));
+            segmentMap = new VirtualSpace(heap.addOffsetTo(heapType.getField("_segmap").getOffset()));
+            log2SegmentSize = (int) heapType.getCIntegerField("_log2_segment_size").getValue(heap);
+            Type nmethodType = db.lookupType("nmethod");
+            stateField = nmethodType.getCIntegerField("_state");
+            compLevelField = nmethodType.getCIntegerField("_comp_level");
+        }
+
+        void walk() {
+            Address low = memory.low();
+            Address high = memory.high();
+            Address map = segmentMap.low();
+            Address block = low;
+            while (block != null && block.lessThan(high)) {
+                long segment = block.minus(low) >>> log2SegmentSize;
+                if (map.getCIntegerAt(segment, 1, true) == UNUSED_SEGMENT) {
+                    neverUsedBytes = high.minus(block);
+                    break;
+                }
+                HeapBlock heapBlock = new HeapBlock(block);
+                long bytes = heapBlock.getLength() << log2SegmentSize;
+                if (heapBlock.isFree()) {
+                    freeBlocks++;
+                    freeBytes += bytes;
+                    largestFreeBlock = Math.max(largestFreeBlock, bytes);
+                } else {
+                    usedBlocks++;
+                    usedBytes += bytes;
+                    addBlob(heapBlock.getAllocatedSpace(), bytes);
+                }
+                block = block.addOffsetTo(bytes);
+            }
+        }
+
+        private void addBlob(Address address, long bytes) {
+            CodeBlob blob;
+            try {
+                blob = VM.getVM().getCodeCache().createCodeBlobWrapper(address);
+            } catch (RuntimeException e) {
+                // a blob of a type the agent has no wrapper for
+                unknownBlobs++;
+                return;
+            }
+            NMethod nmethod = blob.asNMethodOrNull();
+            if (nmethod == null) {
+                // the agent has a wrapper class per blob type, their names are one per stub
+                add(stubs, blob.getClass().getSimpleName(), bytes);
+                return;
+            }
+            CompiledMethod method = new CompiledMethod();
+            method.address = GenerationLookupTable.rawAddress(address);
+            method.bytes = bytes;
+            method.codeBytes = nmethod.instsSize();
+            method.stubBytes = nmethod.stubSize();
+            method.state = (int) stateField.getValue(address);
+            method.level = nmethod.isNativeMethod() ? -1 : (int) compLevelField.getValue(address);
+            method.osrBci = nmethod.isOSRMethod() ? nmethod.getOSREntryBCI() : -1;
+            Method javaMethod = nmethod.getMethod();
+            String holder = javaMethod.getMethodHolder().getName().asString();
+            int lastSlash = holder.lastIndexOf('/');
+            method.packageName = lastSlash < 0 ? "<default>" : holder.substring(0, lastSlash).replace('/', '.');
+            method.name = holder.replace('/', '.') + "." + javaMethod.getName().asString()
+                    + javaMethod.getSignature().asString();
+            methods.add(method);
+        }
+
+        void print(Writer out, boolean printMethods) throws IOException {
+            long reserved = memory.reservedSize();
+            long committed = memory.committedSize();
+            long uncommitted = memory.uncommittedSize();
+            // the tail never handed out and the reserve not committed yet are one contiguous range
+            long largestContiguous = Math.max(largestFreeBlock, neverUsedBytes + uncommitted);
+            out.write("Code cache:\n");
+            out.write(String.format("  reserved             = %f MB (%d bytes)\n", PrintDirectMemorySizeJDK8.toM(reserved), reserved));
+            out.write(String.format("  committed            = %f MB (%d bytes)\n", PrintDirectMemorySizeJDK8.toM(committed), committed));
+            out.write(String.format("  used                 = %f MB (%d bytes) in %d blocks, %.1f%% of reserved\n",
+                    PrintDirectMemorySizeJDK8.toM(usedBytes), usedBytes, usedBlocks, percent(usedBytes, reserved)));
+            out.write(String.format("  free blocks          = %f MB (%d bytes) in %d blocks, the largest %d bytes, %.1f%% fragmented\n",
+                    PrintDirectMemorySizeJDK8.toM(freeBytes), freeBytes, freeBlocks, largestFreeBlock,
+                    freeBytes == 0 ? 0.0 : 100.0 - percent(largestFreeBlock, freeBytes)));
+            out.write(String.format("  never used           = %f MB (%d bytes) committed, %f MB (%d bytes) not committed\n",
+                    PrintDirectMemorySizeJDK8.toM(neverUsedBytes), neverUsedBytes,
+                    PrintDirectMemorySizeJDK8.toM(uncommitted), uncommitted));
+            out.write(String.format("  largest contiguous   = %f MB (%d bytes)\n",
+                    PrintDirectMemorySizeJDK8.toM(largestContiguous), largestContiguous));
+            for (String name : new String[]{"UseCodeCacheFlushing", "ReservedCodeCacheSize", "CodeCacheMinimumFreeSpace"}) {
+                VM.Flag flag = VM.getVM().getCommandLineFlag(name);
+                if (flag != null) {
+                    out.write(String.format("  -XX:%-26s= %s\n", name, flag.getValue()));
+                }
+            }
+            if (unknownBlobs > 0) {
+                out.write(String.format("%d blocks hold a code blob of an unknown type\n", unknownBlobs));
+            }
+
+            printByLevel(out);
+            printByPackage(out);
+            printStubs(out);
+
+            if (!printMethods) return;
+            Collections.sort(methods, new Comparator<CompiledMethod>() {
+                @Override
+                public int compare(CompiledMethod o1, CompiledMethod o2) {
+                    return Long.compare(o2.bytes, o1.bytes);
+                }
+            });
+            out.write("nmethods by size:\n");
+            out.write(String.format("%18s%10s%10s%10s%20s%13s%7s  %s\n", "nmethod", "bytes", "code", "stubs", "level",
+                    "state", "osr", "method"));
+            for (CompiledMethod method : methods) {
+                out.write(String.format("0x%016x%10d%10d%10d%20s%13s%7s  %s\n", method.address, method.bytes,
+                        method.codeBytes, method.stubBytes, method.levelName(), method.stateName(),
+                        method.osrBci < 0 ? "-" : Integer.toString(method.osrBci), method.name));
+            }
+        }
+
+        private void printByLevel(Writer out) throws IOException {
+            // nmethods then bytes per level, and per state
+            Map<String, long[]> levels = new HashMap<>();
+            Map<String, long[]> states = new HashMap<>();
+            for (CompiledMethod method : methods) {
+                add(levels, method.levelName(), method.bytes);
+                add(states, method.stateName(), method.bytes);
+            }
+            out.write(String.format("%10s%16s  %s\n", "nmethods", "bytes", "compile level"));
+            printCounts(out, levels);
+            out.write(String.format("%10s%16s  %s\n", "nmethods", "bytes", "state"));
+            printCounts(out, states);
+        }
+
+        private void printByPackage(Writer out) throws IOException {
+            // nmethods, bytes, code bytes then not entrant bytes per package
+            Map<String, long[]> packages = new HashMap<>();
+            for (CompiledMethod method : methods) {
+                long[] stats = packages.get(method.packageName);
+                if (stats == null) {
+                    stats = new long[4];
+                    packages.put(method.packageName, stats);
+                }
+                stats[0]++;
+                stats[1] += method.bytes;
+                stats[2] += method.codeBytes;
+                if (method.state > 0) {
+                    stats[3] += method.bytes;
+                }
+            }
+            List<Map.Entry<String, long[]>> sorted = sortByBytes(packages);
+            out.write("Packages by nmethod bytes:\n");
+            out.write(String.format("%10s%16s%16s%20s  %s\n", "nmethods", "bytes", "code bytes", "not in use bytes",
+                    "package"));
+            for (Map.Entry<String, long[]> entry : sorted) {
+                long[] stats = entry.getValue();
+                out.write(String.format("%10d%16d%16d%20d  %s\n", stats[0], stats[1], stats[2], stats[3],
+                        entry.getKey()));
+            }
+        }
+
+        private void printStubs(Writer out) throws IOException {
+            out.write(String.format("%10s%16s  %s\n", "blobs", "bytes", "other code blobs by type"));
+            printCounts(out, stubs);
+        }
+
+        private static void add(Map<String, long[]> counts, String key, long bytes) {
+            long[] stats = counts.get(key);
+            if (stats == null) {
+                stats = new long[2];
+                counts.put(key, stats);
+            }
+            stats[0]++;
+            stats[1] += bytes;
+        }
+
+        private static void printCounts(Writer out, Map<String, long[]> counts) throws IOException {
+            long total = 0;
+            long totalBytes = 0;
+            for (Map.Entry<String, long[]> entry : sortByBytes(counts)) {
+                total += entry.getValue()[0];
+                totalBytes += entry.getValue()[1];
+                out.write(String.format("%10d%16d  %s\n", entry.getValue()[0], entry.getValue()[1], entry.getKey()));
+            }
+            out.write(String.format("%10d%16d  Total\n", total, totalBytes));
+        }
+
+        private static List<Map.Entry<String, long[]>> sortByBytes(Map<String, long[]> counts) {
+            List<Map.Entry<String, long[]>> sorted = new ArrayList<>(counts.entrySet());
+            Collections.sort(sorted, new Comparator<Map.Entry<String, long[]>>() {
+                @Override
+                public int compare(Map.Entry<String, long[]> o1, Map.Entry<String, long[]> o2) {
+                    return Long.compare(o2.getValue()[1], o1.getValue()[1]);
+                }
+            });
+            return sorted;
+        }
+
+        private static double percent(long part, long whole) {
+            return whole == 0 ? 0.0 : 100.0 * part / whole;
+        }
+
+        private static class CompiledMethod {
+            private long address;
+            // the whole block, header and padding included
+            private long bytes;
+            private long codeBytes;
+            private long stubBytes;
+            private int state;
+            // -1 for a native wrapper
+            private int level;
+            private int osrBci;
+            private String packageName;
+            private String name;
+
+            String stateName() {
+                return state >= 0 && state < STATES.length ? STATES[state] : "state " + state;
+            }
+
+            String levelName() {
+                if (level < 0) return "native wrapper";
+                return level < LEVELS.length ? LEVELS[level] : "level " + level;
+            }
+        }
+    }
+}
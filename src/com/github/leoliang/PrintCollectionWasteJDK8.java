@@ -0,0 +1,441 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.debugger.AddressException;
+import sun.jvm.hotspot.oops.Array;
+import sun.jvm.hotspot.oops.DefaultHeapVisitor;
+import sun.jvm.hotspot.oops.FloatField;
+import sun.jvm.hotspot.oops.InstanceKlass;
+import sun.jvm.hotspot.oops.IntField;
+import sun.jvm.hotspot.oops.Klass;
+import sun.jvm.hotspot.oops.LongField;
+import sun.jvm.hotspot.oops.ObjArray;
+import sun.jvm.hotspot.oops.Oop;
+import sun.jvm.hotspot.oops.OopField;
+import sun.jvm.hotspot.runtime.VM;
+import sun.jvm.hotspot.tools.Tool;
+import sun.jvm.hotspot.utilities.SystemDictionaryHelper;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Print how much of the backing arrays of the common JDK collections is empty, per collection class, with a histogram
+ * of how full they are and the collections wasting the most, to tell which ones to presize or to replace.
+ * A slot is wasted when the collection could hold its elements without it: an ArrayList beyond its size, a HashMap
+ * beyond the smallest table its load factor allows. A HashSet is charged with the table of the HashMap it wraps, which
+ * the HashMap row leaves out; the fill histogram and the most wasteful collections list that map as a HashMap.
+ * Usage: java -cp .:${JAVA_HOME}/lib/sa-jdi.jar com.github.leoliang.PrintCollectionWasteJDK8 [-n top] &lt;Running JVM's PID&gt; <br />
+ * You need to add sa-jdi.jar to your class path. This is generally available in your JDK's lib directory. Also, you might need to run this class with super user privileges in order to access the other JVM.
+ * <p>
+ */
+public class PrintCollectionWasteJDK8 extends Tool {
+    private int top;
+
+    public PrintCollectionWasteJDK8() {
+        this(20);
+    }
+
+    /**
+     * @param top the number of most wasteful collections to print
+     */
+    public PrintCollectionWasteJDK8(int top) {
+        this.top = top;
+    }
+
+    public static void main(String[] args) {
+        int top = 20;
+
+        int used = 0;
+        while (used < args.length - 1 && args[used].startsWith("-")) {
+            if ("-n".equals(args[used])) {
+                top = Integer.parseInt(args[used + 1]);
+            } else {
+                break;
+            }
+            used += 2;
+        }
+
+        if (used != 0) {
+            args = Arrays.copyOfRange(args, used, args.length);
+        }
+
+        PrintCollectionWasteJDK8 tool = new PrintCollectionWasteJDK8(top);
+        tool.execute(args);
+        tool.stop();
+    }
+
+    @Override
+    public void run() {
+        DebuggerPageCache pageCache = DebuggerPageCache.install(getAgent());
+        try {
+            CollectionWasteVisitor visitor = new CollectionWasteVisitor(top);
+            VM.getVM().getObjectHeap().iterate(visitor);
+            visitor.print(System.out);
+        } catch (AddressException e) {
+            System.err.println("Error accessing address 0x"
+                    + Long.toHexString(e.getAddress()));
+            e.printStackTrace();
+        }
+        pageCache.printStats(System.out);
+    }
+
+    /**
+     * Reads the size and the backing array of every instance of the supported collections and of their subclasses.
+     * The class of each object is looked up once in a map, the others cost nothing more.
+     */
+    static class CollectionWasteVisitor extends DefaultHeapVisitor {
+        // a bucket for the empty arrays, one per tenth of fill, then one for the collections without an array yet
+        private static final int FILL_BUCKETS = 11;
+        private static final int NO_ARRAY = 11;
+
+        private final List<Shape> shapes = new ArrayList<>();
+        private final Map<Klass, Shape> shapesByKlass = new HashMap<>();
+        private final Map<Klass, ClassWaste> wasteByKlass = new HashMap<>();
+        private final long slotSize = VM.getVM().getHeapOopSize();
+        private final int top;
+        // the most wasteful collections, least wasteful first
+        private final PriorityQueue<long[]> largest = new PriorityQueue<>(16, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] o1, long[] o2) {
+                return Long.compare(o1[1], o2[1]);
+            }
+        });
+        private final Map<Long, Klass> largestKlasses = new HashMap<>();
+        private final long[] fillCounts = new long[FILL_BUCKETS + 1];
+        private final long[] fillWaste = new long[FILL_BUCKETS + 1];
+
+        CollectionWasteVisitor(int top) {
+            this.top = top;
+            addShape(Shape.list("java.util.ArrayList", "elementData", "size"));
+            addShape(Shape.list("java.util.Vector", "elementData", "elementCount"));
+            addShape(Shape.hashTable("java.util.HashMap", "[Ljava/util/HashMap$Node;", "size", true));
+            addShape(Shape.hashTable("java.util.Hashtable", "[Ljava/util/Hashtable$Entry;", "count", false));
+            addShape(Shape.hashTable("java.util.WeakHashMap", "[Ljava/util/WeakHashMap$Entry;", "size", true));
+            addShape(Shape.hashSet());
+            addShape(Shape.identityHashMap());
+            addShape(Shape.arrayDeque());
+            addShape(Shape.concurrentHashMap());
+        }
+
+        private void addShape(Shape shape) {
+            if (shape != null) {
+                shapes.add(shape);
+            }
+        }
+
+        @Override
+        public boolean doObj(Oop oop) {
+            if (oop.isArray()) return false;
+            Klass klass = oop.getKlass();
+            Shape shape = shapeOf(klass);
+            if (shape == null) return false;
+
+            Oop collection = oop;
+            if (shape.kind == Shape.SET) {
+                collection = shape.mapField.getValue(oop);
+                shape = collection == null ? null : shapeOf(collection.getKlass());
+                if (shape == null || shape.kind == Shape.SET) return false;
+            }
+
+            ObjArray array = (ObjArray) shape.arrayField.getValue(collection);
+            if (array != null && array.getLength() == 0) {
+                // the empty array an ArrayList shares with all the others until its first add
+                array = null;
+            }
+            long size = shape.size(collection, array);
+            long slots = array == null ? 0 : array.getLength();
+            long wasted = Math.max(0, slots - shape.neededSlots(collection, size)) * slotSize;
+
+            wasteOf(klass).add(1, size, slots, array, wasted);
+            if (collection != oop) {
+                // the walk visits the wrapped map on its own too, before or after its set, and adds the same there:
+                // taking it off here leaves it in the set's row only, and the map in the fill histogram once
+                wasteOf(collection.getKlass()).add(-1, size, slots, array, wasted);
+                return false;
+            }
+
+            int bucket = array == null ? NO_ARRAY
+                    : (int) Math.min(FILL_BUCKETS - 1, (size * shape.slotsPerEntry * 10 + slots - 1) / slots);
+            fillCounts[bucket]++;
+            fillWaste[bucket] += wasted;
+
+            if (wasted > 0 && top > 0 && (largest.size() < top || wasted > largest.peek()[1])) {
+                long address = GenerationLookupTable.rawAddress(oop.getHandle());
+                largest.add(new long[]{address, wasted, size, slots});
+                largestKlasses.put(address, klass);
+                if (largest.size() > top) {
+                    largestKlasses.remove(largest.poll()[0]);
+                }
+            }
+            return false;
+        }
+
+        private ClassWaste wasteOf(Klass klass) {
+            ClassWaste waste = wasteByKlass.get(klass);
+            if (waste == null) {
+                waste = new ClassWaste(klass);
+                wasteByKlass.put(klass, waste);
+            }
+            return waste;
+        }
+
+        private Shape shapeOf(Klass klass) {
+            if (shapesByKlass.containsKey(klass)) {
+                return shapesByKlass.get(klass);
+            }
+            Shape found = null;
+            for (Shape shape : shapes) {
+                if (klass.isSubclassOf(shape.klass)) {
+                    found = shape;
+                    break;
+                }
+            }
+            shapesByKlass.put(klass, found);
+            return found;
+        }
+
+        void print(PrintStream out) {
+            List<ClassWaste> classes = new ArrayList<>(wasteByKlass.values());
+            classes.sort(new Comparator<ClassWaste>() {
+                @Override
+                public int compare(ClassWaste o1, ClassWaste o2) {
+                    return Long.compare(o2.wasted, o1.wasted);
+                }
+            });
+
+            long totalWasted = 0;
+            long totalArrayBytes = 0;
+            out.println("Collections by wasted backing array bytes:");
+            out.printf("%12s%14s%14s%16s%16s%12s  %s\n", "collections", "elements", "slots", "array bytes",
+                    "wasted bytes", "empty", "class");
+            for (ClassWaste waste : classes) {
+                // a map class whose every instance a set wraps, like the LinkedHashMap of a LinkedHashSet
+                if (waste.count == 0) continue;
+                totalWasted += waste.wasted;
+                totalArrayBytes += waste.arrayBytes;
+                out.printf("%12d%14d%14d%16d%16d%12d  %s\n", waste.count, waste.elements, waste.slots,
+                        waste.arrayBytes, waste.wasted, waste.emptyWithArray,
+                        waste.klass.getName().asString().replace('/', '.'));
+            }
+            out.printf("Total: %f MB (%d bytes) wasted of %f MB (%d bytes) of backing arrays\n",
+                    PrintDirectMemorySizeJDK8.toM(totalWasted), totalWasted,
+                    PrintDirectMemorySizeJDK8.toM(totalArrayBytes), totalArrayBytes);
+
+            out.println("Collections by fill of their backing array: (elements per slot, a hash table's load factor)");
+            out.printf("%12s%12s%16s\n", "fill", "collections", "wasted bytes");
+            for (int i = 0; i < FILL_BUCKETS; i++) {
+                String range = i == 0 ? "0%" : i == FILL_BUCKETS - 1 ? ">90%"
+                        : String.format("%d-%d%%", (i - 1) * 10 + 1, i * 10);
+                out.printf("%12s%12d%16d\n", range, fillCounts[i], fillWaste[i]);
+            }
+            out.printf("%12s%12d%16d\n", "no array", fillCounts[NO_ARRAY], fillWaste[NO_ARRAY]);
+
+            List<long[]> ranked = new ArrayList<>(largest);
+            ranked.sort(new Comparator<long[]>() {
+                @Override
+                public int compare(long[] o1, long[] o2) {
+                    return Long.compare(o2[1], o1[1]);
+                }
+            });
+            out.println("Most wasteful collections:");
+            out.printf("%20s%16s%14s%14s  %s\n", "address", "wasted bytes", "elements", "slots", "class");
+            for (long[] collection : ranked) {
+                out.printf("  0x%016x%16d%14d%14d  %s\n", collection[0], collection[1], collection[2], collection[3],
+                        largestKlasses.get(collection[0]).getName().asString().replace('/', '.'));
+            }
+        }
+    }
+
+    /**
+     * Where a collection keeps its size and its backing array, and how many slots it needs for a given size.
+     */
+    private static class Shape {
+        private static final int LIST = 0;
+        private static final int POWER_OF_TWO_TABLE = 1;
+        private static final int TABLE = 2;
+        private static final int IDENTITY_TABLE = 3;
+        private static final int DEQUE = 4;
+        private static final int CONCURRENT_TABLE = 5;
+        // a HashSet, whose backing array is the table of the HashMap it wraps
+        private static final int SET = 6;
+
+        private final InstanceKlass klass;
+        private final int kind;
+        private final OopField arrayField;
+        private OopField mapField;
+        private IntField sizeField;
+        private FloatField loadFactorField;
+        private IntField headField;
+        private IntField tailField;
+        private LongField baseCountField;
+        private OopField counterCellsField;
+        private LongField counterCellValueField;
+        // an IdentityHashMap keeps the key and the value side by side
+        private int slotsPerEntry = 1;
+
+        private Shape(InstanceKlass klass, int kind, String arrayField, String arraySignature) {
+            this.klass = klass;
+            this.kind = kind;
+            this.arrayField = arrayField == null ? null : (OopField) klass.findField(arrayField, arraySignature);
+        }
+
+        static Shape list(String className, String arrayField, String sizeField) {
+            InstanceKlass klass = SystemDictionaryHelper.findInstanceKlass(className);
+            if (klass == null) return null;
+            Shape shape = new Shape(klass, LIST, arrayField, "[Ljava/lang/Object;");
+            shape.sizeField = (IntField) klass.findField(sizeField, "I");
+            return shape;
+        }
+
+        static Shape hashTable(String className, String arraySignature, String sizeField, boolean powerOfTwo) {
+            InstanceKlass klass = SystemDictionaryHelper.findInstanceKlass(className);
+            if (klass == null) return null;
+            Shape shape = new Shape(klass, powerOfTwo ? POWER_OF_TWO_TABLE : TABLE, "table", arraySignature);
+            shape.sizeField = (IntField) klass.findField(sizeField, "I");
+            shape.loadFactorField = (FloatField) klass.findField("loadFactor", "F");
+            return shape;
+        }
+
+        static Shape hashSet() {
+            InstanceKlass klass = SystemDictionaryHelper.findInstanceKlass("java.util.HashSet");
+            if (klass == null) return null;
+            Shape shape = new Shape(klass, SET, null, null);
+            shape.mapField = (OopField) klass.findField("map", "Ljava/util/HashMap;");
+            return shape;
+        }
+
+        static Shape identityHashMap() {
+            InstanceKlass klass = SystemDictionaryHelper.findInstanceKlass("java.util.IdentityHashMap");
+            if (klass == null) return null;
+            Shape shape = new Shape(klass, IDENTITY_TABLE, "table", "[Ljava/lang/Object;");
+            shape.sizeField = (IntField) klass.findField("size", "I");
+            shape.slotsPerEntry = 2;
+            return shape;
+        }
+
+        static Shape arrayDeque() {
+            InstanceKlass klass = SystemDictionaryHelper.findInstanceKlass("java.util.ArrayDeque");
+            if (klass == null) return null;
+            Shape shape = new Shape(klass, DEQUE, "elements", "[Ljava/lang/Object;");
+            shape.headField = (IntField) klass.findField("head", "I");
+            shape.tailField = (IntField) klass.findField("tail", "I");
+            return shape;
+        }
+
+        static Shape concurrentHashMap() {
+            InstanceKlass klass = SystemDictionaryHelper.findInstanceKlass("java.util.concurrent.ConcurrentHashMap");
+            if (klass == null) return null;
+            Shape shape = new Shape(klass, CONCURRENT_TABLE, "table",
+                    "[Ljava/util/concurrent/ConcurrentHashMap$Node;");
+            shape.baseCountField = (LongField) klass.findField("baseCount", "J");
+            shape.counterCellsField = (OopField) klass.findField("counterCells",
+                    "[Ljava/util/concurrent/ConcurrentHashMap$CounterCell;");
+            InstanceKlass counterCellKlass =
+                    SystemDictionaryHelper.findInstanceKlass("java.util.concurrent.ConcurrentHashMap$CounterCell");
+            if (counterCellKlass != null) {
+                shape.counterCellValueField = (LongField) counterCellKlass.findField("value", "J");
+            }
+            return shape;
+        }
+
+        long size(Oop collection, Array array) {
+            switch (kind) {
+                case DEQUE:
+                    return array == null ? 0 : (tailField.getValue(collection) - headField.getValue(collection))
+                            & (array.getLength() - 1);
+                case CONCURRENT_TABLE:
+                    // ConcurrentHashMap.sumCount()
+                    long size = baseCountField.getValue(collection);
+                    ObjArray cells = (ObjArray) counterCellsField.getValue(collection);
+                    if (cells != null && counterCellValueField != null) {
+                        for (long i = 0; i < cells.getLength(); i++) {
+                            Oop cell = cells.getObjAt(i);
+                            if (cell != null) {
+                                size += counterCellValueField.getValue(cell);
+                            }
+                        }
+                    }
+                    return Math.max(0, size);
+                default:
+                    return sizeField.getValue(collection);
+            }
+        }
+
+        /**
+         * @return the slots of the smallest backing array the collection would hold its elements in
+         */
+        long neededSlots(Oop collection, long size) {
+            switch (kind) {
+                case LIST:
+                    return size;
+                case POWER_OF_TWO_TABLE:
+                    return size == 0 ? 0 : powerOfTwoAtLeast((long) Math.ceil(size / loadFactor(collection)));
+                case TABLE:
+                    return size == 0 ? 0 : (long) Math.ceil(size / loadFactor(collection));
+                case IDENTITY_TABLE:
+                    // IdentityHashMap.capacity(expectedMaxSize), a key and a value slot per entry, 8 slots when empty
+                    return 2 * Math.min(1L << 29, Math.max(4, Long.highestOneBit(size * 3)));
+                case DEQUE:
+                    // one slot is always left free, and 8 is the smallest capacity
+                    return Math.max(8, powerOfTwoAtLeast(size + 1));
+                default:
+                    return size == 0 ? 0 : powerOfTwoAtLeast((long) Math.ceil(size / 0.75));
+            }
+        }
+
+        private float loadFactor(Oop collection) {
+            float loadFactor = loadFactorField.getValue(collection);
+            return loadFactor > 0 ? loadFactor : 0.75f;
+        }
+
+        private static long powerOfTwoAtLeast(long n) {
+            return n <= 1 ? 1 : Long.highestOneBit(n - 1) << 1;
+        }
+    }
+
+    private static class ClassWaste {
+        private final Klass klass;
+        private long count;
+        private long elements;
+        private long slots;
+        private long arrayBytes;
+        private long wasted;
+        // the collections with a backing array and no element
+        private long emptyWithArray;
+
+        ClassWaste(Klass klass) {
+            this.klass = klass;
+        }
+
+        /**
+         * @param sign 1 to add a collection, -1 to take it off
+         */
+        void add(int sign, long size, long slots, Array array, long wasted) {
+            count += sign;
+            elements += sign * size;
+            this.slots += sign * slots;
+            this.wasted += sign * wasted;
+            if (array != null) {
+                arrayBytes += sign * array.getObjectSize();
+                if (size == 0) {
+                    emptyWithArray += sign;
+                }
+            }
+        }
+    }
+
+    public String getName() {
+        return "collectionWaste";
+    }
+
+    protected void printFlagsUsage() {
+        System.out.println("    -n <top>\tto print the top wasteful collections (default 20)");
+        super.printFlagsUsage();
+    }
+}
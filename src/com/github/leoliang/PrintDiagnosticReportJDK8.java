@@ -0,0 +1,110 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.debugger.AddressException;
+import sun.jvm.hotspot.oops.ObjectHeap;
+import sun.jvm.hotspot.runtime.VM;
+import sun.jvm.hotspot.tools.Tool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Print classes, string table, symbol table, NIO direct memory and the instance stats group by generation of a
+ * running JVM in a single attach.
+ * The direct memory and generation stats share one heap walk, and the time the target was stopped is printed per phase.
+ * Usage: java -cp .:${JAVA_HOME}/lib/sa-jdi.jar com.github.leoliang.PrintDiagnosticReportJDK8 &lt;Running JVM's PID&gt; <br />
+ * You need to add sa-jdi.jar to your class path. This is generally available in your JDK's lib directory. Also, you might need to run this class with super user privileges in order to access the other JVM.
+ * <p>
+ */
+public class PrintDiagnosticReportJDK8 extends Tool {
+    private final List<String> phaseNames = new ArrayList<>();
+    private final List<Long> phaseNanos = new ArrayList<>();
+    private long attachStart;
+
+    public static void main(String[] args) {
+        PrintDiagnosticReportJDK8 tool = new PrintDiagnosticReportJDK8();
+        tool.attachStart = System.nanoTime();
+        tool.execute(args);
+    }
+
+    /**
+     * execute() detaches through stop() and then exits, so the pause time is printed from here.
+     */
+    @Override
+    public void stop() {
+        long detachStart = System.nanoTime();
+        super.stop();
+        if (phaseNames.isEmpty()) return;
+        recordPhase("detach", detachStart);
+        printPhases(System.nanoTime() - attachStart);
+        phaseNames.clear();
+        phaseNanos.clear();
+    }
+
+    @Override
+    public void run() {
+        recordPhase("attach", attachStart);
+        DebuggerPageCache pageCache = DebuggerPageCache.install(getAgent());
+
+        try {
+            long start = System.nanoTime();
+            System.out.println("================================ Classes ================================");
+            new PrintClassesJDK8().run();
+            recordPhase("classes", start);
+
+            start = System.nanoTime();
+            System.out.println("============================== String table ==============================");
+            new PrintStringTableJDK8().run();
+            recordPhase("string table", start);
+
+            start = System.nanoTime();
+            System.out.println("============================== Symbol table ==============================");
+            new PrintSymbolTableJDK8().run();
+            recordPhase("symbol table", start);
+
+            start = System.nanoTime();
+            System.out.println("============================= Direct memory ==============================");
+            long reservedMemory = PrintDirectMemorySizeJDK8.printReservedMemory();
+            recordPhase("direct memory", start);
+
+            start = System.nanoTime();
+            ObjectHeap heap = VM.getVM().getObjectHeap();
+            PrintDirectMemorySizeJDK8.DeallocatorVisitor deallocatorVisitor =
+                    new PrintDirectMemorySizeJDK8.DeallocatorVisitor(false);
+            PrintHeapInstancesStatsGroupByGenerationJDK8.HeapStatsVisitor heapStatsVisitor =
+                    new PrintHeapInstancesStatsGroupByGenerationJDK8.HeapStatsVisitor(GenerationLookupTable.build());
+            heap.iterate(new FanOutHeapVisitor(deallocatorVisitor, heapStatsVisitor));
+            recordPhase("heap walk", start);
+
+            start = System.nanoTime();
+            PrintDirectMemorySizeJDK8.printMallocSize(reservedMemory, deallocatorVisitor);
+            PrintDirectMemorySizeJDK8.printPendingCleaners(deallocatorVisitor);
+            deallocatorVisitor.printCapacityHistogram(System.out);
+            System.out.println("=========================== Instances by generation ===========================");
+            PrintHeapInstancesStatsGroupByGenerationJDK8.printHistogram(heapStatsVisitor, false);
+            recordPhase("heap report", start);
+        } catch (AddressException e) {
+            System.err.println("Error accessing address 0x"
+                    + Long.toHexString(e.getAddress()));
+            e.printStackTrace();
+        }
+        pageCache.printStats(System.out);
+    }
+
+    private void recordPhase(String name, long startNanos) {
+        phaseNames.add(name);
+        phaseNanos.add(System.nanoTime() - startNanos);
+    }
+
+    private void printPhases(long totalNanos) {
+        System.out.println("============================ Target pause time ============================");
+        for (int i = 0; i < phaseNames.size(); i++) {
+            System.out.printf("%20s%12.3f ms\n", phaseNames.get(i), phaseNanos.get(i) / 1e6);
+        }
+        System.out.printf("%20s%12.3f ms\n", "total", totalNanos / 1e6);
+    }
+
+    public String getName() {
+        return "diagnosticReport";
+    }
+}
@@ -4,6 +4,7 @@ import sun.jvm.hotspot.debugger.AddressException;
 import sun.jvm.hotspot.oops.DefaultHeapVisitor;
 import sun.jvm.hotspot.oops.InstanceKlass;
 import sun.jvm.hotspot.oops.IntField;
+import sun.jvm.hotspot.oops.Klass;
 import sun.jvm.hotspot.oops.LongField;
 import sun.jvm.hotspot.oops.ObjectHeap;
 import sun.jvm.hotspot.oops.Oop;
@@ -12,11 +13,28 @@ import sun.jvm.hotspot.runtime.VM;
 import sun.jvm.hotspot.tools.Tool;
 import sun.jvm.hotspot.utilities.SystemDictionaryHelper;
 
+import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 /**
  * Print stats of NIO direct memory, as an alternative on JDK6 without JMX support for direct memory monitoring
- * Usage: java -cp .:${JAVA_HOME}/lib/sa-jdi.jar com.github.leoliang.PrintDirectMemorySizeJDK8 &lt;Running JVM's PID&gt; <br />
+ * The Cleaners of direct buffers that the GC has already found unreachable but the Reference Handler thread has not
+ * run yet are always counted, so a high reserved size can be told apart from a leak.
+ * With -v the live buffers are summarized by capacity, -l lists every one of them. With -r they are also summarized by
+ * the class of the objects referencing them, which walks the whole heap twice: once for the buffers and their views,
+ * once for the objects referencing them.
+ * With -budget the live buffers are counted in a random sample of the heap, see {@link HeapSampler}, and extrapolated
+ * with 95% confidence intervals instead of walking every object of the Deallocator class. The attach is not in the
+ * budget and is reported apart.
+ * Usage: java -cp .:${JAVA_HOME}/lib/sa-jdi.jar com.github.leoliang.PrintDirectMemorySizeJDK8 [-e] [-v] [-r] [-l] [-budget 300ms] &lt;Running JVM's PID&gt; <br />
  * You need to add sa-jdi.jar to your class path. This is generally available in your JDK's lib directory. Also, you might need to run this class with super user privileges in order to access the other JVM.
  * <p>
  * Base on https://gist.github.com/rednaxelafx/1593521#file-directmemorysize-java
@@ -24,10 +42,32 @@ import java.util.Arrays;
 public class PrintDirectMemorySizeJDK8 extends Tool {
     private boolean exactMallocMode;
     private boolean verbose;
+    private boolean listBuffers;
+    private boolean printReferrers;
+    private long budgetNanos;
+    private long attachStart;
 
     public PrintDirectMemorySizeJDK8(boolean exactMallocMode, boolean verbose) {
+        this(exactMallocMode, verbose, false, 0);
+    }
+
+    /**
+     * @param verbose     to summarize the live buffers by capacity
+     * @param listBuffers to print every live buffer
+     * @param budgetNanos the longest the target may be paused for, 0 to count every live buffer
+     */
+    public PrintDirectMemorySizeJDK8(boolean exactMallocMode, boolean verbose, boolean listBuffers, long budgetNanos) {
         this.exactMallocMode = exactMallocMode;
         this.verbose = verbose;
+        this.listBuffers = listBuffers;
+        this.budgetNanos = budgetNanos;
+    }
+
+    /**
+     * @param printReferrers to summarize the live buffers by referencing class, with a second walk of the whole heap
+     */
+    public void setPrintReferrers(boolean printReferrers) {
+        this.printReferrers = printReferrers;
     }
 
     public static long getStaticLongFieldValue(String className, String fieldName) {
@@ -58,16 +98,29 @@ public class PrintDirectMemorySizeJDK8 extends Tool {
     public static void main(String[] args) {
         boolean exactMallocMode = false;
         boolean verbose = false;
+        boolean listBuffers = false;
+        boolean printReferrers = false;
+        long budgetNanos = 0;
 
         // argument processing logic copied from sun.jvm.hotspot.tools.JStack
         int used = 0;
-        for (String arg : args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
             if ("-e".equals(arg)) {
                 exactMallocMode = true;
                 used++;
             } else if ("-v".equals(arg)) {
                 verbose = true;
                 used++;
+            } else if ("-l".equals(arg)) {
+                listBuffers = true;
+                used++;
+            } else if ("-r".equals(arg)) {
+                printReferrers = true;
+                used++;
+            } else if (("-budget".equals(arg) || "--budget".equals(arg)) && i + 1 < args.length) {
+                budgetNanos = HeapSampler.parseBudget(args[++i]);
+                used += 2;
             }
         }
 
@@ -75,58 +128,52 @@ public class PrintDirectMemorySizeJDK8 extends Tool {
             args = Arrays.copyOfRange(args, used, args.length);
         }
 
-        PrintDirectMemorySizeJDK8 tool = new PrintDirectMemorySizeJDK8(exactMallocMode, verbose);
+        PrintDirectMemorySizeJDK8 tool = new PrintDirectMemorySizeJDK8(exactMallocMode, verbose, listBuffers, budgetNanos);
+        tool.setPrintReferrers(printReferrers);
+        // the target is paused from the attach on, which is reported apart from the budget
+        tool.attachStart = System.nanoTime();
         tool.execute(args);
         tool.stop();
     }
 
     public void run() {
+        // the target is stopped and the agent attached, the budget counts from here
+        long runStart = System.nanoTime();
+        DebuggerPageCache pageCache = DebuggerPageCache.install(getAgent());
         // Ready to go with the database...
         try {
-            long reservedMemory = getStaticAtomicLongFieldValue("java.nio.Bits", "reservedMemory");
-            long directMemory = getStaticLongFieldValue("sun.misc.VM", "directMemory");
+            long reservedMemory = printReservedMemory();
+            DeallocatorVisitor deallocatorVisitor = new DeallocatorVisitor(listBuffers);
+            printPendingCleaners(deallocatorVisitor);
 
-            System.out.println("NIO direct memory: (in bytes)");
-            System.out.printf("  reserved size = %f MB (%d bytes)\n", toM(reservedMemory), reservedMemory);
-            System.out.printf("  max size      = %f MB (%d bytes)\n", toM(directMemory), directMemory);
-
-            if (verbose) {
+            if (listBuffers) {
                 System.out.println("Currently allocated direct buffers:");
             }
 
-            if (exactMallocMode || verbose) {
-                final long pageSize = getStaticIntFieldValue("java.nio.Bits", "pageSize");
+            if (budgetNanos > 0) {
+                estimateLiveBuffers(reservedMemory, deallocatorVisitor, runStart);
+            } else if (exactMallocMode || verbose || listBuffers || printReferrers) {
                 ObjectHeap heap = VM.getVM().getObjectHeap();
-                InstanceKlass deallocatorKlass =
-                        SystemDictionaryHelper.findInstanceKlass("java.nio.DirectByteBuffer$Deallocator");
-                final LongField addressField = (LongField) deallocatorKlass.findField("address", "J");
-                final IntField capacityField = (IntField) deallocatorKlass.findField("capacity", "I");
-                final int[] countHolder = new int[1];
-
-                heap.iterateObjectsOfKlass(new DefaultHeapVisitor() {
-                    public boolean doObj(Oop oop) {
-                        long address = addressField.getValue(oop);
-                        if (address == 0) return false; // this deallocator has already been run
-
-                        long capacity = capacityField.getValue(oop);
-                        long mallocSize = capacity + pageSize;
-                        countHolder[0]++;
-
-                        if (verbose) {
-                            System.out.printf("  0x%016x: capacity = %f MB (%d bytes),"
-                                            + " mallocSize = %f MB (%d bytes)\n",
-                                    address, toM(capacity), capacity,
-                                    toM(mallocSize), mallocSize);
-                        }
-
-                        return false;
+                if (deallocatorVisitor.getDeallocatorKlass() != null) {
+                    DirectBufferReferrers referrers = null;
+                    if (printReferrers) {
+                        // the views of a buffer are not Deallocators, every object is looked at to collect them
+                        referrers = new DirectBufferReferrers(deallocatorVisitor);
+                        heap.iterate(new FanOutHeapVisitor(deallocatorVisitor, referrers));
+                    } else {
+                        heap.iterateObjectsOfKlass(deallocatorVisitor, deallocatorVisitor.getDeallocatorKlass(), false);
                     }
-                }, deallocatorKlass, false);
+                    if (verbose) {
+                        deallocatorVisitor.printCapacityHistogram(System.out);
+                    }
+                    if (referrers != null) {
+                        referrers.findReferrers(heap);
+                        referrers.printReferrers(System.out);
+                    }
+                }
 
                 if (exactMallocMode) {
-                    long totalMallocSize = reservedMemory + pageSize * countHolder[0];
-                    System.out.printf("NIO direct memory malloc'd size: %f MB (%d bytes)\n",
-                            toM(totalMallocSize), totalMallocSize);
+                    printMallocSize(reservedMemory, deallocatorVisitor);
                 }
             }
         } catch (AddressException e) {
@@ -134,6 +181,113 @@ public class PrintDirectMemorySizeJDK8 extends Tool {
                     + Long.toHexString(e.getAddress()));
             e.printStackTrace();
         }
+        pageCache.printStats(System.out);
+    }
+
+    private void estimateLiveBuffers(long reservedMemory, DeallocatorVisitor deallocatorVisitor, long runStart) {
+        if (deallocatorVisitor.getDeallocatorKlass() == null) {
+            System.out.println("No direct buffer was ever allocated");
+            return;
+        }
+
+        HeapSampler sampler = HeapSampler.build();
+        SampledDeallocatorVisitor visitor = new SampledDeallocatorVisitor(deallocatorVisitor, sampler.strata());
+        // a tenth of the budget is left for printing
+        sampler.walk(runStart + budgetNanos / 10 * 9, new Random(), visitor);
+
+        // the strata are sampled independently, so their estimates add up and their variances too
+        double count = 0;
+        double countVariance = 0;
+        double capacity = 0;
+        double capacityVariance = 0;
+        List<String> notEstimated = new ArrayList<>();
+        for (int s = 0; s < sampler.strata(); s++) {
+            if (sampler.unitCount(s) == 0) continue;
+            if (sampler.sampledCount(s) == 0) {
+                notEstimated.add(HistogramSnapshot.GENERATION_NAMES[s]);
+                continue;
+            }
+            double[] sums = visitor.getSums(s);
+            double[] countEstimate = sampler.estimate(s, sums[0], sums[1]);
+            double[] capacityEstimate = sampler.estimate(s, sums[2], sums[3]);
+            count += countEstimate[0];
+            countVariance += countEstimate[1] * countEstimate[1];
+            capacity += capacityEstimate[0];
+            capacityVariance += capacityEstimate[1] * capacityEstimate[1];
+        }
+        double countHalfWidth = Math.sqrt(countVariance);
+        double capacityHalfWidth = Math.sqrt(capacityVariance);
+
+        sampler.printCoverage(System.out);
+        if (!notEstimated.isEmpty()) {
+            System.out.println("Live direct buffers not estimated, no unit of " + notEstimated + " was sampled");
+        } else {
+            System.out.println("Estimated live direct buffers: (95% confidence)");
+            System.out.printf("  count    = %.0f +- %s\n", count, formatHalfWidth(countHalfWidth));
+            System.out.printf("  capacity = %f MB (%.0f +- %s bytes)\n", toM((long) capacity), capacity,
+                    formatHalfWidth(capacityHalfWidth));
+            if (exactMallocMode) {
+                long pageSize = deallocatorVisitor.getPageSize();
+                double mallocSize = reservedMemory + pageSize * count;
+                System.out.printf("NIO direct memory malloc'd size: %f MB (%.0f +- %s bytes)\n",
+                        toM((long) mallocSize), mallocSize, formatHalfWidth(pageSize * countHalfWidth));
+            }
+        }
+        HeapSampler.printPause(System.out, attachStart, runStart, budgetNanos);
+    }
+
+    private static String formatHalfWidth(double halfWidth) {
+        return Double.isNaN(halfWidth) ? "?" : String.format("%.0f", halfWidth);
+    }
+
+    static long printReservedMemory() {
+        long reservedMemory = getStaticAtomicLongFieldValue("java.nio.Bits", "reservedMemory");
+        long directMemory = getStaticLongFieldValue("sun.misc.VM", "directMemory");
+
+        System.out.println("NIO direct memory: (in bytes)");
+        System.out.printf("  reserved size = %f MB (%d bytes)\n", toM(reservedMemory), reservedMemory);
+        System.out.printf("  max size      = %f MB (%d bytes)\n", toM(directMemory), directMemory);
+        return reservedMemory;
+    }
+
+    /**
+     * Walk the references the GC has found unreachable and handed over to the Reference Handler thread, which runs
+     * the Cleaners of direct buffers itself, and print how much direct memory is only waiting for it.
+     */
+    static void printPendingCleaners(DeallocatorVisitor deallocatorVisitor) {
+        InstanceKlass referenceKlass = SystemDictionaryHelper.findInstanceKlass("java.lang.ref.Reference");
+        InstanceKlass cleanerKlass = SystemDictionaryHelper.findInstanceKlass("sun.misc.Cleaner");
+        OopField pendingField = (OopField) referenceKlass.findField("pending", "Ljava/lang/ref/Reference;");
+        // the pending list is linked through the discovered field
+        OopField discoveredField = (OopField) referenceKlass.findField("discovered", "Ljava/lang/ref/Reference;");
+        OopField thunkField = cleanerKlass == null ? null : (OopField) cleanerKlass.findField("thunk", "Ljava/lang/Runnable;");
+
+        long references = 0;
+        long cleaners = 0;
+        long capacity = 0;
+        Oop reference = pendingField.getValue(referenceKlass.getJavaMirror());
+        while (reference != null) {
+            references++;
+            if (thunkField != null && cleanerKlass.equals(reference.getKlass())) {
+                long bufferCapacity = deallocatorVisitor.liveCapacity(thunkField.getValue(reference));
+                if (bufferCapacity >= 0) {
+                    cleaners++;
+                    capacity += bufferCapacity;
+                }
+            }
+            Oop next = discoveredField.getValue(reference);
+            if (next != null && next.equals(reference)) break;
+            reference = next;
+        }
+
+        System.out.println("Pending references not yet processed by the Reference Handler thread: " + references);
+        System.out.printf("  direct buffer Cleaners = %d, holding %f MB (%d bytes)\n", cleaners, toM(capacity), capacity);
+    }
+
+    static void printMallocSize(long reservedMemory, DeallocatorVisitor deallocatorVisitor) {
+        long totalMallocSize = reservedMemory + deallocatorVisitor.getPageSize() * deallocatorVisitor.getCount();
+        System.out.printf("NIO direct memory malloc'd size: %f MB (%d bytes)\n",
+                toM(totalMallocSize), totalMallocSize);
     }
 
     public String getName() {
@@ -142,7 +296,316 @@ public class PrintDirectMemorySizeJDK8 extends Tool {
 
     protected void printFlagsUsage() {
         System.out.println("    -e\tto print the actual size malloc'd");
-        System.out.println("    -v\tto print verbose info of every live DirectByteBuffer allocated from Java");
+        System.out.println("    -v\tto summarize the live DirectByteBuffers by capacity");
+        System.out.println("    -r\tto summarize the live DirectByteBuffers by the class of the objects referencing them, walking the heap twice");
+        System.out.println("    -l\tto print verbose info of every live DirectByteBuffer allocated from Java");
+        System.out.println("    -budget <time>\tto pause for at most a time like 300ms or 2s once attached, estimating the live buffers from a random sample of the heap");
         super.printFlagsUsage();
     }
+
+    /**
+     * Counts live DirectByteBuffer$Deallocators. Objects of other classes are skipped, so it can also be fed by a
+     * whole heap walk. Counts nothing if the target never allocated a direct buffer and the class is not loaded.
+     */
+    static class DeallocatorVisitor extends DefaultHeapVisitor {
+        private static final int BUCKETS = 64;
+
+        private final boolean verbose;
+        private final InstanceKlass deallocatorKlass;
+        private final LongField addressField;
+        private final IntField capacityField;
+        private final long pageSize;
+        private int count;
+        private long totalCapacity;
+        // bucket b holds the capacities of bit length b, from 2^(b-1) up to 2^b exclusive
+        private final long[] bucketCounts = new long[BUCKETS];
+        private final long[] bucketCapacities = new long[BUCKETS];
+
+        DeallocatorVisitor(boolean verbose) {
+            this.verbose = verbose;
+            this.pageSize = getStaticIntFieldValue("java.nio.Bits", "pageSize");
+            this.deallocatorKlass = SystemDictionaryHelper.findInstanceKlass("java.nio.DirectByteBuffer$Deallocator");
+            this.addressField = deallocatorKlass == null ? null : (LongField) deallocatorKlass.findField("address", "J");
+            this.capacityField = deallocatorKlass == null ? null : (IntField) deallocatorKlass.findField("capacity", "I");
+        }
+
+        public boolean doObj(Oop oop) {
+            if (deallocatorKlass == null || !deallocatorKlass.equals(oop.getKlass())) return false;
+
+            long address = addressField.getValue(oop);
+            if (address == 0) return false; // this deallocator has already been run
+
+            long capacity = capacityField.getValue(oop);
+            long mallocSize = capacity + pageSize;
+            count++;
+            totalCapacity += capacity;
+            int bucket = BUCKETS - Long.numberOfLeadingZeros(capacity);
+            bucketCounts[bucket]++;
+            bucketCapacities[bucket] += capacity;
+
+            if (verbose) {
+                System.out.printf("  0x%016x: capacity = %f MB (%d bytes),"
+                                + " mallocSize = %f MB (%d bytes)\n",
+                        address, toM(capacity), capacity,
+                        toM(mallocSize), mallocSize);
+            }
+
+            return false;
+        }
+
+        /**
+         * @return the capacity of the buffer of a Deallocator that has not run yet, or -1 for anything else
+         */
+        long liveCapacity(Oop oop) {
+            if (oop == null || deallocatorKlass == null || !deallocatorKlass.equals(oop.getKlass())) return -1;
+            if (addressField.getValue(oop) == 0) return -1;
+            return capacityField.getValue(oop);
+        }
+
+        void printCapacityHistogram(PrintStream out) {
+            out.println("Live direct buffers by capacity:");
+            out.printf("%24s%10s%16s\n", "capacity", "buffers", "bytes");
+            for (int b = 0; b < BUCKETS; b++) {
+                if (bucketCounts[b] == 0) continue;
+                String range = b == 0 ? "0" : "[" + formatPowerOfTwo(b - 1) + ", " + formatPowerOfTwo(b) + ")";
+                out.printf("%24s%10d%16d\n", range, bucketCounts[b], bucketCapacities[b]);
+            }
+        }
+
+        private static String formatPowerOfTwo(int exponent) {
+            String[] units = {"B", "KB", "MB", "GB", "TB", "PB", "EB"};
+            return (1L << (exponent % 10)) + " " + units[exponent / 10];
+        }
+
+        InstanceKlass getDeallocatorKlass() {
+            return deallocatorKlass;
+        }
+
+        long getPageSize() {
+            return pageSize;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        long getTotalCapacity() {
+            return totalCapacity;
+        }
+    }
+
+    /**
+     * Attributes the live direct buffers to the classes of the objects referencing them.
+     * The DirectByteBuffers are collected in a first heap walk and their referrers found in a second one. A slice or
+     * duplicate shares the memory of the buffer it was made from and is followed to it through its att field, so its
+     * referrers count for that buffer; neither buffers nor Cleaners count as referrers themselves.
+     * GC roots are not objects, a buffer referenced only from a thread stack or a JNI handle has no heap referrer.
+     */
+    static class DirectBufferReferrers extends DefaultHeapVisitor {
+        private final DeallocatorVisitor deallocatorVisitor;
+        private final InstanceKlass bufferKlass;
+        private final InstanceKlass cleanerKlass;
+        private final OopField cleanerField;
+        private final OopField attField;
+        private final OopField thunkField;
+        private final Map<Klass, Boolean> bufferKlasses = new HashMap<>();
+
+        private long[] addresses = new long[256];
+        private long[] atts = new long[256];
+        // the capacity of the buffer if it owns its memory and has not been freed, otherwise -1
+        private long[] capacities = new long[256];
+        private int count;
+        private int[] owners;
+        private boolean[] referenced;
+
+        private HeapReferrers referrers;
+        private final Set<Long> attributed = new HashSet<>();
+        private final Map<Integer, long[]> totals = new HashMap<>();
+
+        DirectBufferReferrers(DeallocatorVisitor deallocatorVisitor) {
+            this.deallocatorVisitor = deallocatorVisitor;
+            this.bufferKlass = SystemDictionaryHelper.findInstanceKlass("java.nio.DirectByteBuffer");
+            this.cleanerKlass = SystemDictionaryHelper.findInstanceKlass("sun.misc.Cleaner");
+            this.cleanerField = (OopField) bufferKlass.findField("cleaner", "Lsun/misc/Cleaner;");
+            this.attField = (OopField) bufferKlass.findField("att", "Ljava/lang/Object;");
+            this.thunkField = (OopField) cleanerKlass.findField("thunk", "Ljava/lang/Runnable;");
+        }
+
+        @Override
+        public boolean doObj(Oop oop) {
+            if (!isBuffer(oop.getKlass())) return false;
+
+            if (count == addresses.length) {
+                addresses = Arrays.copyOf(addresses, count * 2);
+                atts = Arrays.copyOf(atts, count * 2);
+                capacities = Arrays.copyOf(capacities, count * 2);
+            }
+            Oop cleaner = cleanerField.getValue(oop);
+            addresses[count] = GenerationLookupTable.rawAddress(oop.getHandle());
+            atts[count] = GenerationLookupTable.rawAddress(attField.getValueAsOopHandle(oop));
+            capacities[count] = cleaner == null ? -1 : deallocatorVisitor.liveCapacity(thunkField.getValue(cleaner));
+            count++;
+            return false;
+        }
+
+        private boolean isBuffer(Klass klass) {
+            Boolean buffer = bufferKlasses.get(klass);
+            if (buffer == null) {
+                buffer = klass.isSubclassOf(bufferKlass);
+                bufferKlasses.put(klass, buffer);
+            }
+            return buffer;
+        }
+
+        /**
+         * Walk the heap again for the objects referencing the collected buffers.
+         */
+        void findReferrers(ObjectHeap heap) {
+            sortByAddress();
+            resolveOwners();
+            referrers = new HeapReferrers(addresses, count, new HeapReferrers.Filter() {
+                @Override
+                public boolean isReferrer(Klass klass) {
+                    return !klass.equals(cleanerKlass) && !isBuffer(klass);
+                }
+            }, new HeapReferrers.Visitor() {
+                @Override
+                public void referenced(int target, int referrer) {
+                    refer(target, referrer);
+                }
+            });
+            heap.iterate(referrers);
+        }
+
+        private void sortByAddress() {
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            final long[] keys = addresses;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return Long.compare(keys[o1], keys[o2]);
+                }
+            });
+            long[] sortedAddresses = new long[count];
+            long[] sortedAtts = new long[count];
+            long[] sortedCapacities = new long[count];
+            for (int i = 0; i < count; i++) {
+                sortedAddresses[i] = addresses[order[i]];
+                sortedAtts[i] = atts[order[i]];
+                sortedCapacities[i] = capacities[order[i]];
+            }
+            addresses = sortedAddresses;
+            atts = sortedAtts;
+            capacities = sortedCapacities;
+        }
+
+        private void resolveOwners() {
+            owners = new int[count];
+            referenced = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                int owner = i;
+                // views of views are rare, the bound only guards against a cycle read from a moving heap
+                for (int depth = 0; depth < 16 && capacities[owner] < 0 && atts[owner] != 0; depth++) {
+                    int parent = find(atts[owner]);
+                    if (parent < 0) break;
+                    owner = parent;
+                }
+                owners[i] = capacities[owner] < 0 ? -1 : owner;
+            }
+        }
+
+        private int find(long address) {
+            return Arrays.binarySearch(addresses, 0, count, address);
+        }
+
+        private void refer(int buffer, int referrer) {
+            if (owners[buffer] < 0) return;
+
+            int owner = owners[buffer];
+            referenced[owner] = true;
+            if (!attributed.add(((long) owner << 32) | referrer)) return;
+            long[] total = totals.get(referrer);
+            if (total == null) {
+                total = new long[2];
+                totals.put(referrer, total);
+            }
+            total[0]++;
+            total[1] += capacities[owner];
+        }
+
+        void printReferrers(PrintStream out) {
+            final List<Map.Entry<Integer, long[]>> entries = new ArrayList<>(totals.entrySet());
+            entries.sort(new Comparator<Map.Entry<Integer, long[]>>() {
+                @Override
+                public int compare(Map.Entry<Integer, long[]> o1, Map.Entry<Integer, long[]> o2) {
+                    return Long.compare(o2.getValue()[1], o1.getValue()[1]);
+                }
+            });
+
+            out.println("Live direct buffers by referencing class: (a buffer referenced from several classes counts for each)");
+            out.printf("%100s%10s%16s\n", "class", "buffers", "bytes");
+            for (Map.Entry<Integer, long[]> entry : entries) {
+                out.printf("%100s%10d%16d\n", referrers.referrerName(entry.getKey()), entry.getValue()[0], entry.getValue()[1]);
+            }
+
+            long unreferencedCount = 0;
+            long unreferencedCapacity = 0;
+            long ownerCount = 0;
+            long ownerCapacity = 0;
+            for (int i = 0; i < count; i++) {
+                if (owners[i] != i) continue;
+                ownerCount++;
+                ownerCapacity += capacities[i];
+                if (!referenced[i]) {
+                    unreferencedCount++;
+                    unreferencedCapacity += capacities[i];
+                }
+            }
+            out.printf("%100s%10d%16d\n", "<no heap referrer>", unreferencedCount, unreferencedCapacity);
+            // the Deallocator outlives its buffer until the Reference Handler thread runs the Cleaner
+            out.printf("%100s%10d%16d\n", "<buffer collected, Cleaner not run yet>",
+                    deallocatorVisitor.getCount() - ownerCount, deallocatorVisitor.getTotalCapacity() - ownerCapacity);
+        }
+    }
+
+    /**
+     * Sums and sums of squares of the live buffer count and capacity per sampled unit, by stratum.
+     */
+    private static class SampledDeallocatorVisitor implements HeapSampler.Visitor {
+        private final DeallocatorVisitor deallocatorVisitor;
+        private final double[][] sums;
+        private int unitStartCount;
+        private long unitStartCapacity;
+
+        SampledDeallocatorVisitor(DeallocatorVisitor deallocatorVisitor, int strata) {
+            this.deallocatorVisitor = deallocatorVisitor;
+            this.sums = new double[strata][4];
+        }
+
+        @Override
+        public void doObj(Oop obj, int stratum) {
+            deallocatorVisitor.doObj(obj);
+        }
+
+        @Override
+        public void unitDone(int stratum, boolean complete) {
+            if (complete) {
+                double count = deallocatorVisitor.getCount() - unitStartCount;
+                double capacity = deallocatorVisitor.getTotalCapacity() - unitStartCapacity;
+                sums[stratum][0] += count;
+                sums[stratum][1] += count * count;
+                sums[stratum][2] += capacity;
+                sums[stratum][3] += capacity * capacity;
+            }
+            unitStartCount = deallocatorVisitor.getCount();
+            unitStartCapacity = deallocatorVisitor.getTotalCapacity();
+        }
+
+        double[] getSums(int stratum) {
+            return sums[stratum];
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,366 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.debugger.AddressException;
+import sun.jvm.hotspot.memory.SystemDictionary;
+import sun.jvm.hotspot.oops.Array;
+import sun.jvm.hotspot.oops.DefaultHeapVisitor;
+import sun.jvm.hotspot.oops.InstanceKlass;
+import sun.jvm.hotspot.oops.Oop;
+import sun.jvm.hotspot.oops.OopField;
+import sun.jvm.hotspot.oops.TypeArray;
+import sun.jvm.hotspot.runtime.BasicType;
+import sun.jvm.hotspot.runtime.VM;
+import sun.jvm.hotspot.tools.Tool;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Print the most duplicated java.lang.String values of the whole heap, interned or not, with the bytes they waste.
+ * Each value is reduced to a 64-bit fingerprint of its chars, so only the fingerprint table is kept in memory.
+ * Usage: java -cp .:${JAVA_HOME}/lib/sa-jdi.jar com.github.leoliang.PrintDuplicateStringsJDK8 [-n top] [-max entries] &lt;Running JVM's PID&gt; <br />
+ * You need to add sa-jdi.jar to your class path. This is generally available in your JDK's lib directory. Also, you might need to run this class with super user privileges in order to access the other JVM.
+ * <p>
+ */
+public class PrintDuplicateStringsJDK8 extends Tool {
+    private static final int MAX_PRINTED_CHARS = 80;
+    // a table of 4M slots, 64 MB
+    static final int DEFAULT_MAX_ENTRIES = 3 << 20;
+
+    private int top;
+    private int maxEntries;
+
+    public PrintDuplicateStringsJDK8(int top, int maxEntries) {
+        this.top = top;
+        this.maxEntries = maxEntries;
+    }
+
+    public static void main(String[] args) {
+        int top = 50;
+        int maxEntries = DEFAULT_MAX_ENTRIES;
+
+        int used = 0;
+        while (used < args.length - 1 && args[used].startsWith("-")) {
+            if ("-n".equals(args[used])) {
+                top = Integer.parseInt(args[used + 1]);
+            } else if ("-max".equals(args[used])) {
+                maxEntries = Integer.parseInt(args[used + 1]);
+            } else {
+                break;
+            }
+            used += 2;
+        }
+
+        if (used != 0) {
+            args = Arrays.copyOfRange(args, used, args.length);
+        }
+
+        PrintDuplicateStringsJDK8 tool = new PrintDuplicateStringsJDK8(top, maxEntries);
+        tool.execute(args);
+        tool.stop();
+    }
+
+    @Override
+    public void run() {
+        DebuggerPageCache pageCache = DebuggerPageCache.install(getAgent());
+        try {
+            InstanceKlass stringKlass = SystemDictionary.getStringKlass();
+            DuplicateStringVisitor visitor = new DuplicateStringVisitor(stringKlass, maxEntries);
+            VM.getVM().getObjectHeap().iterateObjectsOfKlass(visitor, stringKlass, false);
+            printDuplicates(visitor);
+        } catch (AddressException e) {
+            System.err.println("Error accessing address 0x"
+                    + Long.toHexString(e.getAddress()));
+            e.printStackTrace();
+        }
+        pageCache.printStats(System.out);
+    }
+
+    private void printDuplicates(DuplicateStringVisitor visitor) {
+        FingerprintTable table = visitor.table;
+        long duplicates = 0;
+        long arrayWaste = 0;
+        long totalWaste = 0;
+        int n = table.duplicated();
+        for (int d = 0; d < n; d++) {
+            long extra = table.counts[d] - 1;
+            duplicates += extra;
+            arrayWaste += table.unsharedArrayWaste(d);
+            totalWaste += table.unsharedArrayWaste(d) + extra * visitor.stringSize;
+        }
+
+        System.out.printf("Strings: %d (%d bytes), distinct values: %d, duplicate strings: %d\n",
+                visitor.strings, visitor.stringBytes, table.size(), duplicates);
+        System.out.printf("Wasted by duplicate char[]s (what -XX:+UseStringDeduplication reclaims): %d bytes\n", arrayWaste);
+        System.out.printf("Wasted by duplicate Strings and char[]s (what interning reclaims): %d bytes\n", totalWaste);
+        if (table.pruned > 0) {
+            System.out.printf("Fingerprint table was full and dropped %d single-instance values, counts are lower bounds\n",
+                    table.pruned);
+        }
+        if (table.untracked > 0) {
+            System.out.printf("Fingerprint table was full of duplicated values and did not track %d strings of new values\n",
+                    table.untracked);
+        }
+
+        final long stringSize = visitor.stringSize;
+        Integer[] ranked = new Integer[n];
+        for (int d = 0; d < n; d++) {
+            ranked[d] = d;
+        }
+        Arrays.sort(ranked, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare(table.wasted(o2, stringSize), table.wasted(o1, stringSize));
+            }
+        });
+
+        System.out.printf("%12s%16s%10s  %s\n", "count", "wasted bytes", "length", "value");
+        for (int i = 0; i < Math.min(top, n); i++) {
+            int d = ranked[i];
+            System.out.printf("%12d%16d%10d  %s\n", table.counts[d], table.wasted(d, stringSize),
+                    table.lengths[d], printable(table, d));
+        }
+    }
+
+    private static String printable(FingerprintTable table, int d) {
+        int length = Math.min(table.lengths[d], MAX_PRINTED_CHARS);
+        StringBuilder sb = new StringBuilder(length + 5);
+        sb.append('"');
+        if (length > 0) {
+            byte[] bytes = DebuggerPageCache.readBytes(table.arrayAddresses[d] + Array.baseOffsetInBytes(BasicType.T_CHAR),
+                    length * 2L);
+            boolean bigEndian = VM.getVM().isBigEndian();
+            for (int i = 0; i < length; i++) {
+                int hi = bigEndian ? bytes[2 * i] : bytes[2 * i + 1];
+                int lo = bigEndian ? bytes[2 * i + 1] : bytes[2 * i];
+                char c = (char) (((hi & 0xff) << 8) | (lo & 0xff));
+                if (c == '\n') {
+                    sb.append("\\n");
+                } else if (c == '\r') {
+                    sb.append("\\r");
+                } else if (c == '\t') {
+                    sb.append("\\t");
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+        if (table.lengths[d] > length) {
+            sb.append("...");
+        }
+        return sb.toString();
+    }
+
+    private static class DuplicateStringVisitor extends DefaultHeapVisitor {
+        private final OopField valueField;
+        private final FingerprintTable table;
+        private final long arrayBase;
+        private long strings;
+        private long stringBytes;
+        private long stringSize;
+
+        DuplicateStringVisitor(InstanceKlass stringKlass, int maxEntries) {
+            this.valueField = (OopField) stringKlass.findField("value", "[C");
+            this.table = new FingerprintTable(maxEntries);
+            this.arrayBase = Array.baseOffsetInBytes(BasicType.T_CHAR);
+        }
+
+        @Override
+        public boolean doObj(Oop oop) {
+            TypeArray value = (TypeArray) valueField.getValue(oop);
+            if (value == null) return false;
+
+            strings++;
+            stringSize = oop.getObjectSize();
+            long arraySize = value.getObjectSize();
+            stringBytes += stringSize + arraySize;
+
+            int length = (int) value.getLength();
+            long arrayAddress = GenerationLookupTable.rawAddress(value.getHandle());
+            long fingerprint = length == 0 ? length : fingerprint(DebuggerPageCache.readBytes(arrayAddress + arrayBase, length * 2L));
+            table.add(fingerprint ^ length, arrayAddress, length, (int) arraySize);
+            return false;
+        }
+
+        /**
+         * 64-bit hash of the raw char bytes; equal values have equal bytes within one target.
+         */
+        private static long fingerprint(byte[] bytes) {
+            long h = 0x9E3779B97F4A7C15L;
+            int i = 0;
+            for (; i + 8 <= bytes.length; i += 8) {
+                long word = (bytes[i] & 0xffL) | (bytes[i + 1] & 0xffL) << 8 | (bytes[i + 2] & 0xffL) << 16
+                        | (bytes[i + 3] & 0xffL) << 24 | (bytes[i + 4] & 0xffL) << 32 | (bytes[i + 5] & 0xffL) << 40
+                        | (bytes[i + 6] & 0xffL) << 48 | (bytes[i + 7] & 0xffL) << 56;
+                h = Long.rotateLeft(h ^ (word * 0xC2B2AE3D27D4EB4FL), 31) * 0x9E3779B97F4A7C15L;
+            }
+            for (; i < bytes.length; i++) {
+                h = (h ^ (bytes[i] & 0xff)) * 0x100000001B3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            h *= 0xC4CEB9FE1A85EC53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+    /**
+     * Open addressing table from a value fingerprint to the char[] of its first instance, 16 bytes a slot. Once a value
+     * is seen again it moves out of line to the duplicated values, which keep its instance count, one char[] holding it
+     * and how many instances share that very char[], so the most common values, seen once, cost no more than their slot.
+     * When it reaches maxEntries, values seen only once are dropped, and if that does not free half of it, values not
+     * in the table yet are only counted as untracked from then on.
+     */
+    private static class FingerprintTable {
+        private final int maxCapacity;
+        private long[] keys;
+        // 0 for a free slot, the even address of the char[] of a value seen once, or the odd (index << 1) | 1 of a
+        // duplicated value
+        private long[] values;
+        private int size;
+        private long pruned;
+        // set once the table is at maxEntries with too many duplicated values to prune
+        private boolean full;
+        private long untracked;
+
+        // the duplicated values, by index
+        private int[] counts = new int[1024];
+        private int[] shared = new int[1024];
+        private long[] arrayAddresses = new long[1024];
+        private int[] lengths = new int[1024];
+        private int[] arraySizes = new int[1024];
+        private int duplicated;
+
+        FingerprintTable(int maxEntries) {
+            // smallest power of two holding maxEntries at the 3/4 load factor
+            int capacity = 1 << 16;
+            while (capacity < (1 << 30) && capacity / 4 * 3 < maxEntries) {
+                capacity <<= 1;
+            }
+            this.maxCapacity = capacity;
+            allocate(Math.min(1 << 16, maxCapacity));
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            values = new long[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int duplicated() {
+            return duplicated;
+        }
+
+        void add(long key, long arrayAddress, int length, int arraySize) {
+            int mask = keys.length - 1;
+            int i = (int) key & mask;
+            while (values[i] != 0) {
+                if (keys[i] == key) {
+                    if ((values[i] & 1) == 0) {
+                        values[i] = ((long) addDuplicated(values[i], length, arraySize) << 1) | 1;
+                    }
+                    int d = (int) (values[i] >>> 1);
+                    counts[d]++;
+                    if (arrayAddresses[d] == arrayAddress) {
+                        shared[d]++;
+                    }
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            if (full) {
+                untracked++;
+                return;
+            }
+            keys[i] = key;
+            values[i] = arrayAddress;
+            size++;
+
+            if (size * 4 > keys.length * 3) {
+                if (keys.length < maxCapacity) {
+                    rehash(keys.length * 2, false);
+                } else {
+                    prune();
+                }
+            }
+        }
+
+        /**
+         * @param firstArrayAddress the char[] of the first instance, an equal value has the same length and array size
+         * @return the index of the value, counted once so far
+         */
+        private int addDuplicated(long firstArrayAddress, int length, int arraySize) {
+            if (duplicated == counts.length) {
+                int capacity = duplicated * 2;
+                counts = Arrays.copyOf(counts, capacity);
+                shared = Arrays.copyOf(shared, capacity);
+                arrayAddresses = Arrays.copyOf(arrayAddresses, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                arraySizes = Arrays.copyOf(arraySizes, capacity);
+            }
+            int d = duplicated++;
+            counts[d] = 1;
+            arrayAddresses[d] = firstArrayAddress;
+            lengths[d] = length;
+            arraySizes[d] = arraySize;
+            return d;
+        }
+
+        /**
+         * Bytes of char[]s that duplicate the value and are not the very same array.
+         */
+        long unsharedArrayWaste(int d) {
+            return (long) (counts[d] - 1 - shared[d]) * arraySizes[d];
+        }
+
+        long wasted(int d, long stringSize) {
+            return unsharedArrayWaste(d) + (long) (counts[d] - 1) * stringSize;
+        }
+
+        private void prune() {
+            int before = size;
+            rehash(keys.length, true);
+            pruned += before - size;
+            // a prune that leaves the table over half full would run again within a few values, and growing past
+            // maxCapacity would break the memory cap
+            full = size * 2 > keys.length;
+        }
+
+        /**
+         * @param duplicatedOnly to drop the values seen only once
+         */
+        private void rehash(int capacity, boolean duplicatedOnly) {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            allocate(capacity);
+            size = 0;
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] == 0 || duplicatedOnly && (oldValues[j] & 1) == 0) continue;
+                int i = (int) oldKeys[j] & mask;
+                while (values[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+                size++;
+            }
+        }
+    }
+
+    public String getName() {
+        return "duplicateStrings";
+    }
+
+    protected void printFlagsUsage() {
+        System.out.println("    -n <top>\tto print the top duplicated values (default 50)");
+        System.out.println("    -max <entries>\tto bound the fingerprint table at 16 bytes an entry, single-instance values are dropped beyond it (default " + DEFAULT_MAX_ENTRIES + ")");
+        super.printFlagsUsage();
+    }
+}
@@ -9,34 +9,123 @@ import sun.jvm.hotspot.memory.DefNewGeneration;
 import sun.jvm.hotspot.memory.GenCollectedHeap;
 import sun.jvm.hotspot.memory.Generation;
 import sun.jvm.hotspot.oops.HeapVisitor;
+import sun.jvm.hotspot.oops.Klass;
 import sun.jvm.hotspot.oops.ObjectHeap;
 import sun.jvm.hotspot.oops.Oop;
 import sun.jvm.hotspot.runtime.VM;
 import sun.jvm.hotspot.tools.Tool;
 import sun.jvm.hotspot.utilities.Assert;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 /**
  * Print instance stats group by class and generation.
- * Usage: java -cp .:${JAVA_HOME}/lib/sa-jdi.jar com.github.leoliang.PrintHeapInstancesStatsGroupByGenerationJDK8 &lt;Running JVM's PID&gt; <br />
+ * A JDK 8 VM does not export the types of its G1 regions, so with G1 the objects are printed as one untyped histogram
+ * next to the region stats instead of by generation.
+ * With -s the histogram is also saved as a binary {@link HistogramSnapshot}, a series of which is ranked by growth with
+ * {@link DiffHeapHistogramSnapshots}.
+ * With -budget only a random subset of the heap is walked, see {@link HeapSampler}, and the counts and sizes are
+ * extrapolated with 95% confidence intervals, so once attached the target is paused for about the budget instead of a
+ * full walk. The attach is not in the budget and is reported apart. -budget cannot be combined with -a, -b, -r or -s.
+ * With -a the survivor objects are also counted by GC age, see {@link ObjectAgeTable}, to size the survivor spaces and
+ * the tenuring threshold.
+ * Usage: java -cp .:${JAVA_HOME}/lib/sa-jdi.jar com.github.leoliang.PrintHeapInstancesStatsGroupByGenerationJDK8 [-a] [-b] [-r] [-s snapshot] [-budget 300ms] &lt;Running JVM's PID&gt; <br />
  * You need to add sa-jdi.jar to your class path. This is generally available in your JDK's lib directory. Also, you might need to run this class with super user privileges in order to access the other JVM.
  * <p>
  * <p>
  * Base on https://gist.github.com/rednaxelafx/1551013#file-histo-patch
  */
 public class PrintHeapInstancesStatsGroupByGenerationJDK8 extends Tool {
+    private boolean benchmark;
+    private boolean printRegions;
+    private String snapshotFile;
+    private long budgetNanos;
+    private boolean printAges;
+    private long attachStart;
+
+    public PrintHeapInstancesStatsGroupByGenerationJDK8() {
+
+    }
+
+    /**
+     * @param benchmark to first walk the heap with per-object generation lookups and print objects/sec of both walks
+     */
+    public void setBenchmark(boolean benchmark) {
+        this.benchmark = benchmark;
+    }
+
+    public void setPrintRegions(boolean printRegions) {
+        this.printRegions = printRegions;
+    }
+
+    public void setSnapshotFile(String snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    /**
+     * @param budgetNanos the longest the target may be paused for once attached, 0 to walk the whole heap
+     */
+    public void setBudgetNanos(long budgetNanos) {
+        this.budgetNanos = budgetNanos;
+    }
+
+    /**
+     * @param printAges to also print the ages of the survivor objects by class, on a full walk only
+     */
+    public void setPrintAges(boolean printAges) {
+        this.printAges = printAges;
+    }
 
     public static void main(String args[]) throws Exception {
-        if (args.length == 0 || args.length > 1) {
-            System.err.println("Usage: java com.github.leoliang.PrintHeapInstancesStatsGroupByGenerationJDK8 <PID of the JVM whose string table you want to print>");
+        boolean benchmark = false;
+        boolean printRegions = false;
+        String snapshotFile = null;
+        long budgetNanos = 0;
+        boolean printAges = false;
+
+        int used = 0;
+        while (used < args.length - 1 && args[used].startsWith("-")) {
+            if ("-a".equals(args[used])) {
+                printAges = true;
+            } else if ("-b".equals(args[used])) {
+                benchmark = true;
+            } else if ("-r".equals(args[used])) {
+                printRegions = true;
+            } else if ("-s".equals(args[used])) {
+                snapshotFile = args[++used];
+            } else if ("-budget".equals(args[used]) || "--budget".equals(args[used])) {
+                budgetNanos = HeapSampler.parseBudget(args[++used]);
+            } else {
+                break;
+            }
+            used++;
+        }
+
+        // a sampled walk only prints estimates, it has no exact histogram to save, time, split by region or by age
+        if (budgetNanos > 0 && (benchmark || printRegions || snapshotFile != null || printAges)) {
+            System.err.println("Usage: java com.github.leoliang.PrintHeapInstancesStatsGroupByGenerationJDK8 [-a] [-b] [-r] [-s snapshot] [-budget 300ms] <PID>, -budget cannot be combined with -a, -b, -r or -s");
             System.exit(1);
         }
+
+        if (used != 0) {
+            args = Arrays.copyOfRange(args, used, args.length);
+        }
+
         PrintHeapInstancesStatsGroupByGenerationJDK8 phisgbg = new PrintHeapInstancesStatsGroupByGenerationJDK8();
+        phisgbg.setBenchmark(benchmark);
+        phisgbg.setPrintRegions(printRegions);
+        phisgbg.setSnapshotFile(snapshotFile);
+        phisgbg.setBudgetNanos(budgetNanos);
+        phisgbg.setPrintAges(printAges);
+        // the target is paused from the attach on, which is reported apart from the budget
+        phisgbg.attachStart = System.nanoTime();
         phisgbg.execute(args);
         phisgbg.stop();
     }
@@ -106,43 +195,212 @@ public class PrintHeapInstancesStatsGroupByGenerationJDK8 extends Tool {
         return false;
     }
 
+    private static int legacyGenerationOf(Oop obj) {
+        if (inEden(obj)) {
+            return GenerationLookupTable.EDEN;
+        } else if (inOld(obj)) {
+            return GenerationLookupTable.OLD;
+        } else if (inSurvivor(obj)) {
+            return GenerationLookupTable.SURVIVOR;
+        }
+        return GenerationLookupTable.UNKNOWN;
+    }
+
     @Override
     public void run() {
+        // the target is stopped and the agent attached, the budget counts from here
+        long runStart = System.nanoTime();
+        DebuggerPageCache pageCache = DebuggerPageCache.install(getAgent());
         ObjectHeap heap = VM.getVM().getObjectHeap();
-        HeapStatsVisitor heapVisitor = new HeapStatsVisitor();
 
+        if (budgetNanos > 0) {
+            runSampled(pageCache, runStart);
+            return;
+        }
+
+        if (benchmark) {
+            // walk once with the per-object heap lookups, as a baseline for the lookup table below
+            HeapStatsVisitor legacyVisitor = new HeapStatsVisitor(null);
+            long start = System.nanoTime();
+            heap.iterate(legacyVisitor);
+            printThroughput("per-object lookup", legacyVisitor.getObjectCount(), System.nanoTime() - start);
+        }
+
+        long timestamp = System.currentTimeMillis();
+        long start = System.nanoTime();
+        GenerationLookupTable generations = GenerationLookupTable.build();
+        ObjectAgeTable ages = printAges ? new ObjectAgeTable() : null;
+        HeapStatsVisitor heapVisitor = new HeapStatsVisitor(generations, ages);
         heap.iterate(heapVisitor);
+        if (benchmark) {
+            printThroughput("range table lookup", heapVisitor.getObjectCount(), System.nanoTime() - start);
+        }
+
+        printHistogram(heapVisitor, printRegions);
+        if (ages != null) {
+            System.out.println("------------------------------------------------------------------------------ Survivor ages ---------------------------------------------------------------------");
+            if (generations.g1Regions() != null && !generations.g1Regions().isTyped()) {
+                System.out.println("G1 region types are not exported by this VM, the survivor objects cannot be told from the others");
+            } else {
+                ages.print(System.out);
+            }
+        }
+        if (snapshotFile != null) {
+            try {
+                HistogramSnapshot.of(heapVisitor, timestamp).write(snapshotFile);
+            } catch (IOException e) {
+                System.err.println("Error writing snapshot " + snapshotFile);
+                e.printStackTrace();
+            }
+        }
+        pageCache.printStats(System.out);
+    }
 
-        System.out.println("---------------------------------------------------------------------------------- Eden --------------------------------------------------------------------------");
-        printStats(heapVisitor.getEdenStats());
-        System.out.println("-------------------------------------------------------------------------------- Survivor ------------------------------------------------------------------------");
-        printStats(heapVisitor.getSurvivorStats());
-        System.out.println("----------------------------------------------------------------------------------- Old ---------------------------------------------------------------------------");
-        printStats(heapVisitor.getOldStats());
+    private void runSampled(DebuggerPageCache pageCache, long runStart) {
+        HeapSampler sampler = HeapSampler.build();
+        SampledStatsVisitor visitor = new SampledStatsVisitor(sampler.strata());
+        // a tenth of the budget is left for naming the classes and printing
+        sampler.walk(runStart + budgetNanos / 10 * 9, new Random(), visitor);
+
+        sampler.printCoverage(System.out);
+        for (int s = 0; s < sampler.strata(); s++) {
+            if (sampler.unitCount(s) == 0) continue;
+            System.out.println("-------------------------------------------------------------------------- "
+                    + HistogramSnapshot.GENERATION_NAMES[s] + " (estimated) --------------------------------------------------------------------------");
+            if (sampler.sampledCount(s) == 0) {
+                System.out.println("not estimated, no unit of it was sampled");
+            } else {
+                printEstimates(sampler, s, visitor.getSums(s), visitor.getTotals(s));
+            }
+        }
         System.out.println("-------------------------------------------------------------------------------------------------------------------------------------------------------------------");
+        HeapSampler.printPause(System.out, attachStart, runStart, budgetNanos);
+        pageCache.printStats(System.out);
     }
 
-    private void printStats(Map<String, KlassInstanceStats> stats) {
-        List<Map.Entry<String, KlassInstanceStats>> instanceStats = new ArrayList<>(stats.entrySet());
-        instanceStats.sort(new Comparator<Map.Entry<String, KlassInstanceStats>>() {
+    private static void printEstimates(HeapSampler sampler, int stratum, Map<Klass, double[]> sums, double[] totals) {
+        final List<KlassEstimate> estimates = new ArrayList<>(sums.size());
+        for (Map.Entry<Klass, double[]> entry : sums.entrySet()) {
+            double[] sum = entry.getValue();
+            estimates.add(new KlassEstimate(entry.getKey().getName().asString(),
+                    sampler.estimate(stratum, sum[0], sum[1]), sampler.estimate(stratum, sum[2], sum[3])));
+        }
+        estimates.sort(new Comparator<KlassEstimate>() {
             @Override
-            public int compare(Map.Entry<String, KlassInstanceStats> o1, Map.Entry<String, KlassInstanceStats> o2) {
-                return -(o1.getValue().compareTo(o2.getValue()));
+            public int compare(KlassEstimate o1, KlassEstimate o2) {
+                return Double.compare(o2.size[0], o1.size[0]);
             }
         });
 
-        System.out.printf("%100s%10s%10s", "class", "\tcount", "\tRetained Size");
+        System.out.printf("%100s%24s%28s", "class", "count", "Shallow Size");
         System.out.println();
-        for (Map.Entry<String, KlassInstanceStats> entry : instanceStats) {
-            System.out.println(String.format("%100s%10s%10s", entry.getKey(), entry.getValue().count, entry.getValue().retainedSize));
+        for (KlassEstimate entry : estimates) {
+            System.out.println(String.format("%100s%24s%28s", entry.name, formatEstimate(entry.count),
+                    formatEstimate(entry.size)));
+        }
+        System.out.println(String.format("%100s%24s%28s", "total",
+                formatEstimate(sampler.estimate(stratum, totals[0], totals[1])),
+                formatEstimate(sampler.estimate(stratum, totals[2], totals[3]))));
+    }
+
+    private static String formatEstimate(double[] estimate) {
+        return String.format("%.0f +- %s", estimate[0],
+                Double.isNaN(estimate[1]) ? "?" : String.format("%.0f", estimate[1]));
+    }
+
+    static void printHistogram(HeapStatsVisitor heapVisitor, boolean printRegions) {
+        G1RegionTable g1Regions = heapVisitor.getG1Regions();
+        if (g1Regions != null && !g1Regions.isTyped()) {
+            // the generation sections would all be empty
+            System.out.println("G1 region types are not exported by this VM, as on JDK 8, the objects cannot be split by generation");
+            System.out.println("--------------------------------------------------------------------------- Untyped G1 regions -------------------------------------------------------------------");
+            printStats(heapVisitor.getStats(GenerationLookupTable.UNTYPED));
+        } else {
+            System.out.println("---------------------------------------------------------------------------------- Eden --------------------------------------------------------------------------");
+            printStats(heapVisitor.getStats(GenerationLookupTable.EDEN));
+            System.out.println("-------------------------------------------------------------------------------- Survivor ------------------------------------------------------------------------");
+            printStats(heapVisitor.getStats(GenerationLookupTable.SURVIVOR));
+            System.out.println("----------------------------------------------------------------------------------- Old ---------------------------------------------------------------------------");
+            printStats(heapVisitor.getStats(GenerationLookupTable.OLD));
+            if (g1Regions != null) {
+                System.out.println("-------------------------------------------------------------------------------- Humongous -----------------------------------------------------------------------");
+                printStats(heapVisitor.getStats(GenerationLookupTable.HUMONGOUS));
+            }
         }
+        if (g1Regions != null) {
+            System.out.println("-------------------------------------------------------------------------------- G1 regions ----------------------------------------------------------------------");
+            g1Regions.printRegionStats(System.out);
+            if (printRegions) {
+                g1Regions.printRegions(System.out);
+            }
+        }
+        System.out.println("-------------------------------------------------------------------------------------------------------------------------------------------------------------------");
     }
 
-    private class HeapStatsVisitor implements HeapVisitor {
-        private Map<String, KlassInstanceStats> edenStats = new HashMap<>();
-        private Map<String, KlassInstanceStats> oldStats = new HashMap<>();
-        private Map<String, KlassInstanceStats> survivorStats = new HashMap<>();
+    private void printThroughput(String name, long objects, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%-20s: %d objects in %.3f s (%.0f objects/sec)\n",
+                name, objects, seconds, seconds == 0 ? 0 : objects / seconds);
+    }
+
+    private static void printStats(KlassStatsMap stats) {
+        final List<KlassInstanceStats> instanceStats = new ArrayList<>(stats.size());
+        stats.forEach(new KlassStatsMap.Visitor() {
+            @Override
+            public void visit(Klass klass, long count, long totalSize) {
+                instanceStats.add(new KlassInstanceStats(klass.getName().asString(), count, totalSize));
+            }
+        });
+        instanceStats.sort(new Comparator<KlassInstanceStats>() {
+            @Override
+            public int compare(KlassInstanceStats o1, KlassInstanceStats o2) {
+                return -(o1.compareTo(o2));
+            }
+        });
+
+        System.out.printf("%100s%10s%10s", "class", "\tcount", "\tShallow Size");
+        System.out.println();
+        for (KlassInstanceStats entry : instanceStats) {
+            System.out.println(String.format("%100s%10s%10s", entry.name, entry.count, entry.shallowSize));
+        }
+    }
+
+    protected void printFlagsUsage() {
+        System.out.println("    -a\tto also print the survivor objects by class and GC age, read from their mark words");
+        System.out.println("    -b\tto also walk the heap with per-object generation lookups and print objects/sec of both walks");
+        System.out.println("    -r\tto print every allocated G1 region");
+        System.out.println("    -s <file>\tto also save the histogram as a binary snapshot for DiffHeapHistogramSnapshots");
+        System.out.println("    -budget <time>\tto pause for at most a time like 300ms or 2s once attached, walking a random sample of the heap and extrapolating");
+        System.out.println("    With G1 on JDK 8 the objects are printed as one untyped histogram, the VM does not export the G1 region types");
+        super.printFlagsUsage();
+    }
+
+    static class HeapStatsVisitor implements HeapVisitor {
+        private final GenerationLookupTable generations;
+        private final G1RegionTable g1Regions;
+        private final ObjectAgeTable ages;
+        private KlassStatsMap[] stats = new KlassStatsMap[GenerationLookupTable.GENERATIONS];
         private long totalSize;
+        private long objectCount;
+
+        /**
+         * @param generations the lookup table to classify objects with, or null to query the heap for every object
+         */
+        HeapStatsVisitor(GenerationLookupTable generations) {
+            this(generations, null);
+        }
+
+        /**
+         * @param ages the table to count the survivor objects by age in, or null
+         */
+        HeapStatsVisitor(GenerationLookupTable generations, ObjectAgeTable ages) {
+            this.generations = generations;
+            this.ages = ages;
+            this.g1Regions = generations == null ? null : generations.g1Regions();
+            for (int i = 0; i < stats.length; i++) {
+                stats[i] = new KlassStatsMap();
+            }
+        }
 
         @Override
         public void prologue(long l) {
@@ -152,28 +410,30 @@ public class PrintHeapInstancesStatsGroupByGenerationJDK8 extends Tool {
         @Override
         public boolean doObj(Oop oop) {
 
-            Map<String, KlassInstanceStats> stats;
+            objectCount++;
 
-            if (inEden(oop)) {
-                stats = edenStats;
-            } else if (inOld(oop)) {
-                stats = oldStats;
-            } else if (inSurvivor(oop)) {
-                stats = survivorStats;
+            int generation;
+            long size = oop.getObjectSize();
+            if (generations != null) {
+                long address = GenerationLookupTable.rawAddress(oop.getHandle());
+                generation = generations.generationOf(address);
+                if (g1Regions != null) {
+                    g1Regions.recordObject(address, size);
+                }
             } else {
+                generation = legacyGenerationOf(oop);
+            }
+            if (generation == GenerationLookupTable.UNKNOWN) {
                 System.out.println("Unknown generation: " + oop);
                 return false;
             }
 
-            String klass = oop.getKlass().getName().asString();
-
-            if (!stats.containsKey(klass)) {
-                stats.put(klass, new KlassInstanceStats());
+            stats[generation].add(oop, 1, size);
+            // an object in eden has not been copied yet, its age is always 0
+            if (ages != null && generation == GenerationLookupTable.SURVIVOR) {
+                ages.add(oop, size);
             }
 
-
-            stats.get(klass).increase(1, oop.getObjectSize());
-
             return false;
         }
 
@@ -182,37 +442,114 @@ public class PrintHeapInstancesStatsGroupByGenerationJDK8 extends Tool {
 
         }
 
-        Map<String, KlassInstanceStats> getEdenStats() {
-            return edenStats;
+        G1RegionTable getG1Regions() {
+            return g1Regions;
         }
 
-        Map<String, KlassInstanceStats> getOldStats() {
-            return oldStats;
-        }
-
-        Map<String, KlassInstanceStats> getSurvivorStats() {
-            return survivorStats;
+        KlassStatsMap getStats(int generation) {
+            return stats[generation];
         }
 
         public long getTotalSize() {
             return totalSize;
         }
+
+        long getObjectCount() {
+            return objectCount;
+        }
+    }
+
+    /**
+     * Sums and sums of squares of the per-unit count and size of every class, by stratum.
+     * A class missing from a unit adds nothing to either sum, as a zero would.
+     */
+    private static class SampledStatsVisitor implements HeapSampler.Visitor {
+        private final KlassStatsMap unit = new KlassStatsMap();
+        private final List<Map<Klass, double[]>> sums = new ArrayList<>();
+        private final double[][] totals;
+        private long unitCount;
+        private long unitSize;
+
+        SampledStatsVisitor(int strata) {
+            for (int s = 0; s < strata; s++) {
+                sums.add(new HashMap<Klass, double[]>());
+            }
+            totals = new double[strata][4];
+        }
+
+        @Override
+        public void doObj(Oop obj, int stratum) {
+            long size = obj.getObjectSize();
+            unit.add(obj, 1, size);
+            unitCount++;
+            unitSize += size;
+        }
+
+        @Override
+        public void unitDone(int stratum, boolean complete) {
+            if (complete) {
+                final Map<Klass, double[]> stratumSums = sums.get(stratum);
+                unit.forEach(new KlassStatsMap.Visitor() {
+                    @Override
+                    public void visit(Klass klass, long count, long totalSize) {
+                        double[] sum = stratumSums.get(klass);
+                        if (sum == null) {
+                            sum = new double[4];
+                            stratumSums.put(klass, sum);
+                        }
+                        addSquares(sum, count, totalSize);
+                    }
+                });
+                addSquares(totals[stratum], unitCount, unitSize);
+            }
+            unit.clear();
+            unitCount = 0;
+            unitSize = 0;
+        }
+
+        private static void addSquares(double[] sum, double count, double size) {
+            sum[0] += count;
+            sum[1] += count * count;
+            sum[2] += size;
+            sum[3] += size * size;
+        }
+
+        Map<Klass, double[]> getSums(int stratum) {
+            return sums.get(stratum);
+        }
+
+        double[] getTotals(int stratum) {
+            return totals[stratum];
+        }
     }
 
-    private class KlassInstanceStats implements Comparable<KlassInstanceStats> {
-        private int count;
-        private long retainedSize;
+    private static class KlassEstimate {
+        private final String name;
+        private final double[] count;
+        private final double[] size;
+
+        KlassEstimate(String name, double[] count, double[] size) {
+            this.name = name;
+            this.count = count;
+            this.size = size;
+        }
+    }
 
+    private static class KlassInstanceStats implements Comparable<KlassInstanceStats> {
+        private final String name;
+        private long count;
+        private long shallowSize;
 
-        void increase(int count, long retainedSize) {
-            this.count += count;
-            this.retainedSize += retainedSize;
+        KlassInstanceStats(String name, long count, long shallowSize) {
+            this.name = name;
+            this.count = count;
+            this.shallowSize = shallowSize;
         }
 
         @Override
         public int compareTo(KlassInstanceStats o) {
-            int countCompare = Integer.compare(this.count, o.count);
-            int rsCompare = Long.compare(this.retainedSize, o.retainedSize);
+            int countCompare = Long.compare(this.count, o.count);
+            int rsCompare = Long.compare(this.shallowSize, o.shallowSize);
             return rsCompare == 0 ? countCompare : rsCompare;
         }
     }
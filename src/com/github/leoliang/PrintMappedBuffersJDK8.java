@@ -0,0 +1,420 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.debugger.AddressException;
+import sun.jvm.hotspot.oops.DefaultHeapVisitor;
+import sun.jvm.hotspot.oops.InstanceKlass;
+import sun.jvm.hotspot.oops.IntField;
+import sun.jvm.hotspot.oops.Klass;
+import sun.jvm.hotspot.oops.LongField;
+import sun.jvm.hotspot.oops.ObjectHeap;
+import sun.jvm.hotspot.oops.Oop;
+import sun.jvm.hotspot.oops.OopField;
+import sun.jvm.hotspot.runtime.VM;
+import sun.jvm.hotspot.tools.Tool;
+import sun.jvm.hotspot.utilities.SystemDictionaryHelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Print the files mapped with FileChannel.map, which the NIO direct memory stats leave out.
+ * The live mappings and the MappedByteBuffers pointing into them are found in a heap walk and grouped by the memory
+ * mapping of the target they fall in, read from /proc/&lt;pid&gt;/maps of a running JVM or from the NT_FILE note of a
+ * core file. Mappings none of whose buffers the heap references anymore stay mapped until their Cleaner runs and are
+ * listed separately, as are the file mappings that no FileChannel.map made, such as those of native code.
+ * Usage: java -cp .:${JAVA_HOME}/lib/sa-jdi.jar com.github.leoliang.PrintMappedBuffersJDK8 [-l] &lt;Running JVM's PID&gt; <br />
+ * You need to add sa-jdi.jar to your class path. This is generally available in your JDK's lib directory. Also, you might need to run this class with super user privileges in order to access the other JVM.
+ * <p>
+ */
+public class PrintMappedBuffersJDK8 extends Tool {
+    private static final String UNMAPPER_CLASS = "sun.nio.ch.FileChannelImpl$Unmapper";
+    // the JVM's own code and class data, which are mapped files too
+    private static final Pattern RUNTIME_FILES = Pattern.compile(".*(\\.so(\\.[0-9.]+)?|\\.jar|\\.jsa|/bin/java)$");
+
+    private boolean listBuffers;
+
+    public PrintMappedBuffersJDK8() {
+        this(false);
+    }
+
+    /**
+     * @param listBuffers to print every live MappedByteBuffer
+     */
+    public PrintMappedBuffersJDK8(boolean listBuffers) {
+        this.listBuffers = listBuffers;
+    }
+
+    public static void main(String[] args) {
+        boolean listBuffers = false;
+
+        // argument processing logic copied from sun.jvm.hotspot.tools.JStack
+        int used = 0;
+        for (String arg : args) {
+            if ("-l".equals(arg)) {
+                listBuffers = true;
+                used++;
+            }
+        }
+
+        if (used != 0) {
+            args = Arrays.copyOfRange(args, used, args.length);
+        }
+
+        PrintMappedBuffersJDK8 tool = new PrintMappedBuffersJDK8(listBuffers);
+        tool.execute(args);
+        tool.stop();
+    }
+
+    @Override
+    public void run() {
+        DebuggerPageCache pageCache = DebuggerPageCache.install(getAgent());
+        try {
+            if (!walksHeap()) {
+                System.out.println("No file was ever mapped with FileChannel.map");
+            } else {
+                printMappedCounters();
+            }
+
+            MappedBufferVisitor visitor = new MappedBufferVisitor();
+            ObjectHeap heap = VM.getVM().getObjectHeap();
+            if (visitor.unmapperKlass != null) {
+                heap.iterate(visitor);
+            }
+            visitor.resolve();
+            visitor.findReferrers(heap);
+            visitor.printMappings(ProcessMappings.of(getAgent()), listBuffers);
+        } catch (AddressException e) {
+            System.err.println("Error accessing address 0x"
+                    + Long.toHexString(e.getAddress()));
+            e.printStackTrace();
+        }
+        pageCache.printStats(System.out);
+    }
+
+    /**
+     * @return whether run() walks the heap, which it skips when no file was ever mapped
+     */
+    static boolean walksHeap() {
+        return SystemDictionaryHelper.findInstanceKlass(UNMAPPER_CLASS) != null;
+    }
+
+    /**
+     * Print the totals FileChannel.map keeps itself, which the "mapped" BufferPoolMXBean reports on later JDKs.
+     */
+    private static void printMappedCounters() {
+        int count = PrintDirectMemorySizeJDK8.getStaticIntFieldValue(UNMAPPER_CLASS, "count");
+        long totalSize = PrintDirectMemorySizeJDK8.getStaticLongFieldValue(UNMAPPER_CLASS, "totalSize");
+        long totalCapacity = PrintDirectMemorySizeJDK8.getStaticLongFieldValue(UNMAPPER_CLASS, "totalCapacity");
+
+        System.out.println("NIO mapped memory: (in bytes)");
+        System.out.printf("  mappings      = %d\n", count);
+        System.out.printf("  mapped size   = %f MB (%d bytes)\n", PrintDirectMemorySizeJDK8.toM(totalSize), totalSize);
+        System.out.printf("  capacity      = %f MB (%d bytes)\n", PrintDirectMemorySizeJDK8.toM(totalCapacity), totalCapacity);
+    }
+
+    protected void printFlagsUsage() {
+        System.out.println("    -l\tto print every live MappedByteBuffer");
+        super.printFlagsUsage();
+    }
+
+    /**
+     * Collects the Unmappers of the mappings that have not been unmapped yet, and the direct buffers pointing into
+     * them: the buffer FileChannel.map returned, whose Cleaner runs the Unmapper, and its slices and duplicates.
+     */
+    private static class MappedBufferVisitor extends DefaultHeapVisitor {
+        private final InstanceKlass unmapperKlass = SystemDictionaryHelper.findInstanceKlass(UNMAPPER_CLASS);
+        private final InstanceKlass bufferKlass = SystemDictionaryHelper.findInstanceKlass("java.nio.DirectByteBuffer");
+        private final Map<Klass, Boolean> bufferKlasses = new HashMap<>();
+        private LongField unmapperAddressField;
+        private LongField unmapperSizeField;
+        private IntField unmapperCapacityField;
+        private OopField unmapperFdField;
+        private LongField bufferAddressField;
+        private IntField bufferCapacityField;
+        private OopField bufferFdField;
+        private OopField cleanerField;
+        private OopField thunkField;
+        private IntField fdField;
+
+        private final List<MappedRegion> regions = new ArrayList<>();
+        private final Map<Long, MappedRegion> regionsByUnmapper = new HashMap<>();
+        private final List<MappedBuffer> buffers = new ArrayList<>();
+
+        MappedBufferVisitor() {
+            if (unmapperKlass == null) return;
+            unmapperAddressField = (LongField) unmapperKlass.findField("address", "J");
+            unmapperSizeField = (LongField) unmapperKlass.findField("size", "J");
+            unmapperCapacityField = (IntField) unmapperKlass.findField("cap", "I");
+            unmapperFdField = (OopField) unmapperKlass.findField("fd", "Ljava/io/FileDescriptor;");
+            InstanceKlass bufferBaseKlass = SystemDictionaryHelper.findInstanceKlass("java.nio.Buffer");
+            bufferAddressField = (LongField) bufferBaseKlass.findField("address", "J");
+            bufferCapacityField = (IntField) bufferBaseKlass.findField("capacity", "I");
+            bufferFdField = (OopField) SystemDictionaryHelper.findInstanceKlass("java.nio.MappedByteBuffer")
+                    .findField("fd", "Ljava/io/FileDescriptor;");
+            cleanerField = (OopField) bufferKlass.findField("cleaner", "Lsun/misc/Cleaner;");
+            thunkField = (OopField) SystemDictionaryHelper.findInstanceKlass("sun.misc.Cleaner")
+                    .findField("thunk", "Ljava/lang/Runnable;");
+            fdField = (IntField) SystemDictionaryHelper.findInstanceKlass("java.io.FileDescriptor").findField("fd", "I");
+        }
+
+        @Override
+        public boolean doObj(Oop oop) {
+            Klass klass = oop.getKlass();
+            if (unmapperKlass.equals(klass)) {
+                long address = unmapperAddressField.getValue(oop);
+                if (address == 0) return false; // already unmapped
+                MappedRegion region = new MappedRegion(address, unmapperSizeField.getValue(oop),
+                        unmapperCapacityField.getValue(oop), fdOf(unmapperFdField.getValue(oop)));
+                regions.add(region);
+                regionsByUnmapper.put(GenerationLookupTable.rawAddress(oop.getHandle()), region);
+            } else if (isBuffer(klass)) {
+                long address = bufferAddressField.getValue(oop);
+                if (address == 0) return false;
+                Oop cleaner = cleanerField.getValue(oop);
+                Oop thunk = cleaner == null ? null : thunkField.getValue(cleaner);
+                buffers.add(new MappedBuffer(GenerationLookupTable.rawAddress(oop.getHandle()), address,
+                        bufferCapacityField.getValue(oop),
+                        fdOf(bufferFdField.getValue(oop)), klass.getName().asString().replace('/', '.'),
+                        thunk == null ? 0 : GenerationLookupTable.rawAddress(thunk.getHandle())));
+            }
+            return false;
+        }
+
+        private boolean isBuffer(Klass klass) {
+            Boolean buffer = bufferKlasses.get(klass);
+            if (buffer == null) {
+                buffer = klass.isSubclassOf(bufferKlass);
+                bufferKlasses.put(klass, buffer);
+            }
+            return buffer;
+        }
+
+        private int fdOf(Oop fileDescriptor) {
+            return fileDescriptor == null ? -1 : fdField.getValue(fileDescriptor);
+        }
+
+        /**
+         * Attach every buffer to its mapping, through the Unmapper its Cleaner runs or else by address for the slices
+         * and duplicates. Buffers of malloc'd direct memory fall in no mapping and are dropped.
+         */
+        void resolve() {
+            regions.sort(new Comparator<MappedRegion>() {
+                @Override
+                public int compare(MappedRegion o1, MappedRegion o2) {
+                    return Long.compare(o1.address, o2.address);
+                }
+            });
+            List<MappedBuffer> mapped = new ArrayList<>();
+            for (MappedBuffer buffer : buffers) {
+                MappedRegion region = regionsByUnmapper.get(buffer.unmapper);
+                if (region == null) {
+                    region = findRegion(buffer.address);
+                }
+                if (region == null) continue;
+                buffer.region = region;
+                if (buffer.unmapper == 0) {
+                    // a slice or duplicate shares the memory of its parent, its capacity is not added again
+                    region.viewCount++;
+                } else {
+                    region.bufferCount++;
+                    region.bufferCapacity += buffer.capacity;
+                }
+                mapped.add(buffer);
+            }
+            buffers.clear();
+            buffers.addAll(mapped);
+        }
+
+        /**
+         * Walk the heap again for the references to the mapped buffers, other than those of buffers to the buffer they
+         * were sliced from and of their Cleaners, to tell the mappings still in use from those waiting for a GC.
+         */
+        void findReferrers(ObjectHeap heap) {
+            if (buffers.isEmpty()) return;
+            buffers.sort(new Comparator<MappedBuffer>() {
+                @Override
+                public int compare(MappedBuffer o1, MappedBuffer o2) {
+                    return Long.compare(o1.oop, o2.oop);
+                }
+            });
+            long[] addresses = new long[buffers.size()];
+            for (int i = 0; i < addresses.length; i++) {
+                addresses[i] = buffers.get(i).oop;
+            }
+            final InstanceKlass cleanerKlass = SystemDictionaryHelper.findInstanceKlass("sun.misc.Cleaner");
+            heap.iterate(new HeapReferrers(addresses, addresses.length, new HeapReferrers.Filter() {
+                @Override
+                public boolean isReferrer(Klass klass) {
+                    return !klass.equals(cleanerKlass) && !isBuffer(klass);
+                }
+            }, new HeapReferrers.Visitor() {
+                @Override
+                public void referenced(int target, int referrer) {
+                    buffers.get(target).region.referenced = true;
+                }
+            }));
+        }
+
+        private MappedRegion findRegion(long address) {
+            int low = 0;
+            int high = regions.size() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                MappedRegion region = regions.get(mid);
+                if (region.address + region.size <= address) {
+                    low = mid + 1;
+                } else if (region.address > address) {
+                    high = mid - 1;
+                } else {
+                    return region;
+                }
+            }
+            return null;
+        }
+
+        void printMappings(ProcessMappings mappings, boolean listBuffers) {
+            long mappedSize = 0;
+            for (MappedRegion region : regions) {
+                mappedSize += region.size;
+            }
+            System.out.printf("Live mappings in the heap: %d, %f MB (%d bytes) mapped, %d buffers\n",
+                    regions.size(), PrintDirectMemorySizeJDK8.toM(mappedSize), mappedSize, buffers.size());
+
+            // group the FileChannel.map mappings by the process mapping they fall in
+            Map<ProcessMappings.Mapping, List<MappedRegion>> byMapping = new LinkedHashMap<>();
+            List<MappedRegion> notFound = new ArrayList<>();
+            for (MappedRegion region : regions) {
+                ProcessMappings.Mapping mapping = mappings == null ? null : mappings.find(region.address);
+                if (mapping == null) {
+                    notFound.add(region);
+                    continue;
+                }
+                region.path = mapping.path;
+                List<MappedRegion> grouped = byMapping.get(mapping);
+                if (grouped == null) {
+                    grouped = new ArrayList<>();
+                    byMapping.put(mapping, grouped);
+                }
+                grouped.add(region);
+            }
+
+            if (mappings == null) {
+                System.out.println("The memory mappings of the target are not available, mapped files are not checked");
+            } else {
+                System.out.println("Mapped files: (from " + mappings.source() + ")");
+                System.out.printf("%-37s%6s%16s%8s%10s%16s%8s  %s\n", "range", "perms", "bytes", "maps", "buffers",
+                        "buffer bytes", "views", "path");
+                for (Map.Entry<ProcessMappings.Mapping, List<MappedRegion>> entry : byMapping.entrySet()) {
+                    ProcessMappings.Mapping mapping = entry.getKey();
+                    long bufferCount = 0;
+                    long bufferCapacity = 0;
+                    long viewCount = 0;
+                    for (MappedRegion region : entry.getValue()) {
+                        bufferCount += region.bufferCount;
+                        bufferCapacity += region.bufferCapacity;
+                        viewCount += region.viewCount;
+                    }
+                    System.out.printf("0x%016x-0x%016x%6s%16d%8d%10d%16d%8d  %s\n", mapping.start, mapping.end,
+                            mapping.perms == null ? "?" : mapping.perms, mapping.size(), entry.getValue().size(),
+                            bufferCount, bufferCapacity, viewCount, mapping.path);
+                }
+            }
+
+            System.out.println("Mappings no buffer references anymore, unmapped only when their Cleaner runs:");
+            long unreferencedSize = 0;
+            int unreferencedCount = 0;
+            for (MappedRegion region : regions) {
+                if (region.referenced) continue;
+                unreferencedCount++;
+                unreferencedSize += region.size;
+                System.out.printf("  0x%016x: size = %d bytes, capacity = %d bytes, fd = %d  %s\n", region.address,
+                        region.size, region.capacity, region.fd, region.path == null ? "" : region.path);
+            }
+            System.out.printf("  total %d, %f MB (%d bytes)\n", unreferencedCount, PrintDirectMemorySizeJDK8.toM(unreferencedSize), unreferencedSize);
+
+            if (mappings != null) {
+                if (!notFound.isEmpty()) {
+                    System.out.println("Mappings of the heap missing from " + mappings.source() + ":");
+                    for (MappedRegion region : notFound) {
+                        System.out.printf("  0x%016x: size = %d bytes\n", region.address, region.size);
+                    }
+                }
+                printOtherMappings(mappings, byMapping);
+            }
+
+            if (listBuffers) {
+                System.out.println("Live mapped buffers:");
+                for (MappedBuffer buffer : buffers) {
+                    System.out.printf("  0x%016x: capacity = %f MB (%d bytes), fd = %d, %s%s  %s\n", buffer.address,
+                            PrintDirectMemorySizeJDK8.toM(buffer.capacity), buffer.capacity, buffer.fd, buffer.className,
+                            buffer.unmapper == 0 ? " (view)" : "", buffer.region.path == null ? "" : buffer.region.path);
+                }
+            }
+        }
+
+        private static void printOtherMappings(ProcessMappings mappings,
+                                               Map<ProcessMappings.Mapping, List<MappedRegion>> byMapping) {
+            System.out.println("Other file mappings, not made by FileChannel.map: (without the JVM's code and class data)");
+            long total = 0;
+            for (ProcessMappings.Mapping mapping : mappings.mappings()) {
+                if (byMapping.containsKey(mapping) || RUNTIME_FILES.matcher(mapping.path).matches()) continue;
+                if (mapping.perms != null && mapping.perms.indexOf('x') >= 0) continue;
+                total += mapping.size();
+                System.out.printf("0x%016x-0x%016x%6s%16d  %s\n", mapping.start, mapping.end,
+                        mapping.perms == null ? "?" : mapping.perms, mapping.size(), mapping.path);
+            }
+            System.out.printf("  total %f MB (%d bytes)\n", PrintDirectMemorySizeJDK8.toM(total), total);
+        }
+    }
+
+    /**
+     * A mapping made by FileChannel.map, as its Unmapper records it.
+     */
+    private static class MappedRegion {
+        private final long address;
+        private final long size;
+        private final int capacity;
+        private final int fd;
+        private String path;
+        // the buffers FileChannel.map returned, and the slices and duplicates of them
+        private long bufferCount;
+        private long bufferCapacity;
+        private long viewCount;
+        // whether an object other than a buffer references one of its buffers
+        private boolean referenced;
+
+        MappedRegion(long address, long size, int capacity, int fd) {
+            this.address = address;
+            this.size = size;
+            this.capacity = capacity;
+            this.fd = fd;
+        }
+    }
+
+    private static class MappedBuffer {
+        // the raw address of the buffer object
+        private final long oop;
+        private final long address;
+        private final int capacity;
+        private final int fd;
+        private final String className;
+        // the raw address of the Unmapper its Cleaner runs, 0 for a slice or duplicate
+        private final long unmapper;
+        private MappedRegion region;
+
+        MappedBuffer(long oop, long address, int capacity, int fd, String className, long unmapper) {
+            this.oop = oop;
+            this.address = address;
+            this.capacity = capacity;
+            this.fd = fd;
+            this.className = className;
+            this.unmapper = unmapper;
+        }
+    }
+}
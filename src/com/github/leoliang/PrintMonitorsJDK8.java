@@ -0,0 +1,259 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.debugger.Address;
+import sun.jvm.hotspot.debugger.AddressException;
+import sun.jvm.hotspot.debugger.OopHandle;
+import sun.jvm.hotspot.oops.InstanceMirrorKlass;
+import sun.jvm.hotspot.oops.Klass;
+import sun.jvm.hotspot.oops.Method;
+import sun.jvm.hotspot.oops.Oop;
+import sun.jvm.hotspot.oops.java_lang_Class;
+import sun.jvm.hotspot.runtime.JavaThread;
+import sun.jvm.hotspot.runtime.JavaVFrame;
+import sun.jvm.hotspot.runtime.MonitorInfo;
+import sun.jvm.hotspot.runtime.ObjectMonitor;
+import sun.jvm.hotspot.runtime.VM;
+import sun.jvm.hotspot.tools.Tool;
+import sun.jvm.hotspot.types.TypeDataBase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Print the inflated monitors of a running JVM or a core file with their owner, the frame that entered them, the
+ * threads blocked on entering them and the threads waiting on them, ranked by the blocked threads, then the same
+ * counts per class of the locked objects and per owning frame, to find the locks that hold the application back.
+ * A lock is inflated once a second thread contends for it or a thread waits on it, so every contended lock is listed.
+ * Usage: java -cp .:${JAVA_HOME}/lib/sa-jdi.jar com.github.leoliang.PrintMonitorsJDK8 &lt;Running JVM's PID&gt; <br />
+ * You need to add sa-jdi.jar to your class path. This is generally available in your JDK's lib directory. Also, you might need to run this class with super user privileges in order to access the other JVM.
+ * <p>
+ */
+public class PrintMonitorsJDK8 extends Tool {
+
+    public static void main(String[] args) {
+        if (args.length == 0 || args.length > 1) {
+            System.err.println("Usage: java com.github.leoliang.PrintMonitorsJDK8 <PID of the JVM whose monitors you want to print>");
+            System.exit(1);
+        }
+        PrintMonitorsJDK8 tool = new PrintMonitorsJDK8();
+        tool.execute(args);
+        tool.stop();
+    }
+
+    @Override
+    public void run() {
+        DebuggerPageCache pageCache = DebuggerPageCache.install(getAgent());
+        try {
+            MonitorCollector collector = new MonitorCollector();
+            collector.collect();
+            collector.print();
+        } catch (AddressException e) {
+            System.err.println("Error accessing address 0x"
+                    + Long.toHexString(e.getAddress()));
+            e.printStackTrace();
+        }
+        pageCache.printStats(System.out);
+    }
+
+    /**
+     * Takes the monitors in use from the monitor blocks, and the blocked and waiting threads from the monitor each
+     * thread is entering or waiting on, as jstack does, since the entry and wait queues of a monitor are not in the
+     * type database.
+     * The blocks are walked here rather than with ObjectSynchronizer.objectMonitorIterator(), which never moves past
+     * the second block and loops on it once there are more than two.
+     */
+    static class MonitorCollector {
+        private final Address blockList;
+        private final int blockSize;
+        private final long monitorSize;
+
+        // by the raw address of the monitor
+        private final Map<Long, MonitorState> monitors = new LinkedHashMap<>();
+        private long inUse;
+
+        MonitorCollector() {
+            TypeDataBase db = VM.getVM().getTypeDataBase();
+            blockList = db.lookupType("ObjectSynchronizer").getAddressField("gBlockList").getValue();
+            blockSize = db.lookupIntConstant("ObjectSynchronizer::_BLOCKSIZE");
+            monitorSize = db.lookupType("ObjectMonitor").getSize();
+        }
+
+        void collect() {
+            for (Address block = blockList; block != null; block = new ObjectMonitor(block).freeNext()) {
+                // the first monitor of a block only links the blocks
+                for (int i = 1; i < blockSize; i++) {
+                    ObjectMonitor monitor = new ObjectMonitor(block.addOffsetTo(i * monitorSize));
+                    // a monitor on the free lists has no object
+                    if (monitor.object() == null) continue;
+                    inUse++;
+                    monitorState(monitor);
+                }
+            }
+            for (JavaThread thread = VM.getVM().getThreads().first(); thread != null; thread = thread.next()) {
+                ObjectMonitor pending = thread.getCurrentPendingMonitor();
+                if (pending != null) {
+                    monitorState(pending).blocked.add(thread.getThreadName());
+                }
+                ObjectMonitor waiting = thread.getCurrentWaitingMonitor();
+                if (waiting != null) {
+                    monitorState(waiting).waiting.add(thread.getThreadName());
+                }
+            }
+        }
+
+        private MonitorState monitorState(ObjectMonitor monitor) {
+            long address = GenerationLookupTable.rawAddress(monitor.getAddress());
+            MonitorState state = monitors.get(address);
+            if (state == null) {
+                state = new MonitorState(address, monitor);
+                monitors.put(address, state);
+            }
+            return state;
+        }
+
+        void print() {
+            List<MonitorState> active = new ArrayList<>();
+            for (MonitorState state : monitors.values()) {
+                if (state.owner != null || !state.blocked.isEmpty() || !state.waiting.isEmpty()) {
+                    active.add(state);
+                }
+            }
+            Collections.sort(active, new Comparator<MonitorState>() {
+                @Override
+                public int compare(MonitorState o1, MonitorState o2) {
+                    int byBlocked = Integer.compare(o2.blocked.size(), o1.blocked.size());
+                    return byBlocked != 0 ? byBlocked : Integer.compare(o2.waiting.size(), o1.waiting.size());
+                }
+            });
+
+            System.out.printf("Inflated monitors: %d in use, %d owned or with threads blocked or waiting on them\n",
+                    inUse, active.size());
+            System.out.printf("%18s%20s%10s%10s%12s  %s\n", "monitor", "object", "blocked", "waiting", "recursions",
+                    "class / owner and owning frame / threads");
+            Map<String, long[]> byClass = new HashMap<>();
+            Map<String, long[]> byFrame = new HashMap<>();
+            for (MonitorState state : active) {
+                System.out.printf("0x%016x  0x%016x%10d%10d%12d  %s\n", state.address, state.object,
+                        state.blocked.size(), state.waiting.size(), state.recursions, state.className);
+                if (state.owner != null) {
+                    System.out.printf("%70s  owner: %s at %s\n", "", state.owner,
+                            state.owningFrame == null ? "-" : state.owningFrame);
+                }
+                if (!state.blocked.isEmpty()) {
+                    System.out.printf("%70s  blocked: %s\n", "", state.blocked);
+                }
+                if (!state.waiting.isEmpty()) {
+                    System.out.printf("%70s  waiting: %s\n", "", state.waiting);
+                }
+                add(byClass, state.className, state);
+                if (state.owningFrame != null) {
+                    add(byFrame, state.owningFrame, state);
+                }
+            }
+            System.out.println("Locked classes by blocked threads:");
+            printCounts(byClass, "class");
+            System.out.println("Owning frames by blocked threads:");
+            printCounts(byFrame, "frame");
+        }
+
+        private static void add(Map<String, long[]> counts, String key, MonitorState state) {
+            long[] stats = counts.get(key);
+            if (stats == null) {
+                stats = new long[4];
+                counts.put(key, stats);
+            }
+            stats[0]++;
+            stats[1] += state.owner == null ? 0 : 1;
+            stats[2] += state.blocked.size();
+            stats[3] += state.waiting.size();
+        }
+
+        /**
+         * @param counts monitors, owned monitors, blocked then waiting threads, per key
+         */
+        private static void printCounts(Map<String, long[]> counts, String keyName) {
+            List<Map.Entry<String, long[]>> sorted = new ArrayList<>(counts.entrySet());
+            Collections.sort(sorted, new Comparator<Map.Entry<String, long[]>>() {
+                @Override
+                public int compare(Map.Entry<String, long[]> o1, Map.Entry<String, long[]> o2) {
+                    int byBlocked = Long.compare(o2.getValue()[2], o1.getValue()[2]);
+                    return byBlocked != 0 ? byBlocked : Long.compare(o2.getValue()[3], o1.getValue()[3]);
+                }
+            });
+            System.out.printf("%10s%10s%10s%10s  %s\n", "monitors", "owned", "blocked", "waiting", keyName);
+            for (Map.Entry<String, long[]> entry : sorted) {
+                long[] stats = entry.getValue();
+                System.out.printf("%10d%10d%10d%10d  %s\n", stats[0], stats[1], stats[2], stats[3], entry.getKey());
+            }
+        }
+    }
+
+    private static class MonitorState {
+        private final long address;
+        private final long object;
+        private final String className;
+        private final String owner;
+        // the frame of the owner that entered the monitor, or its top frame if that is not found
+        private final String owningFrame;
+        private final long recursions;
+        private final List<String> blocked = new ArrayList<>();
+        private final List<String> waiting = new ArrayList<>();
+
+        MonitorState(long address, ObjectMonitor monitor) {
+            this.address = address;
+            OopHandle handle = monitor.object();
+            object = GenerationLookupTable.rawAddress(handle);
+            className = handle == null ? "-" : lockedClassName(VM.getVM().getObjectHeap().newOop(handle));
+            // the owner is a thread, or a BasicLock on its stack if the lock was inflated while stack-locked
+            JavaThread ownerThread = monitor.owner() == null ? null
+                    : VM.getVM().getThreads().owningThreadFromMonitor(monitor);
+            owner = ownerThread == null ? null : ownerThread.getThreadName();
+            owningFrame = ownerThread == null ? null : owningFrame(ownerThread, object);
+            recursions = monitor.recursions();
+        }
+
+        /**
+         * @return the class of the object, or the class a Class object stands for, locked by static synchronized methods
+         */
+        private static String lockedClassName(Oop oop) {
+            Klass klass = oop.getKlass();
+            if (klass instanceof InstanceMirrorKlass) {
+                Klass mirrored = java_lang_Class.asKlass(oop);
+                if (mirrored != null) {
+                    return "java.lang.Class for " + mirrored.getName().asString().replace('/', '.');
+                }
+            }
+            return klass.getName().asString().replace('/', '.');
+        }
+
+        private static String owningFrame(JavaThread thread, long object) {
+            JavaVFrame top = thread.getLastJavaVFrameDbg();
+            try {
+                for (JavaVFrame frame = top; frame != null; frame = frame.javaSender()) {
+                    for (Object info : frame.getMonitors()) {
+                        OopHandle owner = ((MonitorInfo) info).owner();
+                        if (owner != null && GenerationLookupTable.rawAddress(owner) == object) {
+                            return describe(frame);
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                // the monitors of a compiled frame cannot always be read, the top frame will do
+            }
+            return top == null ? null : describe(top);
+        }
+
+        private static String describe(JavaVFrame frame) {
+            Method method = frame.getMethod();
+            int line = method.hasLineNumberTable() ? method.getLineNumberFromBCI(frame.getBCI()) : -1;
+            return String.format("%s.%s(line %d, bci %d)",
+                    method.getMethodHolder().getName().asString().replace('/', '.'), method.getName().asString(),
+                    line, frame.getBCI());
+        }
+    }
+}
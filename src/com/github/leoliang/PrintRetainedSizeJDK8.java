@@ -0,0 +1,470 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.debugger.Address;
+import sun.jvm.hotspot.debugger.AddressException;
+import sun.jvm.hotspot.debugger.OopHandle;
+import sun.jvm.hotspot.memory.SystemDictionary;
+import sun.jvm.hotspot.oops.Array;
+import sun.jvm.hotspot.oops.DefaultOopVisitor;
+import sun.jvm.hotspot.oops.HeapVisitor;
+import sun.jvm.hotspot.oops.InstanceKlass;
+import sun.jvm.hotspot.oops.Klass;
+import sun.jvm.hotspot.oops.NarrowOopField;
+import sun.jvm.hotspot.oops.ObjArray;
+import sun.jvm.hotspot.oops.Oop;
+import sun.jvm.hotspot.oops.OopField;
+import sun.jvm.hotspot.oops.java_lang_Class;
+import sun.jvm.hotspot.runtime.AddressVisitor;
+import sun.jvm.hotspot.runtime.BasicType;
+import sun.jvm.hotspot.runtime.JavaThread;
+import sun.jvm.hotspot.runtime.VM;
+import sun.jvm.hotspot.tools.Tool;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Print the retained size per class and the biggest dominators of a running JVM, computed from the object graph
+ * without writing an hprof first.
+ * The heap walk records every object and reference into memory-mapped arrays indexed by object number, so graphs of
+ * hundreds of millions of objects fit outside the java heap. The target is released as soon as the walk and the GC
+ * roots are recorded; the dominator tree is then computed offline and the retained size of an object is the shallow
+ * size of everything it dominates.
+ * GC roots are the thread stacks and handles, the JNI global handles and the classes of the boot class loader. The
+ * referent of a java.lang.ref.Reference does not keep its object alive.
+ * Usage: java -cp .:${JAVA_HOME}/lib/sa-jdi.jar com.github.leoliang.PrintRetainedSizeJDK8 [-n top] [-tmp directory] &lt;Running JVM's PID&gt; <br />
+ * You need to add sa-jdi.jar to your class path. This is generally available in your JDK's lib directory. Also, you might need to run this class with super user privileges in order to access the other JVM.
+ * <p>
+ */
+public class PrintRetainedSizeJDK8 extends Tool {
+    private final int top;
+    private final File tmpDir;
+    private ObjectGraph graph;
+
+    public PrintRetainedSizeJDK8(int top, File tmpDir) {
+        this.top = top;
+        this.tmpDir = tmpDir;
+    }
+
+    public static void main(String[] args) {
+        int top = 30;
+        File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+
+        int used = 0;
+        while (used < args.length - 1 && args[used].startsWith("-")) {
+            if ("-n".equals(args[used])) {
+                top = Integer.parseInt(args[used + 1]);
+            } else if ("-tmp".equals(args[used])) {
+                tmpDir = new File(args[used + 1]);
+            } else {
+                break;
+            }
+            used += 2;
+        }
+
+        if (used != 0) {
+            args = Arrays.copyOfRange(args, used, args.length);
+        }
+
+        PrintRetainedSizeJDK8 tool = new PrintRetainedSizeJDK8(top, tmpDir);
+        tool.execute(args);
+    }
+
+    /**
+     * execute() detaches through stop() and then exits, so the recorded graph is analysed from here, with the target
+     * already running again.
+     */
+    @Override
+    public void stop() {
+        super.stop();
+        if (graph == null) return;
+        ObjectGraph recorded = graph;
+        graph = null;
+        printRetainedSizes(recorded);
+    }
+
+    @Override
+    public void run() {
+        DebuggerPageCache pageCache = DebuggerPageCache.install(getAgent());
+        try {
+            long start = System.nanoTime();
+            ObjectGraph recorded = new ObjectGraph(tmpDir);
+            VM.getVM().getObjectHeap().iterate(recorded);
+            recorded.collectRoots();
+            recorded.resolveKlassNames();
+            System.out.printf("Recorded %d objects, %d references and %d GC roots in %.3f s\n", recorded.objectCount,
+                    recorded.edgeCount, recorded.rootCount, (System.nanoTime() - start) / 1e9);
+            if (!recorded.sorted) {
+                System.err.println("The heap walk did not visit objects in address order");
+                recorded.close();
+            } else {
+                graph = recorded;
+            }
+        } catch (AddressException e) {
+            System.err.println("Error accessing address 0x"
+                    + Long.toHexString(e.getAddress()));
+            e.printStackTrace();
+        }
+        pageCache.printStats(System.out);
+    }
+
+    private void printRetainedSizes(ObjectGraph graph) {
+        long start = System.nanoTime();
+        int n = graph.objectCount;
+        int[] roots = graph.resolveRoots();
+        MappedIntArray succ = graph.resolveEdges();
+        DominatorTree tree = new DominatorTree(tmpDir, n, graph.edgeStarts, succ, roots);
+        tree.compute();
+        succ.close();
+        int root = tree.root();
+
+        // dominated nodes have higher preorder numbers, so they are added to their dominator before it is read
+        MappedLongArray retained = new MappedLongArray(tmpDir, "retained");
+        MappedIntArray childHead = new MappedIntArray(tmpDir, "child-head");
+        MappedIntArray childNext = new MappedIntArray(tmpDir, "child-next");
+        for (int i = tree.reachableCount(); i >= 2; i--) {
+            int w = tree.vertex(i);
+            int d = tree.idom(w);
+            long size = retained.get(w) + graph.shallowSize(w);
+            retained.set(w, size);
+            retained.add(d, size);
+            childNext.set(w, childHead.get(d));
+            childHead.set(d, w + 1);
+        }
+        tree.close();
+
+        long totalShallow = 0;
+        for (int v = 0; v < n; v++) {
+            totalShallow += graph.shallowSize(v);
+        }
+
+        // walk the dominator tree, an object counts for its class only if no dominator of it has the same class
+        int klassCount = graph.klassNames.length;
+        long[] classCounts = new long[klassCount];
+        long[] classShallow = new long[klassCount];
+        long[] classRetained = new long[klassCount];
+        int[] active = new int[klassCount];
+        MappedIntArray stackNodes = new MappedIntArray(tmpDir, "tree-nodes");
+        MappedIntArray stackChildren = new MappedIntArray(tmpDir, "tree-children");
+        int depth = 0;
+        stackNodes.set(depth, root);
+        stackChildren.set(depth++, childHead.get(root));
+        while (depth > 0) {
+            int child = stackChildren.get(depth - 1);
+            if (child == 0) {
+                int v = stackNodes.get(--depth);
+                if (v != root) {
+                    active[graph.klassIds.get(v)]--;
+                }
+                continue;
+            }
+            int w = child - 1;
+            stackChildren.set(depth - 1, childNext.get(w));
+
+            int k = graph.klassIds.get(w);
+            classCounts[k]++;
+            classShallow[k] += graph.shallowSize(w);
+            if (active[k]++ == 0) {
+                classRetained[k] += retained.get(w);
+            }
+            stackNodes.set(depth, w);
+            stackChildren.set(depth++, childHead.get(w));
+        }
+        stackNodes.close();
+        stackChildren.close();
+
+        int[] dominators = new int[top];
+        int dominatorCount = 0;
+        for (int c = childHead.get(root); c != 0; c = childNext.get(c - 1)) {
+            int v = c - 1;
+            int i = dominatorCount;
+            while (i > 0 && retained.get(dominators[i - 1]) < retained.get(v)) {
+                i--;
+            }
+            if (i == top) continue;
+            System.arraycopy(dominators, i, dominators, i + 1, Math.min(dominatorCount, top - 1) - i);
+            dominators[i] = v;
+            dominatorCount = Math.min(dominatorCount + 1, top);
+        }
+
+        long reachableBytes = retained.get(root);
+        System.out.printf("Computed the dominator tree in %.3f s\n", (System.nanoTime() - start) / 1e9);
+        System.out.printf("Reachable: %d objects, %d bytes; unreachable: %d objects, %d bytes\n",
+                tree.reachableCount() - 1, reachableBytes, n - (tree.reachableCount() - 1), totalShallow - reachableBytes);
+
+        Integer[] klassOrder = new Integer[klassCount];
+        for (int k = 0; k < klassCount; k++) {
+            klassOrder[k] = k;
+        }
+        final long[] sortKey = classRetained;
+        Arrays.sort(klassOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare(sortKey[o2], sortKey[o1]);
+            }
+        });
+        System.out.println("Retained size by class:");
+        System.out.printf("%100s%12s%16s%16s\n", "class", "count", "Shallow Size", "Retained Size");
+        for (int i = 0; i < Math.min(top, klassCount) && classRetained[klassOrder[i]] > 0; i++) {
+            int k = klassOrder[i];
+            System.out.printf("%100s%12d%16d%16d\n", graph.klassNames[k], classCounts[k], classShallow[k],
+                    classRetained[k]);
+        }
+
+        System.out.println("Top dominators:");
+        System.out.printf("%18s %-80s%16s%16s%8s\n", "address", "class", "Shallow Size", "Retained Size", "%");
+        for (int i = 0; i < dominatorCount; i++) {
+            int v = dominators[i];
+            long size = retained.get(v);
+            System.out.printf("0x%016x %-80s%16d%16d%7.2f%%\n", graph.addresses.get(v),
+                    graph.klassNames[graph.klassIds.get(v)], graph.shallowSize(v), size,
+                    reachableBytes == 0 ? 0 : size * 100.0 / reachableBytes);
+        }
+
+        retained.close();
+        childHead.close();
+        childNext.close();
+        graph.close();
+    }
+
+    protected void printFlagsUsage() {
+        System.out.println("    -n <top>\tto print this many classes and dominators, 30 by default");
+        System.out.println("    -tmp <directory>\tto keep the memory-mapped graph in this directory instead of java.io.tmpdir");
+        super.printFlagsUsage();
+    }
+
+    /**
+     * Records the heap walk. Objects are numbered in walk order, which is address order, so a reference is resolved to
+     * an object number by binary search over the recorded addresses once the walk is done.
+     */
+    private static class ObjectGraph implements HeapVisitor {
+        private final File directory;
+        private final long heapWordSize = VM.getVM().getHeapWordSize();
+        private final MappedLongArray addresses;
+        private final MappedIntArray sizeWords;
+        private final MappedIntArray klassIds;
+        private final MappedLongArray edgeStarts;
+        private final MappedLongArray edgeTargets;
+        private final KlassIndex klasses = new KlassIndex();
+        private final StaticFieldVisitor staticFieldVisitor = new StaticFieldVisitor();
+        private final boolean compressedOops = VM.getVM().isCompressedOopsEnabled();
+        private final long heapOopSize = VM.getVM().getHeapOopSize();
+        private final long arrayBaseOffset = Array.baseOffsetInBytes(BasicType.T_OBJECT);
+        private long[] rootAddresses = new long[1024];
+        private String[] klassNames;
+
+        private int objectCount;
+        private long edgeCount;
+        private int rootCount;
+        private long lastAddress;
+        private boolean sorted = true;
+
+        ObjectGraph(File directory) {
+            this.directory = directory;
+            addresses = new MappedLongArray(directory, "addresses");
+            sizeWords = new MappedIntArray(directory, "sizes");
+            klassIds = new MappedIntArray(directory, "klasses");
+            edgeStarts = new MappedLongArray(directory, "edge-starts");
+            edgeTargets = new MappedLongArray(directory, "edge-targets");
+        }
+
+        @Override
+        public void prologue(long usedSize) {
+        }
+
+        @Override
+        public boolean doObj(Oop obj) {
+            if (objectCount == Integer.MAX_VALUE - 1) {
+                throw new IllegalStateException("More than " + objectCount + " objects");
+            }
+            long address = GenerationLookupTable.rawAddress(obj.getHandle());
+            if (address <= lastAddress) {
+                sorted = false;
+            }
+            lastAddress = address;
+
+            int klassId = klasses.indexOf(obj.getKlass());
+            addresses.set(objectCount, address);
+            sizeWords.set(objectCount, (int) (obj.getObjectSize() / heapWordSize));
+            klassIds.set(objectCount, klassId);
+            edgeStarts.set(objectCount, edgeCount);
+            objectCount++;
+
+            addEdge(klasses.mirrorAddress(klassId));
+            if (obj.isTypeArray()) return false;
+
+            OopHandle handle = obj.getHandle();
+            if (obj.isObjArray()) {
+                long length = ((ObjArray) obj).getLength();
+                for (long i = 0; i < length; i++) {
+                    addEdge(readOop(handle, arrayBaseOffset + i * heapOopSize));
+                }
+                return false;
+            }
+            for (long offset : klasses.oopOffsets(klassId, obj)) {
+                addEdge(readOop(handle, offset));
+            }
+            if (klasses.isClassMirror(klassId)) {
+                // the statics of a class live in its mirror, and its class loader is reached through its metadata
+                Klass klass = java_lang_Class.asKlass(obj);
+                if (klass instanceof InstanceKlass) {
+                    ((InstanceKlass) klass).iterateStaticFields(staticFieldVisitor);
+                    Oop loader = ((InstanceKlass) klass).getClassLoader();
+                    if (loader != null) {
+                        addEdge(GenerationLookupTable.rawAddress(loader.getHandle()));
+                    }
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void epilogue() {
+            edgeStarts.set(objectCount, edgeCount);
+        }
+
+        private long readOop(OopHandle handle, long offset) {
+            return GenerationLookupTable.rawAddress(
+                    compressedOops ? handle.getCompOopHandleAt(offset) : handle.getOopHandleAt(offset));
+        }
+
+        private void addEdge(long target) {
+            if (target == 0) return;
+            edgeTargets.set(edgeCount++, target);
+        }
+
+        private void addRoot(OopHandle handle) {
+            if (handle == null) return;
+            if (rootCount == rootAddresses.length) {
+                rootAddresses = Arrays.copyOf(rootAddresses, rootCount * 2);
+            }
+            rootAddresses[rootCount++] = GenerationLookupTable.rawAddress(handle);
+        }
+
+        void collectRoots() {
+            AddressVisitor rootVisitor = new AddressVisitor() {
+                @Override
+                public void visitAddress(Address address) {
+                    addRoot(address.getOopHandleAt(0));
+                }
+
+                @Override
+                public void visitCompOopAddress(Address address) {
+                    addRoot(address.getCompOopHandleAt(0));
+                }
+            };
+
+            for (JavaThread thread = VM.getVM().getThreads().first(); thread != null; thread = thread.next()) {
+                try {
+                    thread.oopsDo(rootVisitor);
+                } catch (RuntimeException e) {
+                    System.err.println("Skipping the rest of the stack of thread " + thread.getThreadName() + ": " + e);
+                }
+            }
+            VM.getVM().getJNIHandles().globalHandles().oopsDo(rootVisitor);
+            VM.getVM().getSystemDictionary().allClassesDo(new SystemDictionary.ClassVisitor() {
+                @Override
+                public void visit(Klass klass) {
+                    if (klass instanceof InstanceKlass && ((InstanceKlass) klass).getClassLoader() == null) {
+                        addRoot(klass.getJavaMirror().getHandle());
+                    }
+                }
+            });
+        }
+
+        void resolveKlassNames() {
+            klassNames = new String[klasses.size()];
+            for (int k = 0; k < klassNames.length; k++) {
+                klassNames[k] = klasses.get(k).getName().asString();
+            }
+        }
+
+        long shallowSize(int v) {
+            return sizeWords.get(v) * heapWordSize;
+        }
+
+        int[] resolveRoots() {
+            int[] roots = new int[rootCount];
+            int count = 0;
+            for (int i = 0; i < rootCount; i++) {
+                int v = find(rootAddresses[i]);
+                if (v >= 0) {
+                    roots[count++] = v;
+                }
+            }
+            Arrays.sort(roots, 0, count);
+            int unique = 0;
+            for (int i = 0; i < count; i++) {
+                if (unique == 0 || roots[unique - 1] != roots[i]) {
+                    roots[unique++] = roots[i];
+                }
+            }
+            return Arrays.copyOf(roots, unique);
+        }
+
+        /**
+         * Replace the recorded target addresses with object numbers, dropping references to anything that is not an
+         * object start, and compact edgeStarts to match.
+         */
+        MappedIntArray resolveEdges() {
+            MappedIntArray succ = new MappedIntArray(directory, "succ");
+            long resolved = 0;
+            long begin = 0;
+            for (int v = 0; v < objectCount; v++) {
+                long end = edgeStarts.get(v + 1);
+                edgeStarts.set(v, resolved);
+                for (long e = begin; e < end; e++) {
+                    int target = find(edgeTargets.get(e));
+                    if (target >= 0 && target != v) {
+                        succ.set(resolved++, target);
+                    }
+                }
+                begin = end;
+            }
+            edgeStarts.set(objectCount, resolved);
+            edgeTargets.close();
+            return succ;
+        }
+
+        private int find(long address) {
+            int low = 0;
+            int high = objectCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long midAddress = addresses.get(mid);
+                if (midAddress < address) {
+                    low = mid + 1;
+                } else if (midAddress > address) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        void close() {
+            addresses.close();
+            sizeWords.close();
+            klassIds.close();
+            edgeStarts.close();
+            edgeTargets.close();
+        }
+
+        private class StaticFieldVisitor extends DefaultOopVisitor {
+            @Override
+            public void doOop(OopField field, boolean isVMField) {
+                OopHandle handle = field.getValueAsOopHandle(getObj());
+                if (handle != null) {
+                    addEdge(GenerationLookupTable.rawAddress(handle));
+                }
+            }
+
+            @Override
+            public void doOop(NarrowOopField field, boolean isVMField) {
+                doOop((OopField) field, isVMField);
+            }
+        }
+    }
+}
@@ -1,66 +1,263 @@
 package com.github.leoliang;
 
+import sun.jvm.hotspot.debugger.Address;
 import sun.jvm.hotspot.memory.StringTable;
 import sun.jvm.hotspot.memory.SystemDictionary;
+import sun.jvm.hotspot.oops.Array;
 import sun.jvm.hotspot.oops.Instance;
 import sun.jvm.hotspot.oops.InstanceKlass;
+import sun.jvm.hotspot.oops.ObjectHeap;
+import sun.jvm.hotspot.oops.Oop;
 import sun.jvm.hotspot.oops.OopField;
 import sun.jvm.hotspot.oops.TypeArray;
+import sun.jvm.hotspot.runtime.BasicType;
 import sun.jvm.hotspot.runtime.VM;
 import sun.jvm.hotspot.tools.Tool;
 
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
 /**
  * Print the string literal pool of a running JVM.
- * Usage: java -cp .:${JAVA_HOME}/lib/sa-jdi.jar com.github.leoliang.PrintStringTableJDK8 &lt;Running JVM's PID&gt; <br />
+ * With -buckets the hash bucket health of the table is printed instead of its strings; the other options filter the
+ * strings, so they cannot be combined with it.
+ * Usage: java -cp .:${JAVA_HOME}/lib/sa-jdi.jar com.github.leoliang.PrintStringTableJDK8 [-buckets] [-o file[.gz]] [-min length] [-prefix prefix] [-regex regex] &lt;Running JVM's PID&gt; <br />
  * You need to add sa-jdi.jar to your class path. This is generally available in your JDK's lib directory. Also, you might need to run this class with super user privileges in order to access the other JVM.
  * <p>
  * Base on https://github.com/puneetlakhina/javautils/blob/master/src/com/blogspot/sahyog/PrintStringTable.java
  */
 public class PrintStringTableJDK8 extends Tool {
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+
+    private String outputFile;
+    private int minLength;
+    private String prefix;
+    private Pattern regex;
+    private boolean buckets;
+
     public PrintStringTableJDK8() {
 
     }
 
+    public PrintStringTableJDK8(String outputFile, int minLength, String prefix, Pattern regex) {
+        this.outputFile = outputFile;
+        this.minLength = minLength;
+        this.prefix = prefix;
+        this.regex = regex;
+    }
+
+    public PrintStringTableJDK8(boolean buckets) {
+        this.buckets = buckets;
+    }
+
     public static void main(String args[]) throws Exception {
-        if (args.length == 0 || args.length > 1) {
-            System.err.println("Usage: java com.github.leoliang.PrintStringTableJDK8 <PID of the JVM whose string table you want to print>");
+        String outputFile = null;
+        int minLength = 0;
+        String prefix = null;
+        Pattern regex = null;
+        boolean buckets = false;
+
+        int used = 0;
+        while (used < args.length - 1 && args[used].startsWith("-")) {
+            String arg = args[used];
+            if ("-buckets".equals(arg)) {
+                buckets = true;
+                used++;
+                continue;
+            } else if ("-o".equals(arg)) {
+                outputFile = args[used + 1];
+            } else if ("-min".equals(arg)) {
+                minLength = Integer.parseInt(args[used + 1]);
+            } else if ("-prefix".equals(arg)) {
+                prefix = args[used + 1];
+            } else if ("-regex".equals(arg)) {
+                regex = Pattern.compile(args[used + 1]);
+            } else {
+                break;
+            }
+            used += 2;
+        }
+
+        if (used == args.length) {
+            System.err.println("Usage: java com.github.leoliang.PrintStringTableJDK8 [-buckets] [-o file[.gz]] [-min length] [-prefix prefix] [-regex regex] <PID of the JVM whose string table you want to print>");
             System.exit(1);
         }
-        PrintStringTableJDK8 pst = new PrintStringTableJDK8();
+        // the bucket report prints no strings to filter or write
+        if (buckets && (outputFile != null || minLength > 0 || prefix != null || regex != null)) {
+            System.err.println("Usage: java com.github.leoliang.PrintStringTableJDK8 [-buckets] [-o file[.gz]] [-min length] [-prefix prefix] [-regex regex] <PID>, -buckets cannot be combined with -o, -min, -prefix or -regex");
+            System.exit(1);
+        }
+        args = Arrays.copyOfRange(args, used, args.length);
+
+        PrintStringTableJDK8 pst = buckets ? new PrintStringTableJDK8(true)
+                : new PrintStringTableJDK8(outputFile, minLength, prefix, regex);
         pst.execute(args);
         pst.stop();
     }
 
+    /**
+     * Read the chars of a char[] with one memory read instead of one per char.
+     */
+    static char[] readChars(TypeArray charArray) {
+        int length = (int) charArray.getLength();
+        char[] chars = new char[length];
+        if (length == 0) return chars;
+
+        long base = GenerationLookupTable.rawAddress(charArray.getHandle()) + Array.baseOffsetInBytes(BasicType.T_CHAR);
+        byte[] bytes = DebuggerPageCache.readBytes(base, length * 2L);
+        if (VM.getVM().isBigEndian()) {
+            for (int i = 0; i < length; i++) {
+                chars[i] = (char) (((bytes[2 * i] & 0xff) << 8) | (bytes[2 * i + 1] & 0xff));
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                chars[i] = (char) ((bytes[2 * i] & 0xff) | ((bytes[2 * i + 1] & 0xff) << 8));
+            }
+        }
+        return chars;
+    }
+
     @Override
     public void run() {
+        DebuggerPageCache pageCache = DebuggerPageCache.install(getAgent());
         StringTable table = VM.getVM().getStringTable();
-        StringPrinter stringPrinter = new StringPrinter();
-        table.stringsDo(stringPrinter);
-        System.out.println("Total: " + stringPrinter.getTotal());
+        if (buckets) {
+            new HashtableHealth(table, "StringTable", "-XX:StringTableSize", new StringDescriber()).print(System.out);
+            pageCache.printStats(System.out);
+            return;
+        }
+        try {
+            Writer out = openOutput();
+            StringPrinter stringPrinter = new StringPrinter(out);
+            try {
+                table.stringsDo(stringPrinter);
+            } finally {
+                if (outputFile == null) {
+                    out.flush();
+                } else {
+                    out.close();
+                }
+            }
+            System.out.println("Total: " + stringPrinter.getTotal());
+            if (stringPrinter.getPrinted() != stringPrinter.getTotal()) {
+                System.out.println("Printed: " + stringPrinter.getPrinted());
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error writing " + (outputFile == null ? "output" : outputFile));
+            e.printStackTrace();
+        }
+        pageCache.printStats(System.out);
+    }
+
+    private Writer openOutput() throws IOException {
+        OutputStream stream;
+        if (outputFile == null) {
+            stream = System.out;
+        } else if (outputFile.endsWith(".gz")) {
+            stream = new GZIPOutputStream(new FileOutputStream(outputFile), OUTPUT_BUFFER_SIZE);
+        } else {
+            stream = new FileOutputStream(outputFile);
+        }
+        return new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), OUTPUT_BUFFER_SIZE);
+    }
+
+    static class StringDescriber implements HashtableHealth.LiteralDescriber {
+        private final OopField stringValueField;
+        private final ObjectHeap heap;
+
+        StringDescriber() {
+            InstanceKlass strKlass = SystemDictionary.getStringKlass();
+            stringValueField = (OopField) strKlass.findField("value", "[C");
+            heap = VM.getVM().getObjectHeap();
+        }
+
+        @Override
+        public String literalName() {
+            return "String and char[] objects";
+        }
+
+        @Override
+        public long bytes(Address literal) {
+            Oop string = heap.newOop(literal.addOffsetToAsOopHandle(0));
+            Oop value = stringValueField.getValue(string);
+            return string.getObjectSize() + (value == null ? 0 : value.getObjectSize());
+        }
+
+        @Override
+        public String describe(Address literal) {
+            TypeArray value = (TypeArray) stringValueField.getValue(heap.newOop(literal.addOffsetToAsOopHandle(0)));
+            return value == null ? "null" : new String(readChars(value));
+        }
     }
 
     class StringPrinter implements StringTable.StringVisitor {
         private final OopField stringValueField;
-        private volatile long total = 0;
+        private final Writer out;
+        private long total = 0;
+        private long printed = 0;
 
-        public StringPrinter() {
+        public StringPrinter(Writer out) {
             InstanceKlass strKlass = SystemDictionary.getStringKlass();
             stringValueField = (OopField) strKlass.findField("value", "[C");
+            this.out = out;
         }
 
         @Override
         public void visit(Instance instance) {
+            total++;
             TypeArray charArray = ((TypeArray) stringValueField.getValue(instance));
-            StringBuilder sb = new StringBuilder();
-            for (long i = 0; i < charArray.getLength(); i++) {
-                sb.append(charArray.getCharAt(i));
+            if (charArray.getLength() < minLength) return;
+
+            char[] chars = readChars(charArray);
+            if (!matches(chars)) return;
+
+            printed++;
+            try {
+                out.write("Address: ");
+                out.write(instance.getHandle().toString());
+                out.write(" Content: ");
+                out.write(chars);
+                out.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-            total++;
-            System.out.println("Address: " + instance.getHandle() + " Content: " + sb.toString());
+        }
+
+        private boolean matches(char[] chars) {
+            if (prefix != null) {
+                if (chars.length < prefix.length()) return false;
+                for (int i = 0; i < prefix.length(); i++) {
+                    if (chars[i] != prefix.charAt(i)) return false;
+                }
+            }
+            return regex == null || regex.matcher(CharBuffer.wrap(chars)).find();
         }
 
         public long getTotal() {
             return total;
         }
+
+        public long getPrinted() {
+            return printed;
+        }
+    }
+
+    protected void printFlagsUsage() {
+        System.out.println("    -buckets\tto print the hash bucket health of the table instead of its strings");
+        System.out.println("    -o <file>\tto write the strings to a file instead of stdout, gzip compressed if it ends with .gz");
+        System.out.println("    -min <length>\tto print only strings of at least this many chars");
+        System.out.println("    -prefix <prefix>\tto print only strings starting with the prefix");
+        System.out.println("    -regex <regex>\tto print only strings containing a match of the regex");
+        super.printFlagsUsage();
     }
 }
@@ -1,5 +1,6 @@
 package com.github.leoliang;
 
+import sun.jvm.hotspot.debugger.Address;
 import sun.jvm.hotspot.memory.StringTable;
 import sun.jvm.hotspot.memory.SymbolTable;
 import sun.jvm.hotspot.memory.SystemDictionary;
@@ -11,31 +12,77 @@ import sun.jvm.hotspot.oops.TypeArray;
 import sun.jvm.hotspot.runtime.VM;
 import sun.jvm.hotspot.tools.Tool;
 
+import java.util.Arrays;
+
 /**
  * Print the symbol table of a running JVM.
- * Usage: java -cp .:${JAVA_HOME}/lib/sa-jdi.jar com.github.leoliang.PrintSymbolTableJDK8 &lt;Running JVM's PID&gt; <br />
+ * Usage: java -cp .:${JAVA_HOME}/lib/sa-jdi.jar com.github.leoliang.PrintSymbolTableJDK8 [-buckets] &lt;Running JVM's PID&gt; <br />
  * You need to add sa-jdi.jar to your class path. This is generally available in your JDK's lib directory. Also, you might need to run this class with super user privileges in order to access the other JVM.
  * <p>
  */
 public class PrintSymbolTableJDK8 extends Tool {
+    private boolean buckets;
+
     public PrintSymbolTableJDK8() {
 
     }
 
+    public PrintSymbolTableJDK8(boolean buckets) {
+        this.buckets = buckets;
+    }
+
     public static void main(String args[]) throws Exception {
+        boolean buckets = args.length > 0 && "-buckets".equals(args[0]);
+        if (buckets) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
         if (args.length == 0 || args.length > 1) {
-            System.err.println("Usage: java com.github.leoliang.PrintSymbolTableJDK8 <PID of the JVM whose string table you want to print>");
+            System.err.println("Usage: java com.github.leoliang.PrintSymbolTableJDK8 [-buckets] <PID of the JVM whose string table you want to print>");
             System.exit(1);
         }
-        PrintSymbolTableJDK8 pst = new PrintSymbolTableJDK8();
+        PrintSymbolTableJDK8 pst = new PrintSymbolTableJDK8(buckets);
         pst.execute(args);
         pst.stop();
     }
 
     @Override
     public void run() {
+        DebuggerPageCache pageCache = DebuggerPageCache.install(getAgent());
         SymbolTable table = VM.getVM().getSymbolTable();
-        table.symbolsDo(new SymbolTablePrinter());
+        if (buckets) {
+            // SymbolTableSize is an experimental flag in JDK8
+            new HashtableHealth(table, "SymbolTable", "-XX:+UnlockExperimentalVMOptions -XX:SymbolTableSize",
+                    new SymbolDescriber()).print(System.out);
+        } else {
+            table.symbolsDo(new SymbolTablePrinter());
+        }
+        pageCache.printStats(System.out);
+    }
+
+    static class SymbolDescriber implements HashtableHealth.LiteralDescriber {
+        private final long bodyOffset;
+        private final long wordSize;
+
+        SymbolDescriber() {
+            bodyOffset = VM.getVM().getTypeDataBase().lookupType("Symbol").getField("_body").getOffset();
+            wordSize = VM.getVM().getAddressSize();
+        }
+
+        @Override
+        public String literalName() {
+            return "Symbols";
+        }
+
+        @Override
+        public long bytes(Address literal) {
+            long size = bodyOffset + Symbol.create(literal).getLength();
+            return (size + wordSize - 1) / wordSize * wordSize;
+        }
+
+        @Override
+        public String describe(Address literal) {
+            return Symbol.create(literal).asString();
+        }
     }
 
     class SymbolTablePrinter implements SymbolTable.SymbolVisitor {
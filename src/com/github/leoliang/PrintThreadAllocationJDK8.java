@@ -0,0 +1,246 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.debugger.Address;
+import sun.jvm.hotspot.debugger.AddressException;
+import sun.jvm.hotspot.gc_implementation.g1.G1CollectedHeap;
+import sun.jvm.hotspot.gc_implementation.parallelScavenge.ParallelScavengeHeap;
+import sun.jvm.hotspot.gc_implementation.shared.MutableSpace;
+import sun.jvm.hotspot.gc_interface.CollectedHeap;
+import sun.jvm.hotspot.memory.ContiguousSpace;
+import sun.jvm.hotspot.memory.DefNewGeneration;
+import sun.jvm.hotspot.memory.GenCollectedHeap;
+import sun.jvm.hotspot.runtime.JavaThread;
+import sun.jvm.hotspot.runtime.ThreadLocalAllocBuffer;
+import sun.jvm.hotspot.runtime.VM;
+import sun.jvm.hotspot.tools.Tool;
+import sun.jvm.hotspot.types.CIntegerField;
+import sun.jvm.hotspot.types.Type;
+import sun.jvm.hotspot.types.TypeDataBase;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Print the TLAB of every Java thread and the bytes it allocated, with how much of eden the TLABs hold unused, to tune
+ * -XX:TLABSize and -XX:+ResizeTLAB without restarting with -XX:+PrintTLAB.
+ * The refill, waste and slow allocation counters are those HotSpot keeps since the last young collection.
+ * Usage: java -cp .:${JAVA_HOME}/lib/sa-jdi.jar com.github.leoliang.PrintThreadAllocationJDK8 &lt;Running JVM's PID&gt; <br />
+ * You need to add sa-jdi.jar to your class path. This is generally available in your JDK's lib directory. Also, you might need to run this class with super user privileges in order to access the other JVM.
+ * <p>
+ */
+public class PrintThreadAllocationJDK8 extends Tool {
+    private static final String[] TLAB_FLAGS = {"UseTLAB", "ResizeTLAB", "TLABSize", "MinTLABSize",
+            "TLABAllocationWeight", "TLABWasteTargetPercent", "TLABRefillWasteFraction", "TLABWasteIncrement"};
+
+    public static void main(String[] args) {
+        if (args.length == 0 || args.length > 1) {
+            System.err.println("Usage: java com.github.leoliang.PrintThreadAllocationJDK8 <PID of the JVM whose threads you want to print>");
+            System.exit(1);
+        }
+        PrintThreadAllocationJDK8 tool = new PrintThreadAllocationJDK8();
+        tool.execute(args);
+        tool.stop();
+    }
+
+    @Override
+    public void run() {
+        DebuggerPageCache pageCache = DebuggerPageCache.install(getAgent());
+        try {
+            TlabReader reader = new TlabReader();
+            List<ThreadAllocation> threads = new ArrayList<>();
+            for (JavaThread thread = VM.getVM().getThreads().first(); thread != null; thread = thread.next()) {
+                threads.add(reader.read(thread));
+            }
+            threads.sort(new Comparator<ThreadAllocation>() {
+                @Override
+                public int compare(ThreadAllocation o1, ThreadAllocation o2) {
+                    return Long.compare(o2.allocatedBytes, o1.allocatedBytes);
+                }
+            });
+            printThreads(threads);
+            printSummary(threads, reader.targetRefills);
+        } catch (AddressException e) {
+            System.err.println("Error accessing address 0x"
+                    + Long.toHexString(e.getAddress()));
+            e.printStackTrace();
+        }
+        pageCache.printStats(System.out);
+    }
+
+    private static void printThreads(List<ThreadAllocation> threads) {
+        System.out.println("Threads by allocated bytes: (TLAB sizes in bytes, the end includes the filler reserve, counters since the last young GC)");
+        System.out.printf("%18s%20s%20s%20s%20s%12s%12s%12s%12s%10s%12s%14s%14s  %s\n", "thread", "tlab start",
+                "tlab top", "tlab end", "allocated", "tlab size", "tlab used", "desired", "waste limit", "refills",
+                "slow allocs", "refill waste", "gc waste", "name");
+        for (ThreadAllocation thread : threads) {
+            if (thread.hasTlab()) {
+                System.out.printf("0x%016x  0x%016x  0x%016x  0x%016x%20d%12d%12d%12d%12d%10d%12d%14d%14d  %s\n",
+                        thread.address, thread.start, thread.top, thread.hardEnd, thread.allocatedBytes, thread.size(),
+                        thread.used(), thread.desiredSize, thread.refillWasteLimit, thread.refills,
+                        thread.slowAllocations, thread.refillWaste(), thread.gcWaste, thread.name);
+            } else {
+                System.out.printf("0x%016x%20s%20s%20s%20d%12s%12s%12d%12d%10d%12d%14d%14d  %s\n", thread.address,
+                        "-", "-", "-", thread.allocatedBytes, "-", "-", thread.desiredSize, thread.refillWasteLimit,
+                        thread.refills, thread.slowAllocations, thread.refillWaste(), thread.gcWaste, thread.name);
+            }
+        }
+    }
+
+    /**
+     * The unused tails of the current TLABs are eden that no thread can allocate in but theirs, and that the next
+     * young collection finds empty; refill waste is what a thread gave up retiring a TLAB with too little left in it.
+     */
+    private static void printSummary(List<ThreadAllocation> threads, long targetRefills) {
+        int withTlab = 0;
+        long tlabBytes = 0;
+        long unusedBytes = 0;
+        long refills = 0;
+        long slowAllocations = 0;
+        long refillWaste = 0;
+        long gcWaste = 0;
+        long allocated = 0;
+        for (ThreadAllocation thread : threads) {
+            allocated += thread.allocatedBytes;
+            refills += thread.refills;
+            slowAllocations += thread.slowAllocations;
+            refillWaste += thread.refillWaste();
+            gcWaste += thread.gcWaste;
+            if (!thread.hasTlab()) continue;
+            withTlab++;
+            tlabBytes += thread.size();
+            unusedBytes += thread.size() - thread.used();
+        }
+
+        System.out.println("TLAB summary:");
+        System.out.printf("  threads              = %d, %d with a TLAB\n", threads.size(), withTlab);
+        System.out.printf("  allocated            = %f MB (%d bytes)\n", PrintDirectMemorySizeJDK8.toM(allocated), allocated);
+        long[] eden = edenUsedAndCapacity();
+        if (eden != null) {
+            System.out.printf("  eden used            = %f MB (%d bytes) of %f MB (%d bytes)\n",
+                    PrintDirectMemorySizeJDK8.toM(eden[0]), eden[0], PrintDirectMemorySizeJDK8.toM(eden[1]), eden[1]);
+        }
+        System.out.printf("  current TLABs        = %f MB (%d bytes)%s\n", PrintDirectMemorySizeJDK8.toM(tlabBytes),
+                tlabBytes, percentOf(tlabBytes, eden));
+        System.out.printf("  unused in TLABs      = %f MB (%d bytes)%s\n", PrintDirectMemorySizeJDK8.toM(unusedBytes),
+                unusedBytes, percentOf(unusedBytes, eden));
+        System.out.printf("  refills              = %d, target %d per thread between young GCs\n", refills, targetRefills);
+        System.out.printf("  slow allocations     = %d (outside of a TLAB)\n", slowAllocations);
+        System.out.printf("  refill waste         = %f MB (%d bytes)\n", PrintDirectMemorySizeJDK8.toM(refillWaste), refillWaste);
+        System.out.printf("  gc waste             = %f MB (%d bytes) (left unused in the TLABs of the last GC)\n",
+                PrintDirectMemorySizeJDK8.toM(gcWaste), gcWaste);
+        for (String name : TLAB_FLAGS) {
+            VM.Flag flag = VM.getVM().getCommandLineFlag(name);
+            if (flag != null) {
+                System.out.printf("  -XX:%-28s= %s\n", name, flag.getValue());
+            }
+        }
+    }
+
+    private static String percentOf(long bytes, long[] eden) {
+        return eden == null || eden[0] == 0 ? "" : String.format(", %.1f%% of eden used", 100.0 * bytes / eden[0]);
+    }
+
+    /**
+     * @return the used and the capacity bytes of eden, or null for an unsupported heap
+     */
+    private static long[] edenUsedAndCapacity() {
+        CollectedHeap heap = VM.getVM().getUniverse().heap();
+        if (heap instanceof GenCollectedHeap) {
+            ContiguousSpace eden = ((DefNewGeneration) ((GenCollectedHeap) heap).getGen(0)).eden();
+            return new long[]{eden.used(), eden.capacity()};
+        } else if (heap instanceof ParallelScavengeHeap) {
+            MutableSpace eden = ((ParallelScavengeHeap) heap).youngGen().edenSpace();
+            return new long[]{eden.used(), eden.capacity()};
+        } else if (heap instanceof G1CollectedHeap) {
+            return new long[]{((G1CollectedHeap) heap).g1mm().edenUsed(), ((G1CollectedHeap) heap).g1mm().edenCommitted()};
+        }
+        return null;
+    }
+
+    /**
+     * Reads the TLAB counters the agent's ThreadLocalAllocBuffer does not expose, from the type database.
+     */
+    private static class TlabReader {
+        private final long wordSize = VM.getVM().getAddressSize();
+        private final CIntegerField desiredSizeField;
+        private final CIntegerField refillWasteLimitField;
+        private final CIntegerField refillsField;
+        private final CIntegerField fastRefillWasteField;
+        private final CIntegerField slowRefillWasteField;
+        private final CIntegerField gcWasteField;
+        private final CIntegerField slowAllocationsField;
+        private final long targetRefills;
+
+        TlabReader() {
+            TypeDataBase db = VM.getVM().getTypeDataBase();
+            Type type = db.lookupType("ThreadLocalAllocBuffer");
+            desiredSizeField = type.getCIntegerField("_desired_size");
+            refillWasteLimitField = type.getCIntegerField("_refill_waste_limit");
+            refillsField = type.getCIntegerField("_number_of_refills");
+            fastRefillWasteField = type.getCIntegerField("_fast_refill_waste");
+            slowRefillWasteField = type.getCIntegerField("_slow_refill_waste");
+            gcWasteField = type.getCIntegerField("_gc_waste");
+            slowAllocationsField = type.getCIntegerField("_slow_allocations");
+            targetRefills = type.getCIntegerField("_target_refills").getValue();
+        }
+
+        ThreadAllocation read(JavaThread thread) {
+            ThreadAllocation allocation = new ThreadAllocation();
+            allocation.address = GenerationLookupTable.rawAddress(thread.getAddress());
+            allocation.name = thread.getThreadName();
+            ThreadLocalAllocBuffer tlab = thread.tlab();
+            Address address = tlab.getAddress();
+            // HotSpot keeps sizes and waste in words, and the allocated bytes without the current TLAB
+            allocation.desiredSize = desiredSizeField.getValue(address) * wordSize;
+            allocation.refillWasteLimit = refillWasteLimitField.getValue(address) * wordSize;
+            allocation.refills = refillsField.getValue(address);
+            allocation.fastRefillWaste = fastRefillWasteField.getValue(address) * wordSize;
+            allocation.slowRefillWaste = slowRefillWasteField.getValue(address) * wordSize;
+            allocation.gcWaste = gcWasteField.getValue(address) * wordSize;
+            allocation.slowAllocations = slowAllocationsField.getValue(address);
+            allocation.allocatedBytes = thread.allocatedBytes();
+            // a thread that never allocated has no TLAB, and hardEnd() would dereference its null end
+            if (tlab.top() != null && tlab.end() != null) {
+                allocation.start = GenerationLookupTable.rawAddress(tlab.start());
+                allocation.top = GenerationLookupTable.rawAddress(tlab.top());
+                allocation.hardEnd = GenerationLookupTable.rawAddress(tlab.hardEnd());
+                allocation.allocatedBytes += allocation.used();
+            }
+            return allocation;
+        }
+    }
+
+    private static class ThreadAllocation {
+        private long address;
+        private String name;
+        private long start;
+        private long top;
+        // the end of the TLAB including the reserve kept to fill its tail with a filler object
+        private long hardEnd;
+        private long desiredSize;
+        private long refillWasteLimit;
+        private long refills;
+        private long fastRefillWaste;
+        private long slowRefillWaste;
+        private long gcWaste;
+        private long slowAllocations;
+        private long allocatedBytes;
+
+        boolean hasTlab() {
+            return hardEnd != 0;
+        }
+
+        long size() {
+            return hardEnd - start;
+        }
+
+        long used() {
+            return top - start;
+        }
+
+        long refillWaste() {
+            return fastRefillWaste + slowRefillWaste;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.github.leoliang;
+
+import sun.jvm.hotspot.HotSpotAgent;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The file-backed memory mappings of the target, from /proc/&lt;pid&gt;/maps of a running process or from the NT_FILE
+ * note of an ELF64 core file, sorted by address.
+ * <p>
+ */
+class ProcessMappings {
+    private static final int PT_NOTE = 4;
+    private static final int NT_FILE = 0x46494c45;
+
+    private final String source;
+    private final List<Mapping> mappings;
+
+    private ProcessMappings(String source, List<Mapping> mappings) {
+        this.source = source;
+        this.mappings = mappings;
+        Collections.sort(mappings, new Comparator<Mapping>() {
+            @Override
+            public int compare(Mapping o1, Mapping o2) {
+                return Long.compare(o1.start, o2.start);
+            }
+        });
+    }
+
+    /**
+     * @return the mappings of the process or core the agent is attached to, or null if they cannot be read
+     */
+    static ProcessMappings of(HotSpotAgent agent) {
+        // a tool run from another tool has no agent
+        if (agent == null) return null;
+        try {
+            String coreFileName = DebuggerPageCache.coreFileName(agent);
+            if (coreFileName != null) {
+                return ofCore(coreFileName);
+            }
+            Field pidField = HotSpotAgent.class.getDeclaredField("pid");
+            pidField.setAccessible(true);
+            int pid = pidField.getInt(agent);
+            return pid > 0 ? ofPid(pid) : null;
+        } catch (ReflectiveOperationException | IOException e) {
+            System.err.println("Could not read the memory mappings of the target: " + e);
+            return null;
+        }
+    }
+
+    static ProcessMappings ofPid(int pid) throws IOException {
+        String file = "/proc/" + pid + "/maps";
+        List<Mapping> mappings = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // start-end perms offset dev inode path, where the path may contain spaces
+                String[] fields = line.trim().split("\\s+", 6);
+                if (fields.length < 6 || !fields[5].startsWith("/")) continue;
+                int dash = fields[0].indexOf('-');
+                mappings.add(new Mapping(Long.parseUnsignedLong(fields[0].substring(0, dash), 16),
+                        Long.parseUnsignedLong(fields[0].substring(dash + 1), 16),
+                        Long.parseUnsignedLong(fields[2], 16), fields[1], fields[5]));
+            }
+        }
+        return new ProcessMappings(file, mappings);
+    }
+
+    /**
+     * Read the NT_FILE note the kernel writes into a core: the count, the page size, a start, end and page offset per
+     * mapping, then their file names. The permissions are not in it.
+     */
+    static ProcessMappings ofCore(String coreFileName) throws IOException {
+        List<Mapping> mappings = new ArrayList<>();
+        try (RandomAccessFile file = new RandomAccessFile(coreFileName, "r")) {
+            FileChannel channel = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(64);
+            channel.read(header, 0);
+            // only ELFCLASS64 little-endian cores, like the page cache
+            if (header.getInt(0) != 0x7f454c46 || header.get(4) != 2 || header.get(5) != 1) {
+                throw new IOException(coreFileName + " is not an ELF64 little-endian core");
+            }
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            long phoff = header.getLong(0x20);
+            int phentsize = header.getShort(0x36) & 0xffff;
+            int phnum = header.getShort(0x38) & 0xffff;
+
+            ByteBuffer phdrs = ByteBuffer.allocate(phentsize * phnum).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(phdrs, phoff);
+            for (int i = 0; i < phnum; i++) {
+                int base = i * phentsize;
+                if (phdrs.getInt(base) != PT_NOTE) continue;
+                long offset = phdrs.getLong(base + 8);
+                long filesz = phdrs.getLong(base + 32);
+                ByteBuffer notes = ByteBuffer.allocate((int) filesz).order(ByteOrder.LITTLE_ENDIAN);
+                channel.read(notes, offset);
+                readFileNotes(notes, mappings);
+            }
+        }
+        return new ProcessMappings(coreFileName, mappings);
+    }
+
+    private static void readFileNotes(ByteBuffer notes, List<Mapping> mappings) {
+        int position = 0;
+        while (position + 12 <= notes.limit()) {
+            int nameSize = notes.getInt(position);
+            int descSize = notes.getInt(position + 4);
+            int type = notes.getInt(position + 8);
+            int desc = position + 12 + align4(nameSize);
+            position = desc + align4(descSize);
+            if (type != NT_FILE || position > notes.limit()) continue;
+
+            int count = (int) notes.getLong(desc);
+            long pageSize = notes.getLong(desc + 8);
+            int name = desc + 16 + count * 24;
+            for (int i = 0; i < count; i++) {
+                int entry = desc + 16 + i * 24;
+                int end = name;
+                while (end < desc + descSize && notes.get(end) != 0) {
+                    end++;
+                }
+                byte[] path = new byte[end - name];
+                for (int j = 0; j < path.length; j++) {
+                    path[j] = notes.get(name + j);
+                }
+                mappings.add(new Mapping(notes.getLong(entry), notes.getLong(entry + 8),
+                        notes.getLong(entry + 16) * pageSize, null, new String(path, StandardCharsets.UTF_8)));
+                name = end + 1;
+            }
+        }
+    }
+
+    private static int align4(int size) {
+        return (size + 3) & ~3;
+    }
+
+    String source() {
+        return source;
+    }
+
+    List<Mapping> mappings() {
+        return mappings;
+    }
+
+    /**
+     * @return the mapping holding the address, or null
+     */
+    Mapping find(long address) {
+        int low = 0;
+        int high = mappings.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Mapping mapping = mappings.get(mid);
+            if (mapping.end <= address) {
+                low = mid + 1;
+            } else if (mapping.start > address) {
+                high = mid - 1;
+            } else {
+                return mapping;
+            }
+        }
+        return null;
+    }
+
+    static class Mapping {
+        final long start;
+        final long end;
+        final long offset;
+        /**
+         * like r--s, or null if the core does not record it
+         */
+        final String perms;
+        final String path;
+
+        Mapping(long start, long end, long offset, String perms, String path) {
+            this.start = start;
+            this.end = end;
+            this.offset = offset;
+            this.perms = perms;
+            this.path = path;
+        }
+
+        long size() {
+            return end - start;
+        }
+    }
+}